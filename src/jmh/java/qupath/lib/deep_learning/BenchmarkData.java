@@ -0,0 +1,63 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.RectangleROI;
+
+/**
+ * Synthetic data shared by the benchmarks.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+class BenchmarkData {
+
+	static final int SEED = 123;
+
+	/**
+	 * Names of the synthetic measurements: "Measurement 0" ... "Measurement n-1".
+	 */
+	static List <String> createMeasurementNames (final int count) {
+		List <String> names = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			names.add("Measurement " + i);
+		}
+		return names;
+	}
+
+	/**
+	 * Create detections with random measurements, spread randomly over an image of the given size.
+	 */
+	static List <PathObject> createDetections (final int count, final List <String> measurementNames,
+											   final int imageWidth, final int imageHeight) {
+		Random random = new Random(SEED);
+		List <PathObject> detections = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			MeasurementList list = MeasurementListFactory.createMeasurementList(measurementNames.size(), MeasurementList.TYPE.FLOAT);
+			for (String name : measurementNames) {
+				list.addMeasurement(name, random.nextDouble());
+			}
+			list.closeList();
+
+			double x = random.nextDouble() * (imageWidth - 20);
+			double y = random.nextDouble() * (imageHeight - 20);
+			detections.add(new PathDetectionObject(new RectangleROI(x, y, 20, 20), null, list));
+		}
+		return detections;
+	}
+
+	static List <PathDataSet> createDataSets (final List <PathObject> pathObjects) {
+		List <PathDataSet> dataSets = new ArrayList<>(pathObjects.size());
+		for (PathObject pathObject : pathObjects) {
+			dataSets.add(new PathDataSet(pathObject));
+		}
+		return dataSets;
+	}
+
+}
@@ -0,0 +1,66 @@
+package qupath.lib.deep_learning;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.objects.PathObject;
+
+/**
+ * Conversion of measurement lists into features: one PathDataSet at a time versus the columnar
+ * {@link MeasurementMatrix}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MeasurementMatrixBenchmark {
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int objectCount;
+
+	@Param({"50"})
+	public int measurementCount;
+
+	private List <String> measurementNames;
+	private List <PathObject> pathObjects;
+	private List <PathDataSet> dataSets;
+
+	@Setup(Level.Trial)
+	public void setup () {
+		measurementNames = BenchmarkData.createMeasurementNames(measurementCount);
+		pathObjects = BenchmarkData.createDetections(objectCount, measurementNames, 100000, 100000);
+		dataSets = BenchmarkData.createDataSets(pathObjects);
+	}
+
+	@Benchmark
+	public List <PathDataSet> convertFeaturesPerObject () {
+		for (PathDataSet dataSet : dataSets) {
+			dataSet.convertFeatures(measurementNames);
+		}
+		return dataSets;
+	}
+
+	@Benchmark
+	public MeasurementMatrix convertFeaturesBatch () {
+		return PathDataSet.convertFeatures(dataSets, measurementNames);
+	}
+
+}
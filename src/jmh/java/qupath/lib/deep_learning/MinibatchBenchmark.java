@@ -0,0 +1,78 @@
+package qupath.lib.deep_learning;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Minibatch assembly for one epoch: ListDataSetIterator, which merges the samples again in every
+ * epoch, versus iterating the minibatches of a {@link MinibatchDataSetIterator}, which were merged once.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MinibatchBenchmark {
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int objectCount;
+
+	@Param({"50"})
+	public int measurementCount;
+
+	@Param({"128"})
+	public int batchSize;
+
+	private List <PathDataSet> dataSets;
+	private MinibatchDataSetIterator minibatches;
+
+	@Setup(Level.Trial)
+	public void setup () {
+		List <String> names = BenchmarkData.createMeasurementNames(measurementCount);
+		dataSets = BenchmarkData.createDataSets(BenchmarkData.createDetections(objectCount, names, 100000, 100000));
+		PathDataSet.convertFeatures(dataSets, names);
+		minibatches = new MinibatchDataSetIterator(dataSets, batchSize);
+	}
+
+	@Benchmark
+	public void listDataSetIterator (final Blackhole blackhole) {
+		DataSetIterator iterator = new ListDataSetIterator<>(dataSets, batchSize);
+		while (iterator.hasNext()) {
+			blackhole.consume(iterator.next());
+		}
+	}
+
+	@Benchmark
+	public void mergedMinibatches (final Blackhole blackhole) {
+		minibatches.reset();
+		while (minibatches.hasNext()) {
+			blackhole.consume(minibatches.next());
+		}
+	}
+
+	@Benchmark
+	public MinibatchDataSetIterator mergeOnce () {
+		return new MinibatchDataSetIterator(dataSets, batchSize);
+	}
+
+}
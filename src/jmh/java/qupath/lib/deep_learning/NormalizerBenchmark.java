@@ -0,0 +1,81 @@
+package qupath.lib.deep_learning;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fitting and applying normalization: ND4J's NormalizerStandardize, which needs a pass over an
+ * iterator, versus the {@link StreamingNormalizer} updated per minibatch.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NormalizerBenchmark {
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int objectCount;
+
+	@Param({"50"})
+	public int measurementCount;
+
+	private MinibatchDataSetIterator minibatches;
+	private DataNormalization normalization;
+
+	@Setup(Level.Trial)
+	public void setup () {
+		List <String> names = BenchmarkData.createMeasurementNames(measurementCount);
+		List <PathDataSet> dataSets = BenchmarkData.createDataSets(BenchmarkData.createDetections(objectCount, names, 100000, 100000));
+		PathDataSet.convertFeatures(dataSets, names);
+		minibatches = new MinibatchDataSetIterator(dataSets, AbstractNeuralNetwork.DEFAULT_BATCH_SIZE);
+
+		normalization = new NormalizerStandardize();
+		normalization.fit(minibatches);
+	}
+
+	@Benchmark
+	public DataNormalization fitNormalizerStandardize () {
+		NormalizerStandardize normalizer = new NormalizerStandardize();
+		normalizer.fit(minibatches);
+		return normalizer;
+	}
+
+	@Benchmark
+	public StreamingNormalizer fitStreaming () {
+		StreamingNormalizer normalizer = new StreamingNormalizer();
+		for (DataSet batch : minibatches.getBatches()) {
+			normalizer.update(batch.getFeatures());
+		}
+		return normalizer;
+	}
+
+	@Benchmark
+	public void transform () {
+		// Transform copies, so every invocation sees the raw data
+		for (DataSet batch : minibatches.getBatches()) {
+			normalization.transform(batch.getFeatures().dup());
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package qupath.lib.deep_learning;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * AbstractNeuralNetwork.output for every sample separately versus for the whole list in minibatches.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputBenchmark {
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int objectCount;
+
+	@Param({"50"})
+	public int measurementCount;
+
+	private List <PathDataSet> dataSets;
+	private AutoEncoderNetwork <PathDataSet> network;
+
+	@Setup(Level.Trial)
+	public void setup () {
+		List <String> names = BenchmarkData.createMeasurementNames(measurementCount);
+		dataSets = BenchmarkData.createDataSets(BenchmarkData.createDetections(objectCount, names, 100000, 100000));
+		PathDataSet.convertFeatures(dataSets, names);
+
+		network = new AutoEncoderNetwork<>(dataSets, measurementCount, 10);
+		network.buildConfiguration(1);
+		network.createModel(Integer.MAX_VALUE);
+	}
+
+	@Benchmark
+	public void outputSingle (final Blackhole blackhole) {
+		for (PathDataSet dataSet : dataSets) {
+			blackhole.consume(network.output(dataSet));
+		}
+	}
+
+	@Benchmark
+	public INDArray outputBatched () {
+		return network.output(dataSets);
+	}
+
+}
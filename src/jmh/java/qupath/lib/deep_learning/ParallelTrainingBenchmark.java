@@ -0,0 +1,66 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Epoch time of data-parallel training of an {@link AutoEncoderNetwork} for an increasing number of
+ * workers, on a synthetic corpus with one random row of features per sample.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ParallelTrainingBenchmark {
+
+	@Param({"50000"})
+	public int sampleCount;
+
+	@Param({"200"})
+	public int featureCount;
+
+	@Param({"1", "2", "4", "8"})
+	public int workers;
+
+	private AutoEncoderNetwork <PathDataSet> network;
+
+	@Setup(Level.Trial)
+	public void setup () {
+		Nd4j.getRandom().setSeed(BenchmarkData.SEED);
+		List <PathDataSet> corpus = new ArrayList<>(sampleCount);
+		for (int i = 0; i < sampleCount; i++) {
+			corpus.add(new PathDataSet(null, Nd4j.rand(1, featureCount), null));
+		}
+
+		network = new AutoEncoderNetwork<>(corpus, featureCount, 10);
+		network.buildConfiguration(1);
+		network.createModel(Integer.MAX_VALUE);
+		network.setParallelTraining(workers, 5);
+	}
+
+	@Benchmark
+	public void fitEpoch () {
+		network.fitModel(1);
+	}
+
+}
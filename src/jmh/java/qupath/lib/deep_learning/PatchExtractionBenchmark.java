@@ -0,0 +1,105 @@
+package qupath.lib.deep_learning;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Patch extraction from a synthetic in-memory image: one region read per object versus the
+ * tile-grouped {@link TiledPatchIterator}. Every region read copies the pixels, as a real image
+ * server has to decode them.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PatchExtractionBenchmark {
+
+	private static final int IMAGE_SIZE = 4096;
+	private static final int TILE_SIZE = 512;
+	private static final int CHANNELS = 3;
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int objectCount;
+
+	@Param({"32"})
+	public int patchSize;
+
+	@Param({"256"})
+	public int batchSize;
+
+	private BufferedImage image;
+	private TiledPatchIterator.RegionReader reader;
+	private List <PathObject> pathObjects;
+
+	@Setup(Level.Trial)
+	public void setup () {
+		image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(BenchmarkData.SEED);
+		for (int y = 0; y < IMAGE_SIZE; y++) {
+			for (int x = 0; x < IMAGE_SIZE; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+
+		reader = (x, y, width, height) -> {
+			BufferedImage region = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			WritableRaster raster = region.getRaster();
+			raster.setRect(-x, -y, image.getRaster());
+			return region;
+		};
+
+		pathObjects = BenchmarkData.createDetections(objectCount, BenchmarkData.createMeasurementNames(0), IMAGE_SIZE, IMAGE_SIZE);
+	}
+
+	@Benchmark
+	public void readPerObject (final Blackhole blackhole) {
+		float [] patch = new float[CHANNELS * patchSize * patchSize];
+		float [] rowBuffer = new float[patchSize];
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = pathObject.getROI();
+			int x = (int) Math.max(0, Math.round(roi.getCentroidX() - patchSize / 2.0));
+			int y = (int) Math.max(0, Math.round(roi.getCentroidY() - patchSize / 2.0));
+			int width = Math.min(patchSize, IMAGE_SIZE - x);
+			int height = Math.min(patchSize, IMAGE_SIZE - y);
+			BufferedImage img = reader.read(x, y, width, height);
+			TiledPatchIterator.cropPatch(img, x, y, 1.0, roi.getCentroidX(), roi.getCentroidY(),
+					patchSize, CHANNELS, patch, 0, rowBuffer);
+			blackhole.consume(patch);
+		}
+	}
+
+	@Benchmark
+	public void readTiled (final Blackhole blackhole) {
+		TiledPatchIterator iterator = new TiledPatchIterator(reader, IMAGE_SIZE, IMAGE_SIZE, TILE_SIZE, TILE_SIZE, 1.0,
+				pathObjects, patchSize, CHANNELS, batchSize, null);
+		while (iterator.hasNext()) {
+			blackhole.consume(iterator.next());
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+package qupath.lib;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.deep_learning.BatchScheduler;
+import qupath.lib.deep_learning.DL4JEngine;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.commands.interfaces.PathCommand;
+import qupath.lib.gui.helpers.DisplayHelpers;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Command to run a trained network on the detections of all images of the current project. Several
+ * images are processed at the same time by a background {@link DL4JJob}; each image is saved with the results.
+ * Images open in a viewer are skipped, as their data file would be replaced while the viewer holds
+ * the old hierarchy, which would overwrite the results when it is saved.
+ * An interrupted run can be resumed, skipping the images which were finished already.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class BatchInferenceCommand implements PathCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchInferenceCommand.class);
+
+    private static final int CONCURRENT_SLIDES = 2;
+    private static final long MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+
+    private QuPathGUI qupath;
+
+    public BatchInferenceCommand (final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    @Override
+    public void run () {
+
+        Project<BufferedImage> project = qupath.getProject();
+        if (project == null) {
+            DisplayHelpers.showErrorMessage("Batch inference", "No project is open!");
+            return;
+        }
+
+        Set<String> openImages = new HashSet<>();
+        for (QuPathViewer viewer : qupath.getViewers()) {
+            ImageData<BufferedImage> imageData = viewer.getImageData();
+            if (imageData != null) {
+                openImages.add(imageData.getServerPath());
+            }
+        }
+
+        // Only images which were saved before have detections to run on
+        List<File> slides = new ArrayList<>();
+        int skipped = 0;
+        for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+            File file = QuPathGUI.getImageDataFile(project, entry);
+            if (file == null || !file.isFile()) {
+                continue;
+            }
+            if (openImages.contains(entry.getServerPath())) {
+                logger.info("Skipping {}, it is open in a viewer", entry.getImageName());
+                skipped++;
+                continue;
+            }
+            slides.add(file);
+        }
+        if (slides.isEmpty()) {
+            DisplayHelpers.showErrorMessage("Batch inference", skipped > 0 ?
+                    "The project has no saved images which are not open - close the open images first!" :
+                    "The project has no saved images!");
+            return;
+        }
+        if (skipped > 0 && !DisplayHelpers.showYesNoDialog("Batch inference",
+                skipped + " open image(s) will be skipped, close them first to include them. Continue?")) {
+            return;
+        }
+
+        File modelFile = qupath.getDialogHelper().promptForFile("Load neural network", null, "zip");
+        if (modelFile == null) {
+            return;
+        }
+
+        File journal = new File(slides.get(0).getParentFile(), BatchScheduler.DEFAULT_JOURNAL_NAME);
+        if (journal.isFile() && !DisplayHelpers.showYesNoDialog("Batch inference",
+                "A previous run was interrupted. Skip the images which were finished already?")) {
+            if (!journal.delete()) {
+                logger.warn("Could not delete {}", journal);
+            }
+        }
+
+        DL4JJob<List<BatchScheduler.SlideResult>> job = new DL4JJob<List<BatchScheduler.SlideResult>>("Batch inference", DL4JJob.Priority.NORMAL) {
+            @Override
+            protected List<BatchScheduler.SlideResult> call () throws Exception {
+                updateMessage("Loading the network...");
+                DL4JEngine engine = DL4JEngine.load(modelFile);
+                BatchScheduler scheduler = new BatchScheduler(engine, CONCURRENT_SLIDES, MEMORY_BUDGET);
+                scheduler.setJournal(journal);
+                AtomicInteger done = new AtomicInteger();
+                scheduler.setListener(result -> {
+                    updateProgress(done.incrementAndGet(), slides.size());
+                    updateMessage(result.getSlide().getName() + ": " + result.getStatus().toString().toLowerCase());
+                });
+                updateMessage("Processing " + slides.size() + " images...");
+                return scheduler.run(slides, this::isCancelled);
+            }
+        };
+
+        Stage stage = createProgressStage(job);
+
+        job.whenDone(results -> {
+            stage.close();
+            int failed = 0;
+            for (BatchScheduler.SlideResult result : results) {
+                if (result.getStatus() == BatchScheduler.Status.FAILED) {
+                    failed++;
+                }
+            }
+            if (failed > 0) {
+                DisplayHelpers.showErrorMessage("Batch inference", failed + " images could not be processed - see the log for details.");
+            }
+            else if (!journal.delete()) {
+                logger.warn("Could not delete {}", journal);
+            }
+        }, e -> {
+            stage.close();
+            DisplayHelpers.showErrorMessage("Batch inference", "Batch inference failed: " + e.getLocalizedMessage());
+        });
+        job.setOnCancelled(e -> stage.close());
+
+        stage.show();
+        DL4JTaskExecutor.getInstance().submit(job);
+    }
+
+    private Stage createProgressStage (final DL4JJob<?> task) {
+
+        Label label = new Label();
+        label.textProperty().bind(task.messageProperty());
+
+        ProgressBar progressBar = new ProgressBar();
+        progressBar.setPrefWidth(300);
+        progressBar.progressProperty().bind(task.progressProperty());
+
+        Button btnCancel = new Button("Cancel");
+        btnCancel.setOnAction(e -> task.cancel());
+
+        VBox box = new VBox(10, label, progressBar, btnCancel);
+        box.setPadding(new Insets(10));
+
+        Stage stage = new Stage();
+        stage.initOwner(qupath.getStage());
+        stage.setTitle("Batch inference");
+        stage.setScene(new Scene(box));
+        return stage;
+    }
+}
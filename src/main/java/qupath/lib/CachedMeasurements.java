@@ -0,0 +1,66 @@
+package qupath.lib;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.deep_learning.FeatureCache;
+import qupath.lib.deep_learning.MeasurementMatrix;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Reads the measurement matrix of the objects of an image through the {@link FeatureCache}, so running
+ * an embedding again on a saved image does not convert all measurement lists again. Images that are not
+ * saved in the current project, or have unsaved changes, are read from the measurement lists.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+class CachedMeasurements {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachedMeasurements.class);
+
+    private CachedMeasurements () {}
+
+    /**
+     * Get the saved image data of an image in the current project, or null if the image is not saved or
+     * has unsaved changes. Call this on the application thread.
+     */
+    static File getSavedDataFile (final QuPathGUI qupath, final ImageData<BufferedImage> imageData) {
+        Project<BufferedImage> project = qupath.getProject();
+        if (project == null || imageData.isChanged()) {
+            return null;
+        }
+        ProjectImageEntry<BufferedImage> entry = project.getImageEntry(imageData.getServerPath());
+        File file = entry == null ? null : QuPathGUI.getImageDataFile(project, entry);
+        return file != null && file.isFile() ? file : null;
+    }
+
+    /**
+     * Get the measurement matrix from the cache, or build it and add it to the cache.
+     *
+     * @param imagePath Path of the image server.
+     * @param dataFile Saved image data from {@link #getSavedDataFile}; null bypasses the cache.
+     * @param pathObjects Objects, in the order of the rows.
+     * @param measurementNames Names of the columns.
+     */
+    static MeasurementMatrix build (final String imagePath, final File dataFile, final Collection<PathObject> pathObjects,
+                                    final List<String> measurementNames) {
+        if (dataFile != null) {
+            try {
+                return new FeatureCache(FeatureCache.getDefaultDirectory()).getMeasurementMatrix(imagePath, dataFile, pathObjects, measurementNames);
+            } catch (IOException e) {
+                logger.warn("Could not use the feature cache: {}", e.getLocalizedMessage());
+            }
+        }
+        return MeasurementMatrix.build(pathObjects, measurementNames);
+    }
+}
@@ -1,5 +1,8 @@
 package qupath.lib;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.deep_learning.ND4JBackend;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.BrightnessContrastCommand;
 import qupath.lib.gui.extensions.QuPathExtension;
@@ -8,16 +11,31 @@ import javafx.scene.control.MenuItem;
 
 public class DL4JExtension implements QuPathExtension {
 
+    private static final Logger logger = LoggerFactory.getLogger(DL4JExtension.class);
+
     @Override
     public void installExtension(QuPathGUI qupath) {
 
+        // Load the ND4J backend in the background, so neither startup nor the first command waits for it
+        ND4JBackend.initializeAsync().whenComplete((backend, e) -> {
+            if (backend != null) {
+                logger.info("ND4J backend ready: {}", backend);
+            }
+        });
+
         // Get reference to menu
         Menu menu = qupath.getMenu("Extensions>DL4J", true);
 
         // Add new items to the menu
         QuPathGUI.addMenuItems(
                 menu,
-                QuPathGUI.createCommandAction(new TestCommand(qupath), "Test")
+                QuPathGUI.createCommandAction(new TestCommand(qupath), "Test"),
+                QuPathGUI.createCommandAction(new SlideInferenceCommand(qupath), "Run network on detections"),
+                QuPathGUI.createCommandAction(new BatchInferenceCommand(qupath), "Run network on project"),
+                QuPathGUI.createCommandAction(new PCACommand(qupath), "PCA of detections"),
+                QuPathGUI.createCommandAction(new TSNECommand(qupath), "t-SNE of detections"),
+                QuPathGUI.createCommandAction(new TrainingMetricsCommand(qupath), "Training metrics"),
+                QuPathGUI.createCommandAction(new JobPanelCommand(qupath), "Jobs")
         );
 
         // Experimental Non-plugin item
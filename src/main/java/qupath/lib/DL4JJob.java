@@ -0,0 +1,100 @@
+package qupath.lib;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javafx.concurrent.Task;
+
+/**
+ * A unit of deep learning work (training, feature extraction, inference) run by the {@link DL4JTaskExecutor}.
+ * Being a JavaFX {@link Task}, its progress, message and state can be bound to controls, and its callbacks
+ * are always called on the JavaFX application thread.
+ *
+ * Jobs with a higher priority are started first; jobs with the same priority are started in the order
+ * they were submitted.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public abstract class DL4JJob<V> extends Task<V> implements Comparable<DL4JJob<?>> {
+
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private final String name;
+    private final Priority priority;
+    private final long sequence = counter.getAndIncrement();
+
+    public DL4JJob (final String name, final Priority priority) {
+        this.name = name;
+        this.priority = priority;
+        updateTitle(name);
+        updateMessage("Waiting...");
+    }
+
+    /**
+     * Create a job from a callable. Use a subclass instead when the job should report its progress.
+     */
+    public static <V> DL4JJob<V> of (final String name, final Priority priority, final Callable<V> callable) {
+        return new DL4JJob<V>(name, priority) {
+            @Override
+            protected V call () throws Exception {
+                updateMessage("Running...");
+                return callable.call();
+            }
+        };
+    }
+
+    /**
+     * Set the callbacks for when the job finishes. Both are called on the JavaFX application thread.
+     *
+     * @param onSuccess Receives the result; may be null.
+     * @param onFailure Receives the exception the job failed with; may be null. Not called when the job is cancelled.
+     * @return This job.
+     */
+    public DL4JJob<V> whenDone (final Consumer<V> onSuccess, final Consumer<Throwable> onFailure) {
+        setOnSucceeded(e -> {
+            if (onSuccess != null) {
+                onSuccess.accept(getValue());
+            }
+        });
+        setOnFailed(e -> {
+            if (onFailure != null) {
+                onFailure.accept(getException());
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Report the fraction done, from any thread.
+     */
+    public void reportProgress (final double fraction) {
+        updateProgress(fraction, 1.0);
+    }
+
+    /**
+     * Report what the job is doing, from any thread.
+     */
+    public void reportMessage (final String message) {
+        updateMessage(message);
+    }
+
+    public String getName () {
+        return name;
+    }
+
+    public Priority getPriority () {
+        return priority;
+    }
+
+    @Override
+    public int compareTo (final DL4JJob<?> other) {
+        int result = priority.compareTo(other.priority);
+        return result != 0 ? result : Long.compare(sequence, other.sequence);
+    }
+}
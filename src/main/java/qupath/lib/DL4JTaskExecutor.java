@@ -0,0 +1,107 @@
+package qupath.lib;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor for all long-running work of the extension, so the JavaFX application thread is never blocked.
+ * A fixed number of worker threads take {@link DL4JJob}s from a priority queue; the workers run below
+ * normal thread priority, so viewing images stays responsive while jobs are running.
+ *
+ * The submitted jobs are kept in an observable list (only changed on the JavaFX application thread),
+ * which is shown by the {@link JobPanelCommand}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class DL4JTaskExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(DL4JTaskExecutor.class);
+
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 4);
+
+    private static final DL4JTaskExecutor instance = new DL4JTaskExecutor(DEFAULT_THREADS);
+
+    private final ThreadPoolExecutor executor;
+    private final ObservableList<DL4JJob<?>> jobs = FXCollections.observableArrayList();
+
+    /**
+     * @param threads Number of jobs that can run at the same time. Every job can use several threads itself.
+     */
+    public DL4JTaskExecutor (final int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "dl4j-job-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        };
+        // The jobs are passed to execute() directly, so the queue can order them by priority
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Get the executor shared by the whole extension.
+     */
+    public static DL4JTaskExecutor getInstance () {
+        return instance;
+    }
+
+    /**
+     * Queue a job. It is added to the job list and started as soon as a worker is free.
+     *
+     * @return The job, so callbacks can be chained.
+     */
+    public <V> DL4JJob<V> submit (final DL4JJob<V> job) {
+        runOnFXThread(() -> jobs.add(job));
+        logger.info("Queued job '{}' with {} priority", job.getName(), job.getPriority().toString().toLowerCase());
+        executor.execute(job);
+        return job;
+    }
+
+    /**
+     * Get the submitted jobs. The list is only changed on the JavaFX application thread.
+     */
+    public ObservableList<DL4JJob<?>> getJobs () {
+        return jobs;
+    }
+
+    /**
+     * Remove the jobs that are no longer waiting or running from the job list.
+     */
+    public void clearFinished () {
+        runOnFXThread(() -> jobs.removeIf(job -> job.isDone()));
+    }
+
+    /**
+     * Cancel all waiting and running jobs.
+     */
+    public void cancelAll () {
+        runOnFXThread(() -> jobs.forEach(job -> job.cancel()));
+    }
+
+    /**
+     * Get the number of jobs waiting for a free worker.
+     */
+    public int getQueuedCount () {
+        return executor.getQueue().size();
+    }
+
+    private static void runOnFXThread (final Runnable runnable) {
+        if (Platform.isFxApplicationThread()) {
+            runnable.run();
+        }
+        else {
+            Platform.runLater(runnable);
+        }
+    }
+}
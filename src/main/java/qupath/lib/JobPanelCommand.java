@@ -0,0 +1,110 @@
+package qupath.lib;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.cell.ProgressBarTableCell;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+import qupath.lib.deep_learning.ConcurrencyBudget;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.commands.interfaces.PathCommand;
+
+/**
+ * Command to show the jobs of the {@link DL4JTaskExecutor}: their state, progress and latest message.
+ * Waiting or running jobs can be cancelled from here. The threads leased from the {@link ConcurrencyBudget}
+ * and the CPU load of QuPath are shown below the jobs.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class JobPanelCommand implements PathCommand {
+
+    private QuPathGUI qupath;
+    private Stage dialog;
+
+    public JobPanelCommand (final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    @Override
+    public void run () {
+        if (dialog == null) {
+            dialog = createDialog();
+        }
+        dialog.show();
+        dialog.toFront();
+    }
+
+    private Stage createDialog () {
+
+        DL4JTaskExecutor executor = DL4JTaskExecutor.getInstance();
+
+        TableView<DL4JJob<?>> table = new TableView<>(executor.getJobs());
+        table.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+
+        TableColumn<DL4JJob<?>, String> colName = new TableColumn<>("Job");
+        colName.setCellValueFactory(p -> p.getValue().titleProperty());
+
+        TableColumn<DL4JJob<?>, String> colPriority = new TableColumn<>("Priority");
+        colPriority.setCellValueFactory(p -> new SimpleStringProperty(p.getValue().getPriority().toString().toLowerCase()));
+
+        TableColumn<DL4JJob<?>, String> colState = new TableColumn<>("State");
+        colState.setCellValueFactory(p -> p.getValue().stateProperty().asString());
+
+        TableColumn<DL4JJob<?>, Double> colProgress = new TableColumn<>("Progress");
+        colProgress.setCellValueFactory(p -> p.getValue().progressProperty().asObject());
+        colProgress.setCellFactory(ProgressBarTableCell.forTableColumn());
+
+        TableColumn<DL4JJob<?>, String> colMessage = new TableColumn<>("Message");
+        colMessage.setCellValueFactory(p -> p.getValue().messageProperty());
+
+        table.getColumns().add(colName);
+        table.getColumns().add(colPriority);
+        table.getColumns().add(colState);
+        table.getColumns().add(colProgress);
+        table.getColumns().add(colMessage);
+
+        Button btnCancel = new Button("Cancel selected");
+        btnCancel.setOnAction(e -> table.getSelectionModel().getSelectedItems().forEach(job -> job.cancel()));
+
+        Button btnCancelAll = new Button("Cancel all");
+        btnCancelAll.setOnAction(e -> executor.cancelAll());
+
+        Button btnClear = new Button("Clear finished");
+        btnClear.setOnAction(e -> executor.clearFinished());
+
+        HBox buttons = new HBox(10, btnCancel, btnCancelAll, btnClear);
+        buttons.setPadding(new Insets(10, 0, 0, 0));
+
+        Label labelBudget = new Label();
+        labelBudget.setPadding(new Insets(10, 0, 0, 0));
+        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(1),
+                e -> labelBudget.setText(ConcurrencyBudget.getInstance().report())));
+        timeline.setCycleCount(Timeline.INDEFINITE);
+
+        BorderPane pane = new BorderPane();
+        pane.setTop(labelBudget);
+        pane.setCenter(table);
+        pane.setBottom(buttons);
+        pane.setPadding(new Insets(10));
+
+        Stage stage = new Stage();
+        stage.initOwner(qupath.getStage());
+        stage.setTitle("DL4J jobs");
+        stage.setScene(new Scene(pane, 700, 350));
+        stage.setOnShown(e -> timeline.play());
+        stage.setOnHidden(e -> timeline.stop());
+        return stage;
+    }
+}
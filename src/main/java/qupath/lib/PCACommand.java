@@ -0,0 +1,113 @@
+package qupath.lib;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.deep_learning.DerivedMeasurements;
+import qupath.lib.deep_learning.MeasurementMatrix;
+import qupath.lib.deep_learning.ND4JBackend;
+import qupath.lib.deep_learning.StreamingPCA;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.commands.interfaces.PathCommand;
+import qupath.lib.gui.helpers.DisplayHelpers;
+import qupath.lib.images.ImageData;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Command to run a principal component analysis on the measurements of all detections of the current
+ * image. The leading components are written back to the detections as the measurements "PCA 1",
+ * "PCA 2", ... The analysis runs as a background {@link DL4JJob}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class PCACommand implements PathCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(PCACommand.class);
+
+    public static final String MEASUREMENT_PREFIX = DerivedMeasurements.PCA_PREFIX;
+
+    private QuPathGUI qupath;
+
+    public PCACommand (final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    @Override
+    public void run () {
+
+        ImageData<BufferedImage> imageData = qupath.getImageData();
+        if (imageData == null) {
+            DisplayHelpers.showErrorMessage("PCA", "No image is open!");
+            return;
+        }
+
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        String imagePath = imageData.getServerPath();
+        File dataFile = CachedMeasurements.getSavedDataFile(qupath, imageData);
+        Collection<PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+        if (detections.size() < 2) {
+            DisplayHelpers.showErrorMessage("PCA", "The image needs at least 2 detections!");
+            return;
+        }
+
+        // Use all measurements, except the results of previous analyses and networks
+        List<String> measurementNames = DerivedMeasurements.getInputMeasurements(
+                detections.iterator().next().getMeasurementList().getMeasurementNames());
+        if (measurementNames.isEmpty()) {
+            DisplayHelpers.showErrorMessage("PCA", "The detections have no measurements!");
+            return;
+        }
+
+        Double value = DisplayHelpers.showInputDialog("PCA", "Number of components", 2.0);
+        if (value == null) {
+            return;
+        }
+        int components = (int) Math.round(value);
+        if (components < 1 || components > measurementNames.size()) {
+            DisplayHelpers.showErrorMessage("PCA", "The number of components must be between 1 and " + measurementNames.size() + "!");
+            return;
+        }
+
+        DL4JJob<StreamingPCA> job = new DL4JJob<StreamingPCA>("PCA", DL4JJob.Priority.NORMAL) {
+            @Override
+            protected StreamingPCA call () throws Exception {
+                ND4JBackend.awaitReady();
+                updateMessage("Reading the measurements of " + detections.size() + " detections...");
+                MeasurementMatrix matrix = CachedMeasurements.build(imagePath, dataFile, detections, measurementNames);
+                StreamingPCA.RowSource source = StreamingPCA.RowSource.of(matrix.getMatrix());
+
+                StreamingPCA pca = new StreamingPCA(components);
+                updateMessage("Computing the covariance...");
+                pca.fit(source, p -> updateProgress(p * 0.5, 1.0), this::isCancelled);
+                updateMessage("Projecting the detections...");
+                float[] projected = pca.transform(source, p -> updateProgress(0.5 + p * 0.5, 1.0), this::isCancelled);
+
+                List<PathObject> pathObjects = matrix.getPathObjects();
+                for (int i = 0; i < pathObjects.size(); i++) {
+                    MeasurementList list = pathObjects.get(i).getMeasurementList();
+                    for (int c = 0; c < components; c++) {
+                        list.putMeasurement(MEASUREMENT_PREFIX + (c + 1), projected[i * components + c]);
+                    }
+                    list.closeList();
+                }
+                return pca;
+            }
+        };
+
+        job.whenDone(pca -> {
+            hierarchy.fireHierarchyChangedEvent(this);
+            logger.info("PCA of {} detections: the components explain {}% of the variance", pca.getCount(),
+                    String.format("%.1f", pca.getExplainedVariance() * 100));
+        }, e -> DisplayHelpers.showErrorMessage("PCA", "PCA failed: " + e.getLocalizedMessage()));
+
+        DL4JTaskExecutor.getInstance().submit(job);
+    }
+}
@@ -0,0 +1,122 @@
+package qupath.lib;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.deep_learning.DL4JEngine;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.commands.interfaces.PathCommand;
+import qupath.lib.gui.helpers.DisplayHelpers;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Command to run a trained network on all detections of the current image. The inference runs
+ * as a {@link DL4JJob} in the background; a small window shows the progress and allows the run to be cancelled.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class SlideInferenceCommand implements PathCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlideInferenceCommand.class);
+
+    private static final int BATCH_SIZE = 1024;
+
+    private QuPathGUI qupath;
+
+    public SlideInferenceCommand (final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    @Override
+    public void run () {
+
+        ImageData<BufferedImage> imageData = qupath.getImageData();
+        if (imageData == null) {
+            DisplayHelpers.showErrorMessage("Slide inference", "No image is open!");
+            return;
+        }
+
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        Collection<PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+        if (detections.isEmpty()) {
+            DisplayHelpers.showErrorMessage("Slide inference", "The image has no detections!");
+            return;
+        }
+
+        File modelFile = qupath.getDialogHelper().promptForFile("Load neural network", null, "zip");
+        if (modelFile == null) {
+            return;
+        }
+
+        // Loading the network can take a while, so it is part of the job
+        DL4JJob<Integer> job = new DL4JJob<Integer>("Slide inference", DL4JJob.Priority.HIGH) {
+            @Override
+            protected Integer call () throws IOException {
+                updateMessage("Loading the network...");
+                DL4JEngine engine = DL4JEngine.load(modelFile);
+                engine.setBatchSize(BATCH_SIZE);
+                updateMessage("Running inference on " + detections.size() + " detections...");
+                return engine.run(detections, p -> updateProgress(p, 1.0), this::isCancelled);
+            }
+        };
+
+        Stage stage = createProgressStage(job);
+
+        job.whenDone(count -> {
+            stage.close();
+            hierarchy.fireHierarchyChangedEvent(this);
+            logger.info("Inference finished for {} detections.", count);
+        }, e -> {
+            stage.close();
+            if (e instanceof IllegalArgumentException) {
+                // The network does not match the measurements of the detections
+                DisplayHelpers.showErrorMessage("Slide inference", e.getLocalizedMessage() + "!");
+            }
+            else if (!(e instanceof CancellationException)) {
+                DisplayHelpers.showErrorMessage("Slide inference", "Inference failed: " + e.getLocalizedMessage());
+            }
+        });
+        job.setOnCancelled(e -> stage.close());
+
+        stage.show();
+        DL4JTaskExecutor.getInstance().submit(job);
+    }
+
+    private Stage createProgressStage (final DL4JJob<?> task) {
+
+        Label label = new Label();
+        label.textProperty().bind(task.messageProperty());
+
+        ProgressBar progressBar = new ProgressBar();
+        progressBar.setPrefWidth(300);
+        progressBar.progressProperty().bind(task.progressProperty());
+
+        Button btnCancel = new Button("Cancel");
+        btnCancel.setOnAction(e -> task.cancel());
+
+        VBox box = new VBox(10, label, progressBar, btnCancel);
+        box.setPadding(new Insets(10));
+
+        Stage stage = new Stage();
+        stage.initOwner(qupath.getStage());
+        stage.setTitle("Slide inference");
+        stage.setScene(new Scene(box));
+        return stage;
+    }
+}
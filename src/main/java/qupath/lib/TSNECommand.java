@@ -0,0 +1,112 @@
+package qupath.lib;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.deep_learning.BarnesHutTSNE;
+import qupath.lib.deep_learning.DerivedMeasurements;
+import qupath.lib.deep_learning.MeasurementMatrix;
+import qupath.lib.deep_learning.ND4JBackend;
+import qupath.lib.deep_learning.StreamingPCA;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.commands.interfaces.PathCommand;
+import qupath.lib.gui.helpers.DisplayHelpers;
+import qupath.lib.images.ImageData;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Command to embed the measurements of all detections of the current image in two dimensions with
+ * {@link BarnesHutTSNE}. The coordinates are written back to the detections as the measurements
+ * "t-SNE 1" and "t-SNE 2". The embedding runs as a background {@link DL4JJob}, which shows its progress
+ * in the job panel.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TSNECommand implements PathCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(TSNECommand.class);
+
+    public static final String MEASUREMENT_PREFIX = DerivedMeasurements.TSNE_PREFIX;
+
+    private QuPathGUI qupath;
+
+    public TSNECommand (final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    @Override
+    public void run () {
+
+        ImageData<BufferedImage> imageData = qupath.getImageData();
+        if (imageData == null) {
+            DisplayHelpers.showErrorMessage("t-SNE", "No image is open!");
+            return;
+        }
+
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        String imagePath = imageData.getServerPath();
+        File dataFile = CachedMeasurements.getSavedDataFile(qupath, imageData);
+        Collection<PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+        if (detections.size() < 2) {
+            DisplayHelpers.showErrorMessage("t-SNE", "The image needs at least 2 detections!");
+            return;
+        }
+
+        // Use all measurements, except the results of previous analyses and networks
+        List<String> measurementNames = DerivedMeasurements.getInputMeasurements(
+                detections.iterator().next().getMeasurementList().getMeasurementNames());
+        if (measurementNames.isEmpty()) {
+            DisplayHelpers.showErrorMessage("t-SNE", "The detections have no measurements!");
+            return;
+        }
+
+        Double perplexity = DisplayHelpers.showInputDialog("t-SNE", "Perplexity", 30.0);
+        if (perplexity == null) {
+            return;
+        }
+        if (perplexity < 1) {
+            DisplayHelpers.showErrorMessage("t-SNE", "The perplexity must be at least 1!");
+            return;
+        }
+
+        DL4JJob<Integer> job = new DL4JJob<Integer>("t-SNE", DL4JJob.Priority.NORMAL) {
+            @Override
+            protected Integer call () throws Exception {
+                ND4JBackend.awaitReady();
+                updateMessage("Reading the measurements of " + detections.size() + " detections...");
+                MeasurementMatrix matrix = CachedMeasurements.build(imagePath, dataFile, detections, measurementNames);
+
+                BarnesHutTSNE tsne = new BarnesHutTSNE();
+                tsne.setPerplexity(perplexity);
+                float[] embedding = tsne.fit(StreamingPCA.RowSource.of(matrix.getMatrix()), (message, fraction) -> {
+                    updateMessage(message);
+                    updateProgress(fraction, 1.0);
+                }, this::isCancelled);
+
+                List<PathObject> pathObjects = matrix.getPathObjects();
+                for (int i = 0; i < pathObjects.size(); i++) {
+                    MeasurementList list = pathObjects.get(i).getMeasurementList();
+                    list.putMeasurement(MEASUREMENT_PREFIX + 1, embedding[i * 2]);
+                    list.putMeasurement(MEASUREMENT_PREFIX + 2, embedding[i * 2 + 1]);
+                    list.closeList();
+                }
+                return tsne.getSampleRows().length;
+            }
+        };
+
+        job.whenDone(sampled -> {
+            hierarchy.fireHierarchyChangedEvent(this);
+            logger.info("t-SNE of {} detections, {} embedded directly", detections.size(), sampled);
+        }, e -> DisplayHelpers.showErrorMessage("t-SNE", "t-SNE failed: " + e.getLocalizedMessage()));
+
+        DL4JTaskExecutor.getInstance().submit(job);
+    }
+}
@@ -25,7 +25,7 @@ package qupath.lib;
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.IOException;
+import java.io.File;
 import java.text.DecimalFormat;
 import java.util.Optional;
 
@@ -64,6 +64,7 @@ import javafx.scene.text.Text;
 import javafx.stage.Stage;
 import javafx.util.Callback;
 import qupath.lib.analysis.stats.Histogram;
+import qupath.lib.deep_learning.ND4JBackend;
 import qupath.lib.deep_learning.NeuralNetworkExample;
 import qupath.lib.display.ChannelDisplayInfo;
 import qupath.lib.display.ImageDisplay;
@@ -143,12 +144,15 @@ public class TestCommand implements PathCommand, ImageDataChangeListener<Buffere
 
     protected Stage createDialog() {
 
-        // Test the DL4J functions
-        try {
-            NeuralNetworkExample.run();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // Test the DL4J functions in the background, building the network can take a while
+        File saveFile = qupath.getDialogHelper().promptToSaveFile("Save the neural network", null, "NeuralNetwork", null, "zip");
+        DL4JJob<Void> job = DL4JJob.of("Neural network test", DL4JJob.Priority.LOW, () -> {
+            ND4JBackend.awaitReady();
+            NeuralNetworkExample.run(saveFile);
+            return null;
+        });
+        job.whenDone(null, e -> DisplayHelpers.showErrorMessage("Neural network test", "Test failed: " + e.getLocalizedMessage()));
+        DL4JTaskExecutor.getInstance().submit(job);
 
         if (!isInitialized())
             initializeSliders();
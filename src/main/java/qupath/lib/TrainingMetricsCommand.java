@@ -0,0 +1,160 @@
+package qupath.lib;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.chart.LineChart;
+import javafx.scene.chart.NumberAxis;
+import javafx.scene.chart.XYChart;
+import javafx.scene.control.Label;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import qupath.lib.deep_learning.TrainingMetrics;
+import qupath.lib.deep_learning.TrainingMetrics.EpochRecord;
+import qupath.lib.deep_learning.TrainingMetrics.MinibatchRecord;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.commands.interfaces.PathCommand;
+
+/**
+ * Command to show live charts of the training metrics: the time per stage and the throughput of every
+ * epoch of the network that was trained most recently, and the time per stage of its last minibatches.
+ * After an inference run the minibatches of that run are shown.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TrainingMetricsCommand implements PathCommand {
+
+    private QuPathGUI qupath;
+    private Stage dialog;
+
+    private XYChart.Series<Number, Number> seriesData = createSeries("Data loading");
+    private XYChart.Series<Number, Number> seriesNormalization = createSeries("Normalization");
+    private XYChart.Series<Number, Number> seriesForward = createSeries("Forward");
+    private XYChart.Series<Number, Number> seriesBackward = createSeries("Backward");
+    private XYChart.Series<Number, Number> seriesUpdate = createSeries("Update");
+    private XYChart.Series<Number, Number> seriesThroughput = createSeries("Samples/s");
+    private XYChart.Series<Number, Number> seriesHeap = createSeries("Heap (MB)");
+    private XYChart.Series<Number, Number> seriesOffHeap = createSeries("Off-heap (MB)");
+    private XYChart.Series<Number, Number> seriesBatchData = createSeries("Data loading");
+    private XYChart.Series<Number, Number> seriesBatchNormalization = createSeries("Normalization");
+    private XYChart.Series<Number, Number> seriesBatchCompute = createSeries("Compute");
+
+    private Label labelStatus = new Label("No network has been trained yet.");
+
+    private Consumer<TrainingMetrics> listener = metrics -> Platform.runLater(() -> update(metrics));
+
+    public TrainingMetricsCommand (final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    @Override
+    public void run () {
+        if (dialog == null) {
+            dialog = createDialog();
+            TrainingMetrics.addGlobalListener(listener);
+            dialog.setOnHidden(e -> {
+                TrainingMetrics.removeGlobalListener(listener);
+                dialog = null;
+            });
+        }
+        dialog.show();
+        dialog.toFront();
+    }
+
+    private static XYChart.Series<Number, Number> createSeries (final String name) {
+        XYChart.Series<Number, Number> series = new XYChart.Series<>();
+        series.setName(name);
+        return series;
+    }
+
+    private static LineChart<Number, Number> createChart (final String title, final String xLabel, final String yLabel) {
+        NumberAxis xAxis = new NumberAxis();
+        xAxis.setLabel(xLabel);
+        xAxis.setForceZeroInRange(false);
+        NumberAxis yAxis = new NumberAxis();
+        yAxis.setLabel(yLabel);
+        LineChart<Number, Number> chart = new LineChart<>(xAxis, yAxis);
+        chart.setTitle(title);
+        chart.setAnimated(false);
+        chart.setCreateSymbols(false);
+        return chart;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Stage createDialog () {
+
+        LineChart<Number, Number> chartStages = createChart("Time per stage", "Epoch", "ms");
+        chartStages.getData().addAll(seriesData, seriesNormalization, seriesForward, seriesBackward, seriesUpdate);
+
+        LineChart<Number, Number> chartThroughput = createChart("Throughput", "Epoch", "Samples/s");
+        chartThroughput.getData().add(seriesThroughput);
+
+        LineChart<Number, Number> chartMemory = createChart("Memory", "Epoch", "MB");
+        chartMemory.getData().addAll(seriesHeap, seriesOffHeap);
+
+        LineChart<Number, Number> chartMinibatches = createChart("Time per minibatch", "Minibatch", "ms");
+        chartMinibatches.getData().addAll(seriesBatchData, seriesBatchNormalization, seriesBatchCompute);
+
+        BorderPane pane = new BorderPane();
+        pane.setCenter(new VBox(chartStages, chartThroughput, chartMemory, chartMinibatches));
+        pane.setBottom(labelStatus);
+
+        Stage stage = new Stage();
+        stage.initOwner(qupath.getStage());
+        stage.setTitle("DL4J training metrics");
+        stage.setScene(new Scene(pane, 600, 1000));
+        return stage;
+    }
+
+    /**
+     * Show the history of the given metrics. Must be called on the application thread.
+     */
+    private void update (final TrainingMetrics metrics) {
+
+        List<EpochRecord> history = metrics.getHistory();
+        clear(seriesData, seriesNormalization, seriesForward, seriesBackward, seriesUpdate,
+                seriesThroughput, seriesHeap, seriesOffHeap, seriesBatchData, seriesBatchNormalization, seriesBatchCompute);
+
+        for (EpochRecord record : history) {
+            add(seriesData, record.epoch, record.dataMillis);
+            add(seriesNormalization, record.epoch, record.normalizationMillis);
+            add(seriesForward, record.epoch, record.forwardMillis);
+            add(seriesBackward, record.epoch, record.backwardMillis);
+            add(seriesUpdate, record.epoch, record.updateMillis);
+            add(seriesThroughput, record.epoch, record.samplesPerSecond);
+            add(seriesHeap, record.epoch, record.heapBytes / (1024.0 * 1024.0));
+            add(seriesOffHeap, record.epoch, record.offHeapBytes / (1024.0 * 1024.0));
+        }
+
+        for (MinibatchRecord record : metrics.getMinibatches()) {
+            add(seriesBatchData, record.getIndex(), record.getDataMillis());
+            add(seriesBatchNormalization, record.getIndex(), record.getNormalizationMillis());
+            add(seriesBatchCompute, record.getIndex(), record.getComputeMillis());
+        }
+
+        if (metrics.getEpoch() == 0) {
+            // Metrics of a network that was only used for inference
+            labelStatus.setText(String.format("%s - inference, peak off-heap %.0f MB",
+                    metrics.getNetworkName(), metrics.getPeakOffHeapBytes() / (1024.0 * 1024.0)));
+            return;
+        }
+        labelStatus.setText(String.format("%s - epoch %d, %.0f ms/epoch, peak off-heap %.0f MB",
+                metrics.getNetworkName(), metrics.getEpoch(), metrics.getEpochMillis(),
+                metrics.getPeakOffHeapBytes() / (1024.0 * 1024.0)));
+    }
+
+    @SafeVarargs
+    private static void clear (final XYChart.Series<Number, Number>... series) {
+        for (XYChart.Series<Number, Number> s : series) {
+            s.getData().clear();
+        }
+    }
+
+    private static void add (final XYChart.Series<Number, Number> series, final long x, final double y) {
+        series.getData().add(new XYChart.Data<>(x, y));
+    }
+}
@@ -1,41 +1,112 @@
 package qupath.lib.deep_learning;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Collection;
 
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
 import qupath.lib.objects.PathObject;
 
 /**
- * Abstract parent class for the storing of high-level features.
- * 
+ * Abstract parent class for the storing of high-level features. Objects created in bulk keep their
+ * features in a {@link FeatureStore} and only refer to their row in the store; a standalone object
+ * keeps its features in a plain array.
+ *
  * @author Sam Vanmassenhove
  *
  */
 public abstract class AbstractFeatureObject {
-	
-	private PathObject pathObject;
-	private Collection <Double> featureList;
-	
+
+	private final FeatureStore store;
+	private final int row;
+
+	// Only used by standalone objects, which are not in a store
+	private final PathObject pathObject;
+	private final double [] features;
+
+	public AbstractFeatureObject (final FeatureStore store, final int row) {
+		this.store = store;
+		this.row = row;
+		this.pathObject = null;
+		this.features = null;
+	}
+
 	public AbstractFeatureObject (final PathObject pathObject, final Collection <Double> featureList) {
-		this.pathObject = pathObject;
-		this.featureList = featureList;
+		this(pathObject, toArray(featureList));
 	}
-	
+
 	public AbstractFeatureObject (final PathObject pathObject, final double [] features) {
+		this.store = null;
+		this.row = -1;
 		this.pathObject = pathObject;
-		this.featureList = new ArrayList<Double>();
-		
-		for (int i = 0; i < features.length; i++) {
-			featureList.add(features[i]);
+		this.features = features;
+	}
+
+	private static double [] toArray (final Collection <Double> featureList) {
+		double [] features = new double[featureList.size()];
+		int i = 0;
+		for (Double d : featureList) {
+			features[i++] = d;
 		}
+		return features;
 	}
-	
+
+	/**
+	 * Get a read-only view of the features. Values are boxed on access, so prefer
+	 * {@link #getFeature(int)} or {@link #getFeatures()} for bulk work.
+	 */
 	public Collection <Double> getFeatureList () {
-		return this.featureList;
+		return new FeatureList();
+	}
+
+	public double getFeature (final int i) {
+		return store == null ? features[i] : store.get(row, i);
+	}
+
+	/**
+	 * Get the features as a view on the store, or as a new row vector for a standalone object.
+	 */
+	public INDArray getFeatures () {
+		return store == null ? Nd4j.create(features) : store.getRow(row);
+	}
+
+	public int getFeatureCount () {
+		return store == null ? features.length : store.getDimension();
 	}
-	
+
 	public PathObject getPathObject () {
-		return this.pathObject;
+		return store == null ? pathObject : store.getPathObject(row);
+	}
+
+	/**
+	 * Get the store holding the features, or null for a standalone object.
+	 */
+	public FeatureStore getStore () {
+		return store;
+	}
+
+	/**
+	 * Get the row of the features in the store, or -1 for a standalone object.
+	 */
+	public int getRow () {
+		return row;
 	}
-	
+
+	private class FeatureList extends AbstractList <Double> {
+
+		@Override
+		public Double get (final int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("Index: " + index);
+			}
+			return getFeature(index);
+		}
+
+		@Override
+		public int size () {
+			return getFeatureCount();
+		}
+	}
+
 }
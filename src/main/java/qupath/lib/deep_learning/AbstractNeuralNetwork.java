@@ -4,22 +4,26 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
-import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
 import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.optimize.api.IterationListener;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
-import org.nd4j.linalg.dataset.api.preprocessor.NormalizerMinMaxScaler;
-import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import qupath.lib.gui.QuPathGUI;
+import qupath.lib.objects.PathObject;
 
 /**
  * Abstract parent class for all neural network implementations using DL4J. This class should
@@ -35,61 +39,245 @@ public abstract class AbstractNeuralNetwork <T extends PathDataSet> {
 	
 	protected static final Logger logger = LoggerFactory.getLogger(AbstractNeuralNetwork.class);
 	protected static final int seed = 123; // Random number generator seed so results can be reproduced
+	public static final int DEFAULT_BATCH_SIZE = 128;
 
 	// The appendix 'Set' is used here because it's a common term in the literature;
 	// not because the data structure is a collections.Set
 	protected List <T> trainingSet;
 	protected List <T> testSet;
 
+	// All samples given to the network; the training and test sets are index views on these
+	protected List <T> samples;
+	protected TrainTestSplit split;
+	private TrainTestSplit.Fold fold;
+	private List <T> splitSamples;
+	private INDArray splitFeatures;
+	// Row of splitFeatures holding the features of every split sample, or null if they are in sample order
+	private int [] splitFeatureRows;
+	private INDArray splitLabels;
+
 	protected MultiLayerConfiguration conf;
 	protected MultiLayerNetwork model;
 	protected Evaluation eval;
+	protected TrainingMetrics metrics;
+	// Iterations between two scores logged by the score listener, as set by createModel
+	protected int printScoreIterations = 10;
 
 	protected DataSetIterator trainingSetIter;
 	protected DataSetIterator testSetIter;
+	// Part of the training samples held out for early stopping, so the test set stays unseen
+	protected DataSetIterator validationSetIter;
+	protected int batchSize;
 
 	protected DataNormalization normalization;
+	protected NormalizationMethod normalizationMethod;
+
+	// Names of the measurements the samples were converted from, stored with the model
+	protected List <String> measurementNames;
+
+	// Normalization statistics, gathered while the training minibatches are assembled
+	protected StreamingNormalizer statistics = new StreamingNormalizer();
+
+	// Prefetching is disabled while the queue depth is zero
+	protected int prefetchQueueDepth = 0;
+	protected int prefetchWorkers = 1;
+
+	// Data-parallel training is used when there is more than one worker
+	protected int trainingWorkers = 1;
+	protected int averagingFrequency = 5;
+
+	// Off-heap memory budget and the workspace mode used by the model for training and inference
+	protected MemoryBudget memoryBudget = new MemoryBudget(0);
+	protected WorkspaceMode workspaceMode = WorkspaceMode.SEPARATE;
+
+	private static final String WORKSPACE_ID = "DL4J_NETWORK_OUTPUT";
+
+	// Number of epochs the model was trained, including those of a checkpoint it was resumed from
+	protected int epoch = 0;
+
+	// Early stopping is disabled while the patience is zero
+	protected int earlyStoppingPatience = 0;
+	protected double earlyStoppingMinImprovement = 0;
+	protected double validationFraction = 0.1;
+	private double bestScore;
+	private int bestEpoch;
+	private INDArray bestParams;
+	private INDArray bestUpdaterState;
+
+	// Checkpoints are written every checkpointFrequency epochs if a writer was set
+	protected CheckpointWriter checkpointWriter;
+	protected int checkpointFrequency = 1;
 
-	protected enum NormalizationMethod {
+	public enum NormalizationMethod {
 	    MinMax,
         Standardize
     }
 	
 	/**
-	 * Constructor loads a list of samples to feed into the network.
+	 * Constructor loads a list of samples to feed into the network, using the default batch size.
 	 * @param sampleList List of all samples to feed the network
 	 */
 	public AbstractNeuralNetwork (final List <T> sampleList) {
+		this(sampleList, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Constructor loads a list of samples to feed into the network. The samples are merged into
+	 * minibatches once; the same minibatches are used in every epoch.
+	 * @param sampleList List of all samples to feed the network
+	 * @param batchSize Number of samples in a minibatch
+	 */
+	public AbstractNeuralNetwork (final List <T> sampleList, final int batchSize) {
 
 		// Put all data in the training set
+		this.batchSize = Math.max(1, batchSize);
+		this.samples = sampleList;
 		this.trainingSet = sampleList;
-		this.trainingSetIter = new ListDataSetIterator<T>(sampleList);
+		this.trainingSetIter = mergeMinibatches(sampleList, this.batchSize, statistics);
+	}
+
+	/**
+	 * Merge samples into minibatches, normalized with the current normalizer. Without a normalizer the
+	 * missing values stay NaN until the minibatches are used, so they can still be normalized later.
+	 */
+	private MinibatchDataSetIterator mergeMinibatches (final List <T> samples, final int size, final StreamingNormalizer statistics) {
+		if (normalization != null) {
+			return new MinibatchDataSetIterator(samples, size, statistics, MissingValues.preProcessor(normalization));
+		}
+		MinibatchDataSetIterator iterator = new MinibatchDataSetIterator(samples, size, statistics, null);
+		iterator.setPreProcessor(MissingValues.preProcessor(null));
+		return iterator;
 	}
 
 	/**
 	 * Split the data into a training set and a set for testing. The testing set will
 	 * not be used to train the model and will act as unseen data for the evaluation.
 	 *
-	 * @param trainPercentage Percentage of the data to use for training, the rest will
-	 *                        be used for testing.
+	 * Every class is split in the same proportion, and the same seed always gives the same split.
+	 * The samples are not copied or reordered: the sets are index views on the sample list, and the
+	 * iterators gather their minibatches from one shared feature matrix.
+	 *
+	 * @param trainFraction Fraction (0 - 1) of the data to use for training, the rest will be used for testing.
+	 */
+	public void splitTrainTest (final double trainFraction) {
+		useFold(getSplit().split(trainFraction));
+		logger.info("Split data into {} training and {} testing samples.", trainingSet.size(), testSet.size());
+	}
+
+	/**
+	 * Split the data into a training set and a set for testing, see {@link #splitTrainTest(double)}.
+	 *
+	 * @param trainPercentage Percentage (0 - 100) of the data to use for training, the rest will be used for testing.
+	 */
+	public void splitTrainTestPercent (final double trainPercentage) {
+		useFold(getSplit().splitPercent(trainPercentage));
+		logger.info("Split data into {} training and {} testing samples.", trainingSet.size(), testSet.size());
+	}
+
+	/**
+	 * Use one fold of k-fold cross-validation as training and testing data. The folds are stratified by
+	 * class; moving to another fold only replaces the indices of the existing iterators.
+	 *
+	 * @param fold Index of the fold used for testing, from 0 to foldCount - 1.
+	 * @param foldCount Number of folds.
+	 */
+	public void selectFold (final int fold, final int foldCount) {
+		useFold(getSplit().fold(fold, foldCount));
+	}
+
+	/**
+	 * Get the stratified permutation of the samples used for splitting; samples without features are
+	 * left out. The iterators gather from the matrix the sample features are row views on (e.g. the
+	 * {@link MeasurementMatrix} they were converted into); only features that do not share one matrix
+	 * are copied into a new one.
+	 */
+	public TrainTestSplit getSplit () {
+
+		if (split == null) {
+			splitSamples = samples;
+			for (T sample : samples) {
+				if (sample.getFeatures() == null) {
+					splitSamples = new ArrayList<>(samples.size());
+					for (T s : samples) {
+						if (s.getFeatures() != null) {
+							splitSamples.add(s);
+						}
+					}
+					break;
+				}
+			}
+			if (splitSamples.isEmpty()) {
+				throw new IllegalStateException("There are no samples with features to split");
+			}
+			IndexedDataSetIterator.SharedRows shared = IndexedDataSetIterator.findFeatureRows(splitSamples);
+			if (shared != null) {
+				splitFeatures = shared.getMatrix();
+				splitFeatureRows = shared.getRows();
+			}
+			else {
+				logger.info("The sample features are not views on one matrix - copying them for the split.");
+				List <INDArray> features = new ArrayList<>(splitSamples.size());
+				for (T sample : splitSamples) {
+					features.add(sample.getFeatures());
+				}
+				splitFeatures = Nd4j.concat(0, features.toArray(new INDArray[0]));
+				splitFeatureRows = null;
+			}
+			splitLabels = mergeLabels(splitSamples);
+			split = new TrainTestSplit(splitSamples, seed);
+		}
+		return split;
+	}
+
+	/**
+	 * Stack the labels of the samples, one row per sample; null if a sample has no labels.
 	 */
-	public void splitTrainTest (final double trainPercentage) {
+	private static INDArray mergeLabels (final List <? extends PathDataSet> samples) {
+		List <INDArray> labels = new ArrayList<>(samples.size());
+		for (PathDataSet sample : samples) {
+			if (sample.getLabels() == null) {
+				return null;
+			}
+			labels.add(sample.getLabels());
+		}
+		return Nd4j.vstack(labels);
+	}
 
-		// Shuffle the training list randomly
-		Collections.shuffle(trainingSet, new Random(seed));
+	private void useFold (final TrainTestSplit.Fold fold) {
 
-		// Now split the list in two
-		testSet = testSet.subList((int) trainPercentage*trainingSet.size(), trainingSet.size()-1);
-		trainingSet = trainingSet.subList(0, (int) trainPercentage*trainingSet.size());
+		this.fold = fold;
+		int [] trainIndices = fold.getTrainIndices();
+		int [] validationIndices = null;
+		if (earlyStoppingPatience > 0) {
+			TrainTestSplit.Fold validation = split.holdOut(trainIndices, validationFraction);
+			trainIndices = validation.getTrainIndices();
+			validationIndices = validation.getTestIndices();
+		}
 
-		// Create iterators
-		testSetIter = new ListDataSetIterator<T>(testSet);
-		trainingSetIter = new ListDataSetIterator<T>(trainingSet);
+		trainingSet = TrainTestSplit.select(splitSamples, trainIndices);
+		testSet = TrainTestSplit.select(splitSamples, fold.getTestIndices());
 
-		// Normalize if a normalization method was set
-		if (normalization == null) {
-			testSetIter.setPreProcessor(normalization);
-			trainingSetIter.setPreProcessor(normalization);
+		if (trainingSetIter instanceof IndexedDataSetIterator && testSetIter instanceof IndexedDataSetIterator) {
+			((IndexedDataSetIterator) trainingSetIter).setIndices(trainIndices);
+			((IndexedDataSetIterator) testSetIter).setIndices(fold.getTestIndices());
+		}
+		else {
+			// Every minibatch is gathered into a new array, so it is normalized as it is created
+			trainingSetIter = new IndexedDataSetIterator(splitFeatures, splitLabels, splitFeatureRows, trainIndices, batchSize);
+			testSetIter = new IndexedDataSetIterator(splitFeatures, splitLabels, splitFeatureRows, fold.getTestIndices(), batchSize);
+			trainingSetIter.setPreProcessor(MissingValues.preProcessor(normalization));
+			testSetIter.setPreProcessor(MissingValues.preProcessor(normalization));
+		}
+
+		if (validationIndices == null) {
+			validationSetIter = null;
+		}
+		else if (validationSetIter instanceof IndexedDataSetIterator) {
+			((IndexedDataSetIterator) validationSetIter).setIndices(validationIndices);
+		}
+		else {
+			validationSetIter = new IndexedDataSetIterator(splitFeatures, splitLabels, splitFeatureRows, validationIndices, batchSize);
+			validationSetIter.setPreProcessor(MissingValues.preProcessor(normalization));
 		}
 	}
 	
@@ -103,18 +291,33 @@ public abstract class AbstractNeuralNetwork <T extends PathDataSet> {
 			return;
 		}
 
+		// Let the model reuse its native buffers between iterations, instead of leaving their release to the GC
+		conf.setTrainingWorkspaceMode(workspaceMode);
+		conf.setInferenceWorkspaceMode(workspaceMode == WorkspaceMode.NONE ? WorkspaceMode.NONE : WorkspaceMode.SINGLE);
+
 		// Create the actual model
 		model = new MultiLayerNetwork(conf);
 		model.init();
-		ScoreIterationListener scoreListener = new ScoreIterationListener(printScoreIterations);
-		model.setListeners(Arrays.asList((IterationListener) scoreListener));
+		this.printScoreIterations = printScoreIterations;
+		setTrainingListeners();
 
 		logger.info("Created neural network model.");
 	}
 
 	/**
-	 * Set and apply the normalization algorithm to be used in the model. Normalization must be called
-	 * before splitting the data set into training and testing data.
+	 * Let the model log its score and report to the training metrics.
+	 */
+	private void setTrainingListeners () {
+		ScoreIterationListener scoreListener = new ScoreIterationListener(printScoreIterations);
+		model.setListeners(Arrays.asList((IterationListener) scoreListener, getMetrics()));
+	}
+
+	/**
+	 * Set and apply the normalization algorithm to be used in the model.
+	 *
+	 * The normalizer is created from the statistics gathered when the samples were merged into
+	 * minibatches (and any statistics merged in with {@link #mergeStatistics}), so no extra pass over
+	 * the data is needed.
 	 *
 	 * @param method The normalization method used
 	 */
@@ -122,15 +325,50 @@ public abstract class AbstractNeuralNetwork <T extends PathDataSet> {
 
 		logger.info("Normalizing data...");
 
-	    if (method.equals(NormalizationMethod.MinMax)) {
-            normalization = new NormalizerMinMaxScaler();
-        }
-        else if (method.equals(NormalizationMethod.Standardize)) {
-	        normalization = new NormalizerStandardize();
-        }
+		if (statistics.isEmpty()) {
+			logger.info("No statistics available - data was not normalized.");
+			return;
+		}
+		normalization = statistics.toDataNormalization(method);
+		normalizationMethod = method;
 
-		// Fit the normalizer to the given data
-		normalization.fit(trainingSetIter);
+		applyNormalization();
+	}
+
+	/**
+	 * Let the iterators normalize their data with the current normalizer, see {@link MissingValues}.
+	 */
+	private void applyNormalization () {
+		if (trainingSetIter instanceof MinibatchDataSetIterator) {
+			// Transform the merged minibatches once, rather than in every epoch
+			MissingValues.Imputer imputer = MissingValues.preProcessor(normalization);
+			((MinibatchDataSetIterator) trainingSetIter).preProcessAll(imputer);
+			trainingSetIter.setPreProcessor(null);
+			if (imputer.getReplacedCount() > 0) {
+				logger.info("{} missing values in the training data were replaced after normalization", imputer.getReplacedCount());
+			}
+		}
+		else {
+			trainingSetIter.setPreProcessor(MissingValues.preProcessor(normalization));
+		}
+		if (testSetIter != null) {
+			testSetIter.setPreProcessor(MissingValues.preProcessor(normalization));
+		}
+		if (validationSetIter != null) {
+			validationSetIter.setPreProcessor(MissingValues.preProcessor(normalization));
+		}
+	}
+
+	/**
+	 * Merge normalization statistics gathered elsewhere (e.g. on other slides) into the statistics of
+	 * this network. Must be called before {@link #normalize}.
+	 */
+	public void mergeStatistics (final StreamingNormalizer other) {
+		statistics.merge(other);
+	}
+
+	public StreamingNormalizer getStatistics () {
+		return statistics;
 	}
 
 	/**
@@ -153,13 +391,412 @@ public abstract class AbstractNeuralNetwork <T extends PathDataSet> {
 		}
 		
 		logger.info("Training model...");
-		
-		for (int i = 0; i < epochCount; i++) {
-			model.fit(trainingSetIter);
+		applyMemoryBudget();
+		bestScore = Double.POSITIVE_INFINITY;
+		bestParams = null;
+		bestUpdaterState = null;
+
+		// The metrics are visible through JMX while the network is training
+		getMetrics().register();
+		try {
+			if (trainingWorkers > 1) {
+				fitParallel(epochCount);
+			}
+			else if (prefetchQueueDepth > 0) {
+				fitPrefetched(epochCount);
+			}
+			else {
+				for (int i = 0; i < epochCount; i++) {
+					trainingSetIter.reset();
+					fitEpoch(trainingSetIter);
+					if (!epochDone()) {
+						break;
+					}
+				}
+			}
+		} finally {
+			metrics.unregister();
+		}
+
+		if (bestParams != null) {
+			// Restore the updater state as well, so training can continue from the best epoch
+			logger.info("Restoring the model of epoch {} with validation score {}", bestEpoch, bestScore);
+			model.setParams(bestParams);
+			if (bestUpdaterState != null) {
+				model.getUpdater().setStateViewArray(model, bestUpdaterState, false);
+			}
+			bestParams = null;
+			bestUpdaterState = null;
+		}
+		if (checkpointWriter != null) {
+			checkpointWriter.flush();
 		}
 		
+		memoryBudget.sample();
+		logger.info("Model was trained - peak off-heap memory {} MB", MemoryBudget.toMegabytes(getPeakOffHeapBytes()));
+	}
+
+	/**
+	 * Reduce the batch size if training on minibatches of the current size would exceed the memory budget.
+	 * Data-parallel training holds a copy of the network per worker, which is included in the estimate.
+	 */
+	private void applyMemoryBudget () {
+
+		if (!memoryBudget.isLimited() || conf == null) {
+			return;
+		}
+		int workers = Math.max(1, trainingWorkers);
+		MemoryBudget perWorker = new MemoryBudget(memoryBudget.getMaxBytes() / workers);
+		int size = perWorker.fitBatchSize(conf, batchSize);
+		if (size < batchSize) {
+			logger.warn("Minibatches of {} samples exceed the memory budget of {} MB - reducing the batch size to {}.",
+					batchSize, MemoryBudget.toMegabytes(memoryBudget.getMaxBytes()), size);
+			setBatchSize(size);
+		}
+	}
+
+	/**
+	 * Change the batch size, merging the samples into new minibatches. The statistics were gathered
+	 * already; the minibatches are normalized again while they are assembled if a normalizer was set.
+	 */
+	public void setBatchSize (final int batchSize) {
+
+		int size = Math.max(1, batchSize);
+		if (size == this.batchSize) {
+			return;
+		}
+		this.batchSize = size;
+		if (trainingSetIter instanceof IndexedDataSetIterator) {
+			((IndexedDataSetIterator) trainingSetIter).setBatchSize(size);
+			((IndexedDataSetIterator) testSetIter).setBatchSize(size);
+			if (validationSetIter instanceof IndexedDataSetIterator) {
+				((IndexedDataSetIterator) validationSetIter).setBatchSize(size);
+			}
+			return;
+		}
+		trainingSetIter = mergeMinibatches(trainingSet, size, null);
+	}
+
+	/**
+	 * Limit the off-heap memory used by the network. The batch size is reduced before training if a
+	 * minibatch would not fit, and the inference workspaces are sized to the budget.
+	 *
+	 * @param maxBytes Maximum number of off-heap bytes; 0 or less removes the limit.
+	 */
+	public void setMemoryBudget (final long maxBytes) {
+		this.memoryBudget = new MemoryBudget(maxBytes);
+	}
+
+	public MemoryBudget getMemoryBudget () {
+		return memoryBudget;
+	}
+
+	/**
+	 * Set how the model uses ND4J workspaces. Must be called before {@link #createModel(int)}.
+	 * SEPARATE (the default) uses separate workspaces for the feed-forward and backpropagation arrays,
+	 * SINGLE shares one workspace and NONE disables workspaces.
+	 */
+	public void setWorkspaceMode (final WorkspaceMode workspaceMode) {
+		this.workspaceMode = workspaceMode;
+	}
+
+	/**
+	 * Get the highest off-heap memory usage seen while training or running this network.
+	 */
+	public long getPeakOffHeapBytes () {
+		return Math.max(memoryBudget.getPeakBytes(), metrics == null ? 0 : metrics.getPeakOffHeapBytes());
+	}
+
+	/**
+	 * Create the configuration of the workspace in which the minibatches are passed through the network.
+	 */
+	private WorkspaceConfiguration createWorkspaceConfiguration () {
+		return memoryBudget.createWorkspaceConfiguration(model.getLayerWiseConfigurations(), batchSize);
+	}
+
+	/**
+	 * Called after every epoch: checks the validation score for early stopping and queues a checkpoint.
+	 *
+	 * @return False if training should stop.
+	 */
+	private boolean epochDone () {
+
+		epoch++;
+		boolean proceed = true;
+
+		if (earlyStoppingPatience > 0) {
+			double score = validationScore();
+			if (Double.isNaN(score)) {
+				logger.warn("No validation data - early stopping is not possible. Split the data first.");
+			}
+			else if (score < bestScore - earlyStoppingMinImprovement) {
+				bestScore = score;
+				bestEpoch = epoch;
+				bestParams = model.params().dup();
+				INDArray updaterState = model.getUpdater() == null ? null : model.getUpdater().getStateViewArray();
+				bestUpdaterState = updaterState == null ? null : updaterState.dup();
+				if (checkpointWriter != null) {
+					checkpointWriter.writeBest(model, normalization, measurementNames, epoch);
+				}
+				logger.info("Epoch {}: validation score improved to {}", epoch, score);
+			}
+			else {
+				logger.info("Epoch {}: validation score {} did not improve on {} (epoch {})", epoch, score, bestScore, bestEpoch);
+				if (epoch - bestEpoch >= earlyStoppingPatience) {
+					logger.info("Stopping early after {} epochs without improvement", epoch - bestEpoch);
+					proceed = false;
+				}
+			}
+		}
+
+		if (checkpointWriter != null && epoch % checkpointFrequency == 0) {
+			checkpointWriter.write(model, normalization, measurementNames, epoch);
+		}
+		return proceed;
+	}
+
+	/**
+	 * Get the average score (loss) of the model on the validation samples held out of the training set,
+	 * or NaN if there are none. The test set is never used, so it stays unseen until {@link #evaluateModel()}.
+	 */
+	public double validationScore () {
+
+		if (validationSetIter == null || validationSetIter.totalExamples() == 0) {
+			return Double.NaN;
+		}
+		double sum = 0;
+		long examples = 0;
+		validationSetIter.reset();
+		while (validationSetIter.hasNext()) {
+			DataSet batch = validationSetIter.next();
+			sum += model.score(batch) * batch.numExamples();
+			examples += batch.numExamples();
+		}
+		return examples == 0 ? Double.NaN : sum / examples;
+	}
+
+	/**
+	 * Stop training when the score on the validation samples has not improved for a number of epochs.
+	 * The validation samples are held out of the training samples of the split (see
+	 * {@link #setValidationFraction(double)}). The model and updater state of the epoch with the best
+	 * score are restored when training ends.
+	 *
+	 * @param patience Number of epochs without improvement before training stops; 0 disables early stopping.
+	 * @param minImprovement Smallest decrease of the score counted as an improvement.
+	 */
+	public void setEarlyStopping (final int patience, final double minImprovement) {
+		this.earlyStoppingPatience = Math.max(0, patience);
+		this.earlyStoppingMinImprovement = Math.max(0, minImprovement);
+		if (fold != null) {
+			useFold(fold);
+		}
+	}
+
+	/**
+	 * Set the fraction of the training samples of every class held out for early stopping (0.1 by default).
+	 */
+	public void setValidationFraction (final double validationFraction) {
+		this.validationFraction = Math.min(1, Math.max(0, validationFraction));
+		if (fold != null) {
+			useFold(fold);
+		}
+	}
+
+	/**
+	 * Write checkpoints of the model (with its updater and normalizer) during training. They are written
+	 * by a background thread, so training continues while a checkpoint is being saved.
+	 *
+	 * @param directory Directory receiving the checkpoints; null disables checkpointing.
+	 * @param frequency Number of epochs between two checkpoints.
+	 * @param keep Number of most recent checkpoints kept on disk.
+	 */
+	public void setCheckpointing (final File directory, final int frequency, final int keep) {
+		if (checkpointWriter != null) {
+			checkpointWriter.shutdown();
+		}
+		this.checkpointWriter = directory == null ? null : new CheckpointWriter(directory, keep);
+		this.checkpointFrequency = Math.max(1, frequency);
+	}
+
+	/**
+	 * Continue from the most recent checkpoint in a directory: the model, its updater state, the
+	 * normalizer and the input measurement names are restored, and the model gets the same listeners
+	 * as one made by {@link #createModel(int)}. Train the epochs that are left with {@link #fitModel(int)}.
+	 *
+	 * @param directory Directory holding the checkpoints.
+	 * @return Number of epochs the checkpoint was trained for, or 0 if no checkpoint was found.
+	 * @throws IOException
+	 * @throws IllegalStateException if the samples were converted from other measurements than the checkpoint was trained on.
+	 */
+	public int resumeFromCheckpoint (final File directory) throws IOException {
+
+		File checkpoint = CheckpointWriter.getLatestCheckpoint(directory);
+		if (checkpoint == null) {
+			logger.info("No checkpoint found in {}", directory);
+			return 0;
+		}
+
+		List <String> names = ModelMeasurements.read(checkpoint);
+		if (names != null && measurementNames != null && !names.equals(measurementNames)) {
+			throw new IllegalStateException("The checkpoint " + checkpoint + " was trained on other measurements than the samples");
+		}
+
+		model = ModelSerializer.restoreMultiLayerNetwork(checkpoint, true);
+		setTrainingListeners();
+		conf = model.getLayerWiseConfigurations();
+		if (names != null) {
+			measurementNames = names;
+		}
+		DataNormalization restored;
+		try {
+			restored = ModelSerializer.restoreNormalizerFromFile(checkpoint);
+		} catch (Exception e) {
+			restored = null;
+		}
+		// Data that was normalized already used statistics of the same samples
+		if (normalization == null && restored != null) {
+			normalization = restored;
+			applyNormalization();
+		}
+
+		epoch = CheckpointWriter.getEpoch(checkpoint);
+		logger.info("Resumed from {} after {} epochs", checkpoint, epoch);
+		return epoch;
+	}
+
+	/**
+	 * Get the number of epochs the model was trained.
+	 */
+	public int getEpoch () {
+		return epoch;
+	}
+
+	/**
+	 * Train a single epoch, recording the training metrics.
+	 */
+	private void fitEpoch (final DataSetIterator iterator) {
+		TrainingMetrics metrics = getMetrics();
+		metrics.epochStarted();
+		model.fit(metrics.wrap(iterator));
+		metrics.epochFinished();
+	}
+
+	/**
+	 * Get the training metrics of this network. They are registered with JMX only while the network is
+	 * training, so networks that are done do not leave beans behind.
+	 */
+	public TrainingMetrics getMetrics () {
+		if (metrics == null) {
+			metrics = new TrainingMetrics(getName());
+		}
+		return metrics;
+	}
+
+	/**
+	 * Train while the minibatches are prepared on background threads.
+	 */
+	private void fitPrefetched (final int epochCount) {
+
+		PrefetchingDataSetIterator iter = new PrefetchingDataSetIterator(trainingSetIter, prefetchQueueDepth, prefetchWorkers);
+		iter.setMetrics(getMetrics());
+		try {
+			for (int i = 0; i < epochCount; i++) {
+				if (i > 0) {
+					iter.reset();
+				}
+				fitEpoch(iter);
+
+				logger.info("Epoch {}: trainer waited for data {} times out of {} minibatches ({} ms)",
+						i + 1, iter.getStarvedCount(), iter.getBatchCount(), iter.getStarvedMillis());
+				iter.resetCounters();
+				if (!epochDone()) {
+					break;
+				}
+			}
+		} finally {
+			iter.shutdown();
+		}
+	}
+
+	/**
+	 * Train replicas of the model on several threads, averaging their parameters periodically.
+	 * The merged minibatches are already in memory, so prefetching is not used here.
+	 */
+	private void fitParallel (final int epochCount) {
+
+		ParallelTrainer trainer = new ParallelTrainer(model, trainingWorkers, averagingFrequency);
+		try {
+			TrainingMetrics metrics = getMetrics();
+			List <DataSet> batches = getTrainingBatches();
+			for (int i = 0; i < epochCount; i++) {
+				// The replicas do not report their stages, only the epoch time and throughput are recorded
+				metrics.epochStarted();
+				trainer.fit(batches);
+				metrics.recordSamples(trainingSetIter.totalExamples(), batches.size());
+				metrics.epochFinished();
+				if (!epochDone()) {
+					break;
+				}
+			}
+		} finally {
+			trainer.shutdown();
+		}
+	}
+
+	/**
+	 * Fit the model to the data of another iterator, e.g. a {@link MappedFeatureIterator} over a feature
+	 * cache which is too large to merge into minibatches in memory.
+	 *
+	 * @param iterator Iterator over the training data; it is reset before every epoch. Without a preprocessor
+	 *                 of its own, its minibatches are normalized with the normalizer of this network.
+	 * @param epochCount Amount of times the network will train on the whole dataset.
+	 */
+	public void fitModel (final DataSetIterator iterator, final int epochCount) {
+
+		if (model == null) {
+			logger.info("Model was not initialized - cannot start training.");
+			return;
+		}
+		if (iterator.getPreProcessor() == null) {
+			iterator.setPreProcessor(MissingValues.preProcessor(normalization));
+		}
+
+		logger.info("Training model...");
+		getMetrics().register();
+		try {
+			for (int i = 0; i < Math.max(1, epochCount); i++) {
+				iterator.reset();
+				fitEpoch(iterator);
+			}
+		} finally {
+			metrics.unregister();
+		}
 		logger.info("Model was trained");
 	}
+
+	/**
+	 * Train with several model replicas in parallel (data-parallel training). Each worker trains on its
+	 * own share of the minibatches, after which the parameters of all replicas are averaged.
+	 *
+	 * @param workers Number of replicas trained in parallel; 1 disables parallel training.
+	 * @param averagingFrequency Number of minibatches each worker trains on between averaging steps.
+	 */
+	public void setParallelTraining (final int workers, final int averagingFrequency) {
+		this.trainingWorkers = Math.max(1, workers);
+		this.averagingFrequency = Math.max(1, averagingFrequency);
+	}
+
+	/**
+	 * Prepare the minibatches on background threads while the model is training. This overlaps the data
+	 * preparation (feature conversion, normalization) with the forward and backward passes.
+	 *
+	 * @param queueDepth Maximum number of prepared minibatches waiting for the trainer; 0 disables prefetching.
+	 * @param workers Number of threads preparing minibatches.
+	 */
+	public void setPrefetching (final int queueDepth, final int workers) {
+		this.prefetchQueueDepth = Math.max(0, queueDepth);
+		this.prefetchWorkers = Math.max(1, workers);
+	}
 	
 	/**
 	 * Fit model to the training data.
@@ -189,51 +826,107 @@ public abstract class AbstractNeuralNetwork <T extends PathDataSet> {
 			return;
 		}		
 		// Create the evaluator
+		testSetIter.reset();
 		eval = model.evaluate(testSetIter);
 	
 		logger.info("======== Neural network evaluated ======= \n");
 	}
 	
+	/**
+	 * Set the names of the measurements the samples were converted from, in the order of the features.
+	 * They are stored with the model, so inference uses the same measurements.
+	 */
+	public void setMeasurementNames (final List <String> measurementNames) {
+		this.measurementNames = measurementNames == null ? null : Collections.unmodifiableList(new ArrayList<>(measurementNames));
+	}
+
+	/**
+	 * Get the names of the input measurements, or null if they are not known.
+	 */
+	public List <String> getMeasurementNames () {
+		return measurementNames;
+	}
+
 	/**
 	 * Use DL4J functionality to store the trained model on the disk for later use. Should be stored as a zip file.
+	 * The updater is always stored, so the model can be trained again once reloaded, and so are the fitted
+	 * normalizer and the input measurement names, so inference uses the same inputs and normalization.
 	 *
+	 * @param file File to write to.
 	 * @throws IOException 
 	 */
-	public void saveModel () throws IOException {
+	public void saveModel (final File file) throws IOException {
 
 		if (model == null) {
 			logger.info("Model was not instantiated - could not be saved.");
 			return;
 		}
-		
-		// Get a file to save to: qupath.getDialogHelper
-		File saveFile = QuPathGUI.getInstance().getDialogHelper().promptToSaveFile("Save the neural network", new File("..\\"), "NeuralNetwork", null , "zip");
 
-		if (saveFile == null) {
-			logger.info("No location selected - file was not saved !");
+		ModelSerializer.writeModel(model, file, true);
+		if (normalization != null) {
+			ModelSerializer.addNormalizerToModel(file, normalization);
+		}
+		if (measurementNames != null) {
+			ModelMeasurements.write(file, measurementNames);
+		}
+		else {
+			logger.warn("The input measurement names are not known - set them before saving, or inference has to guess them.");
+		}
+		logger.info("Saved the model to {}", file);
+	}
+
+	/**
+	 * Store the trained model in the uncompressed {@link FastModelFormat}, which loads much faster than
+	 * the zip file for large networks.
+	 *
+	 * @param directory Directory to write to.
+	 * @param measurementNames Names of the input measurements, stored with the model; null stores the
+	 *                         names set with {@link #setMeasurementNames(List)}.
+	 * @param includeUpdater Whether to store the updater state; only needed to train the model again.
+	 * @throws IOException
+	 */
+	public void exportModel (final File directory, final List <String> measurementNames, final boolean includeUpdater) throws IOException {
+
+		if (model == null) {
+			logger.info("Model was not instantiated - could not be saved.");
 			return;
 		}
-		
-		ModelSerializer.writeModel(model, saveFile, true); // Always save the updater (this is the extra boolean) so model can be trained again once reloaded.
+
+		FastModelFormat.write(directory, model, normalization,
+				measurementNames != null ? measurementNames : this.measurementNames, includeUpdater);
 	}
 	
 	/**
-	 * Load a trained model from a previous project from the disk. Will always be a zip file.
+	 * Load a trained model from the disk, together with the normalizer and measurement names stored with it.
+	 * Either a zip file, or a directory written by {@link #exportModel(File, List, boolean)}.
 	 * 
+	 * @param file File saved with {@link #saveModel(File)} or {@link #exportModel(File, List, boolean)}.
 	 * @throws IOException
 	 */
-	public void loadModel () throws IOException {
-		
-		// Open a filechooser to select the model.
-		File loadFile = QuPathGUI.getInstance().getDialogHelper().promptForFile("Load neural network", null, "zip");
-		
-		if (loadFile == null) {
-			logger.info("No file selected - nothing was loaded !");
-			return;
+	public void loadModel (final File file) throws IOException {
+
+		if (FastModelFormat.isFastModel(file)) {
+			FastModelFormat.LoadedModel loaded = FastModelFormat.read(file, true);
+			model = loaded.getModel();
+			normalization = loaded.getNormalization();
+			measurementNames = loaded.getMeasurementNames();
+		}
+		else {
+			model = ModelSerializer.restoreMultiLayerNetwork(file);
+
+			// Restore the normalization if it was stored with the model
+			try {
+				normalization = ModelSerializer.restoreNormalizerFromFile(file);
+			} catch (Exception e) {
+				logger.info("No normalizer found in {}", file);
+				normalization = null;
+			}
+			measurementNames = ModelMeasurements.read(file);
 		}
 
 		// Set the current model to this newly loaded model
-		model = ModelSerializer.restoreMultiLayerNetwork(loadFile);
+		model.setListeners(getMetrics());
+		conf = model.getLayerWiseConfigurations();
 	}
 	
 	/**
@@ -241,16 +934,112 @@ public abstract class AbstractNeuralNetwork <T extends PathDataSet> {
 	 * @param sample
 	 */
 	public INDArray output (T sample) {
-		return model.output(sample.getFeatureMatrix());
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(createWorkspaceConfiguration(), WORKSPACE_ID)) {
+			INDArray features = sample.getFeatureMatrix().dup();
+			MissingValues.prepare(features, normalization);
+			return model.output(features).detach();
+		}
 	}
 
 	/**
-	 * Get output from the model for a list of samples
+	 * Get output from the model for a list of samples. The samples are merged into minibatches of
+	 * the network's batch size, and the outputs are returned in the same order as the samples.
 	 * @param sampleList
+	 * @throws IllegalArgumentException if a sample has no features, as its row would be missing from the output.
 	 */
 	public INDArray output (List <T> sampleList) {
-		DataSetIterator iter = new ListDataSetIterator<T>(sampleList);
-		return model.output(iter);
+		for (int i = 0; i < sampleList.size(); i++) {
+			if (sampleList.get(i).getFeatures() == null) {
+				throw new IllegalArgumentException("Sample " + i + " has no features - convert the features of all samples first");
+			}
+		}
+		List <DataSet> batches = MinibatchDataSetIterator.merge(sampleList, batchSize);
+		for (DataSet batch : batches) {
+			MissingValues.prepare(batch.getFeatures(), normalization);
+		}
+		return outputBatches(batches);
+	}
+
+	/**
+	 * Get the output from the model for the whole training set, reusing the merged minibatches.
+	 */
+	public INDArray outputTrainingSet () {
+		return outputBatches(getTrainingBatches());
+	}
+
+	/**
+	 * Get the normalized minibatches of the training set. Merged minibatches are returned as they are,
+	 * those of a split are gathered once.
+	 */
+	protected List <DataSet> getTrainingBatches () {
+		if (trainingSetIter instanceof MinibatchDataSetIterator) {
+			// Minibatches that are not normalized have their missing values replaced as they are used
+			MinibatchDataSetIterator minibatches = (MinibatchDataSetIterator) trainingSetIter;
+			if (minibatches.getPreProcessor() != null) {
+				for (DataSet batch : minibatches.getBatches()) {
+					minibatches.getPreProcessor().preProcess(batch);
+				}
+			}
+			return minibatches.getBatches();
+		}
+		List <DataSet> batches = new ArrayList<>();
+		trainingSetIter.reset();
+		while (trainingSetIter.hasNext()) {
+			batches.add(trainingSetIter.next());
+		}
+		return batches;
+	}
+
+	/**
+	 * Pass normalized minibatches through the network one at a time. The intermediate arrays of each
+	 * minibatch live in a workspace that is reused for the next one; only the outputs are detached.
+	 */
+	private INDArray outputBatches (final List <DataSet> batches) {
+		WorkspaceConfiguration config = createWorkspaceConfiguration();
+		List <INDArray> outputs = new ArrayList<>(batches.size());
+		for (DataSet batch : batches) {
+			try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(config, WORKSPACE_ID)) {
+				outputs.add(model.output(batch.getFeatures()).detach());
+			}
+			memoryBudget.sample();
+		}
+		return Nd4j.vstack(outputs);
+	}
+
+	public int getBatchSize () {
+		return batchSize;
+	}
+
+	public MultiLayerConfiguration getConfiguration () {
+		return conf;
+	}
+
+	/**
+	 * Get the normalization method set with {@link #normalize}, or null if the data is not normalized.
+	 */
+	public NormalizationMethod getNormalizationMethod () {
+		return normalizationMethod;
+	}
+
+	/**
+	 * Get the feature matrix shared by the training and testing iterators of a split, see {@link #getSplitFeatureRows()}.
+	 */
+	INDArray getSplitFeatures () {
+		getSplit();
+		return splitFeatures;
+	}
+
+	/**
+	 * Get the row of the split features holding each sample, or null if the rows are in sample order.
+	 */
+	int [] getSplitFeatureRows () {
+		getSplit();
+		return splitFeatureRows;
+	}
+
+	INDArray getSplitLabels () {
+		getSplit();
+		return splitLabels;
 	}
 	
 	/**
@@ -269,11 +1058,82 @@ public abstract class AbstractNeuralNetwork <T extends PathDataSet> {
 	 * @return List of the activations of the layer up to the requested layer.
 	 */
 	public List<INDArray> feedForwardActivation (final int layer, final T sample) {
-		INDArray normalized = sample.getFeatureMatrix();
-		normalization.transform(normalized);
+		// Normalize a copy, the features of the sample must not change
+		INDArray normalized = sample.getFeatureMatrix().dup();
+		MissingValues.prepare(normalized, normalization);
 		return model.feedForwardToLayer(layer, normalized);
 	}
 
+	/**
+	 * Extract the activations of a single layer for many samples and store them in a new feature store.
+	 *
+	 * @param layer Index of the layer whose activations are used as features.
+	 * @param samples The samples, not yet normalized.
+	 * @return Store with one row per sample.
+	 */
+	public FeatureStore extractFeatures (final int layer, final List <T> samples) {
+		FeatureStore store = new FeatureStore(samples.size(), getLayerSize(layer));
+		extractFeatures(layer, samples, store);
+		return store;
+	}
+
+	/**
+	 * Extract the activations of a single layer for many samples, in minibatches of the network's batch size.
+	 * Each minibatch is copied and normalized into one reused scratch buffer, only the layers up to the
+	 * requested one are activated, and the activations are written straight into the feature store.
+	 *
+	 * @param layer Index of the layer whose activations are used as features.
+	 * @param samples The samples, not yet normalized; they are not changed.
+	 * @param store Store receiving one new row per sample, in the order of the samples; also for samples
+	 *              without a PathObject or sharing one.
+	 */
+	public void extractFeatures (final int layer, final List <T> samples, final FeatureStore store) {
+
+		if (samples.isEmpty()) {
+			return;
+		}
+
+		// Rows are assigned by sample index
+		List <PathObject> pathObjects = new ArrayList<>(samples.size());
+		for (T sample : samples) {
+			pathObjects.add(sample.getPathObject());
+		}
+		final int firstRow = store.addAll(pathObjects);
+
+		int nIn = samples.get(0).getFeatures().columns();
+		INDArray scratch = Nd4j.create(Math.min(batchSize, samples.size()), nIn);
+		WorkspaceConfiguration config = createWorkspaceConfiguration();
+
+		for (int start = 0; start < samples.size(); start += batchSize) {
+			int n = Math.min(batchSize, samples.size() - start);
+			INDArray input = n == scratch.rows() ? scratch : scratch.get(NDArrayIndex.interval(0, n), NDArrayIndex.all());
+
+			for (int i = 0; i < n; i++) {
+				input.putRow(i, samples.get(start + i).getFeatures());
+			}
+			MissingValues.prepare(input, normalization);
+
+			// The activations are copied into the store, so they do not need to outlive the workspace
+			try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(config, WORKSPACE_ID)) {
+				INDArray activation = input;
+				for (int l = 0; l <= layer; l++) {
+					activation = model.activationFromPrevLayer(l, activation, false);
+				}
+				store.set(firstRow + start, activation);
+			}
+			memoryBudget.sample();
+		}
+
+		logger.info("Extracted features of layer {} for {} samples.", layer, samples.size());
+	}
+
+	/**
+	 * Get the number of outputs of a layer.
+	 */
+	public int getLayerSize (final int layer) {
+		return ((FeedForwardLayer) model.getLayer(layer).conf().getLayer()).getNOut();
+	}
+
 	/**
 	 * Return the name of this type of network.
 	 * @return @{@link String} name
@@ -0,0 +1,701 @@
+package qupath.lib.deep_learning;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two-dimensional t-SNE embedding of large feature matrices, using the Barnes-Hut approximation
+ * (van der Maaten, 2014), which takes O(n log n) time per iteration instead of the O(n²) of exact t-SNE.
+ *
+ * The embedding is computed in these steps:
+ * <ol>
+ *     <li>The features are standardized and reduced with a {@link StreamingPCA}.</li>
+ *     <li>At most a fixed number of rows is sampled; only these are embedded directly.</li>
+ *     <li>The nearest neighbours of every sampled row are found with blocked matrix multiplications.</li>
+ *     <li>The input similarities are calibrated to the perplexity on the neighbours only.</li>
+ *     <li>The embedding is optimized by gradient descent. In every iteration a quadtree of the embedding
+ *     approximates the repulsive forces, and the forces on all points are computed in parallel.</li>
+ *     <li>The other rows are placed at the similarity-weighted mean of their nearest sampled neighbours.</li>
+ * </ol>
+ *
+ * All parallel steps use threads leased from the {@link ConcurrencyBudget}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class BarnesHutTSNE {
+
+	private static final Logger logger = LoggerFactory.getLogger(BarnesHutTSNE.class);
+
+	public static final int DEFAULT_MAX_SAMPLES = 20000;
+
+	private static final int EXAGGERATION_ITERATIONS = 250;
+	private static final double EXAGGERATION = 12;
+	private static final double INITIAL_MOMENTUM = 0.5;
+	private static final double FINAL_MOMENTUM = 0.8;
+	private static final double MIN_GAIN = 0.01;
+
+	// Rows per block of the nearest neighbour search, and rows projected at once
+	private static final int KNN_BLOCK = 256;
+	private static final int PROJECTION_BATCH = 65536;
+
+	private double perplexity = 30;
+	private double theta = 0.5;
+	private int iterations = 1000;
+	private double learningRate = 0;
+	private int maxSamples = DEFAULT_MAX_SAMPLES;
+	private int initialDimensions = 50;
+	private long seed = 123;
+	private int threads = ConcurrencyBudget.getInstance().getTotalThreads();
+
+	private int [] sampleRows;
+
+	/**
+	 * Receives the progress of an embedding, from any thread.
+	 */
+	public interface ProgressListener {
+		void update (String message, double fraction);
+	}
+
+	/**
+	 * Set the effective number of neighbours of every point (30 by default).
+	 */
+	public void setPerplexity (final double perplexity) {
+		this.perplexity = Math.max(1, perplexity);
+	}
+
+	/**
+	 * Set the accuracy of the Barnes-Hut approximation: 0 is exact, larger is faster (0.5 by default).
+	 */
+	public void setTheta (final double theta) {
+		this.theta = Math.max(0, theta);
+	}
+
+	public void setIterations (final int iterations) {
+		this.iterations = Math.max(1, iterations);
+	}
+
+	/**
+	 * Set the learning rate; 0 (the default) chooses it from the number of points.
+	 */
+	public void setLearningRate (final double learningRate) {
+		this.learningRate = Math.max(0, learningRate);
+	}
+
+	/**
+	 * Set the maximum number of rows embedded directly; the other rows are projected afterwards.
+	 */
+	public void setMaxSamples (final int maxSamples) {
+		this.maxSamples = Math.max(2, maxSamples);
+	}
+
+	/**
+	 * Set the number of principal components the features are reduced to first (50 by default).
+	 */
+	public void setInitialDimensions (final int initialDimensions) {
+		this.initialDimensions = Math.max(1, initialDimensions);
+	}
+
+	public void setSeed (final long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the maximum number of threads; fewer are used when the {@link ConcurrencyBudget} is shared with other jobs.
+	 */
+	public void setThreads (final int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Get the rows that were embedded directly by the last fit, in ascending order.
+	 */
+	public int [] getSampleRows () {
+		return sampleRows;
+	}
+
+	/**
+	 * Embed all rows of the source in two dimensions.
+	 *
+	 * @param progress Receives the current step and the fraction done; may be null.
+	 * @param cancelled Checked regularly; may be null.
+	 * @return Row-major array with the two coordinates of every row.
+	 * @throws CancellationException if the run was cancelled.
+	 */
+	public float [] fit (final StreamingPCA.RowSource source, final ProgressListener progress, final BooleanSupplier cancelled) throws IOException {
+
+		long start = System.currentTimeMillis();
+		final int n = source.getRowCount();
+		if (n < 2) {
+			throw new IllegalArgumentException("At least 2 rows are needed for t-SNE, got " + n);
+		}
+
+		// Standardize and reduce the features; with all components this only rotates the standardized features
+		final int dims = Math.min(source.getColumnCount(), initialDimensions);
+		StreamingPCA pca = new StreamingPCA(dims);
+		pca.setThreads(threads);
+		pca.fit(source, p -> report(progress, "Reducing the features...", 0.05 * p), cancelled);
+		float [] reduced = pca.transform(source, p -> report(progress, "Reducing the features...", 0.05 + 0.05 * p), cancelled);
+
+		Random random = new Random(seed);
+		sampleRows = sample(n, maxSamples, random);
+		final int m = sampleRows.length;
+		float [] x = new float[m * dims];
+		for (int i = 0; i < m; i++) {
+			System.arraycopy(reduced, sampleRows[i] * dims, x, i * dims, dims);
+		}
+
+		final double perp = Math.min(perplexity, (m - 1) / 3.0);
+		final int k = Math.max(1, Math.min(m - 1, (int) (3 * perp)));
+
+		ConcurrencyBudget.Lease lease = ConcurrencyBudget.getInstance().acquire("t-SNE", threads);
+		Parallel parallel = new Parallel(lease.getThreads(), cancelled);
+		try {
+			report(progress, "Finding nearest neighbours...", 0.1);
+			int [] neighbours = new int[m * k];
+			float [] distances = new float[m * k];
+			nearestNeighbours(parallel, x, m, x, m, dims, k, true, neighbours, distances);
+
+			report(progress, "Computing similarities...", 0.2);
+			SparseMatrix p = computeAffinities(parallel, neighbours, distances, m, k, perp);
+
+			double [] y = optimize(parallel, p, m, random, progress);
+
+			float [] embedding = new float[n * 2];
+			boolean [] sampled = new boolean[n];
+			for (int i = 0; i < m; i++) {
+				embedding[sampleRows[i] * 2] = (float) y[i * 2];
+				embedding[sampleRows[i] * 2 + 1] = (float) y[i * 2 + 1];
+				sampled[sampleRows[i]] = true;
+			}
+			if (m < n) {
+				report(progress, "Projecting the other " + (n - m) + " rows...", 0.95);
+				project(parallel, reduced, sampled, dims, x, y, m, k, perp, embedding);
+			}
+
+			logger.info("t-SNE of {} rows ({} embedded directly, {} neighbours) in {} ms", n, m, k, System.currentTimeMillis() - start);
+			report(progress, "Done", 1.0);
+			return embedding;
+		} finally {
+			parallel.shutdown();
+			lease.close();
+		}
+	}
+
+	private static void report (final ProgressListener progress, final String message, final double fraction) {
+		if (progress != null) {
+			progress.update(message, fraction);
+		}
+	}
+
+	/**
+	 * Draw up to the given number of distinct rows, in ascending order.
+	 */
+	private static int [] sample (final int n, final int maxSamples, final Random random) {
+		if (n <= maxSamples) {
+			int [] rows = new int[n];
+			for (int i = 0; i < n; i++) {
+				rows[i] = i;
+			}
+			return rows;
+		}
+		// Partial Fisher-Yates shuffle
+		int [] indices = new int[n];
+		for (int i = 0; i < n; i++) {
+			indices[i] = i;
+		}
+		for (int i = 0; i < maxSamples; i++) {
+			int j = i + random.nextInt(n - i);
+			int tmp = indices[i];
+			indices[i] = indices[j];
+			indices[j] = tmp;
+		}
+		int [] rows = Arrays.copyOf(indices, maxSamples);
+		Arrays.sort(rows);
+		return rows;
+	}
+
+	/**
+	 * Find the k nearest reference rows of every query row. The squared distances of a block of query
+	 * rows to all reference rows are computed with one matrix multiplication.
+	 *
+	 * @param excludeSelf Whether the queries are the reference rows, in which case a row is not its own neighbour.
+	 * @param neighbours Receives the indices of the neighbours of every query, nearest first.
+	 * @param distances Receives the squared distances to the neighbours.
+	 */
+	private static void nearestNeighbours (final Parallel parallel, final float [] query, final int queryCount,
+										   final float [] reference, final int referenceCount, final int dims, final int k,
+										   final boolean excludeSelf, final int [] neighbours, final float [] distances) {
+
+		final INDArray referenceT = Nd4j.create(reference, new int[] {referenceCount, dims}, 'c').transpose();
+		final float [] referenceNorms = squaredNorms(reference, referenceCount, dims);
+		final float [] queryNorms = excludeSelf ? referenceNorms : squaredNorms(query, queryCount, dims);
+		final int blocks = (queryCount + KNN_BLOCK - 1) / KNN_BLOCK;
+
+		parallel.forRanges(blocks, (chunk, from, to) -> {
+			float [] bestDistances = new float[k];
+			int [] bestIndices = new int[k];
+			for (int block = from; block < to; block++) {
+				int start = block * KNN_BLOCK;
+				int rows = Math.min(KNN_BLOCK, queryCount - start);
+				INDArray queryBlock = Nd4j.create(Arrays.copyOfRange(query, start * dims, (start + rows) * dims), new int[] {rows, dims}, 'c');
+				float [] products = queryBlock.mmul(referenceT).dup('c').data().asFloat();
+
+				for (int r = 0; r < rows; r++) {
+					int row = start + r;
+					int size = 0;
+					for (int j = 0; j < referenceCount; j++) {
+						if (excludeSelf && j == row) {
+							continue;
+						}
+						float d = Math.max(0, queryNorms[row] + referenceNorms[j] - 2 * products[r * referenceCount + j]);
+						if (size < k || d < bestDistances[size - 1]) {
+							// Insert into the sorted list of the best neighbours so far
+							int pos = size < k ? size++ : k - 1;
+							while (pos > 0 && bestDistances[pos - 1] > d) {
+								bestDistances[pos] = bestDistances[pos - 1];
+								bestIndices[pos] = bestIndices[pos - 1];
+								pos--;
+							}
+							bestDistances[pos] = d;
+							bestIndices[pos] = j;
+						}
+					}
+					System.arraycopy(bestIndices, 0, neighbours, row * k, k);
+					System.arraycopy(bestDistances, 0, distances, row * k, k);
+				}
+			}
+		});
+	}
+
+	private static float [] squaredNorms (final float [] matrix, final int rows, final int dims) {
+		float [] norms = new float[rows];
+		for (int i = 0; i < rows; i++) {
+			float sum = 0;
+			for (int c = 0; c < dims; c++) {
+				float v = matrix[i * dims + c];
+				sum += v * v;
+			}
+			norms[i] = sum;
+		}
+		return norms;
+	}
+
+	/**
+	 * Compute the conditional similarities of a point to its neighbours, with the Gaussian bandwidth found
+	 * by binary search so that their entropy matches the perplexity.
+	 *
+	 * @param distances Squared distances to the neighbours, nearest first.
+	 * @param out Receives the similarities, which sum to 1.
+	 */
+	private static void calibrate (final float [] distances, final int offset, final int k, final double perplexity, final double [] out) {
+
+		final double target = Math.log(perplexity);
+		final double nearest = distances[offset];
+		double beta = 1;
+		double min = Double.NEGATIVE_INFINITY;
+		double max = Double.POSITIVE_INFINITY;
+
+		for (int iter = 0; iter < 200; iter++) {
+			// Distances relative to the nearest neighbour, which does not change the normalized similarities
+			double sum = 0;
+			double weighted = 0;
+			for (int t = 0; t < k; t++) {
+				double d = distances[offset + t] - nearest;
+				out[t] = Math.exp(-beta * d);
+				sum += out[t];
+				weighted += d * out[t];
+			}
+			double entropy = Math.log(sum) + beta * weighted / sum;
+			double diff = entropy - target;
+			if (Math.abs(diff) < 1e-5) {
+				break;
+			}
+			if (diff > 0) {
+				min = beta;
+				beta = max == Double.POSITIVE_INFINITY ? beta * 2 : (beta + max) / 2;
+			}
+			else {
+				max = beta;
+				beta = min == Double.NEGATIVE_INFINITY ? beta / 2 : (beta + min) / 2;
+			}
+		}
+
+		double sum = 0;
+		for (int t = 0; t < k; t++) {
+			sum += out[t];
+		}
+		for (int t = 0; t < k; t++) {
+			out[t] /= sum;
+		}
+	}
+
+	/**
+	 * Compute the symmetric joint similarities P of the sampled points, as a sparse matrix.
+	 */
+	private static SparseMatrix computeAffinities (final Parallel parallel, final int [] neighbours, final float [] distances,
+												   final int m, final int k, final double perplexity) {
+
+		final float [] conditional = new float[m * k];
+		parallel.forRanges(m, (chunk, from, to) -> {
+			double [] row = new double[k];
+			for (int i = from; i < to; i++) {
+				calibrate(distances, i * k, k, perplexity, row);
+				for (int t = 0; t < k; t++) {
+					conditional[i * k + t] = (float) row[t];
+				}
+			}
+		});
+
+		// Symmetrize: every pair is stored in both rows. A pair found from both sides is stored twice in
+		// each row, which adds up to the same forces as a single summed entry.
+		int [] rowStart = new int[m + 1];
+		for (int i = 0; i < m; i++) {
+			rowStart[i + 1] += k;
+			for (int t = 0; t < k; t++) {
+				rowStart[neighbours[i * k + t] + 1]++;
+			}
+		}
+		for (int i = 0; i < m; i++) {
+			rowStart[i + 1] += rowStart[i];
+		}
+
+		int [] columns = new int[rowStart[m]];
+		double [] values = new double[rowStart[m]];
+		int [] fill = Arrays.copyOf(rowStart, m);
+		double norm = 2.0 * m;
+		for (int i = 0; i < m; i++) {
+			for (int t = 0; t < k; t++) {
+				int j = neighbours[i * k + t];
+				double v = conditional[i * k + t] / norm;
+				columns[fill[i]] = j;
+				values[fill[i]++] = v;
+				columns[fill[j]] = i;
+				values[fill[j]++] = v;
+			}
+		}
+		return new SparseMatrix(rowStart, columns, values);
+	}
+
+	/**
+	 * Optimize the embedding of the sampled points by gradient descent with momentum and adaptive gains.
+	 */
+	private double [] optimize (final Parallel parallel, final SparseMatrix p, final int m, final Random random,
+								final ProgressListener progress) {
+
+		final double [] y = new double[m * 2];
+		for (int i = 0; i < y.length; i++) {
+			y[i] = random.nextGaussian() * 1e-4;
+		}
+		final double [] update = new double[m * 2];
+		final double [] gains = new double[m * 2];
+		Arrays.fill(gains, 1);
+		final double [] attractive = new double[m * 2];
+		final double [] repulsive = new double[m * 2];
+		final double eta = learningRate > 0 ? learningRate : Math.max(200, m / EXAGGERATION);
+
+		for (int iter = 0; iter < iterations; iter++) {
+
+			final double exaggeration = iter < EXAGGERATION_ITERATIONS ? EXAGGERATION : 1;
+			final double momentum = iter < EXAGGERATION_ITERATIONS ? INITIAL_MOMENTUM : FINAL_MOMENTUM;
+			final QuadTree tree = QuadTree.build(y, m);
+
+			// Forces on every point: exact attraction by the neighbours, approximate repulsion by all points
+			final double [] partialZ = new double[parallel.getChunkCount(m)];
+			parallel.forRanges(m, (chunk, from, to) -> {
+				double [] force = new double[2];
+				double z = 0;
+				for (int i = from; i < to; i++) {
+					double yx = y[i * 2], yy = y[i * 2 + 1];
+					double fx = 0, fy = 0;
+					for (int e = p.rowStart[i]; e < p.rowStart[i + 1]; e++) {
+						int j = p.columns[e];
+						double dx = yx - y[j * 2], dy = yy - y[j * 2 + 1];
+						double q = p.values[e] / (1 + dx * dx + dy * dy);
+						fx += q * dx;
+						fy += q * dy;
+					}
+					attractive[i * 2] = fx;
+					attractive[i * 2 + 1] = fy;
+
+					force[0] = 0;
+					force[1] = 0;
+					z += tree.computeRepulsion(yx, yy, theta, force);
+					repulsive[i * 2] = force[0];
+					repulsive[i * 2 + 1] = force[1];
+				}
+				partialZ[chunk] = z;
+			});
+
+			double sumZ = 0;
+			for (double z : partialZ) {
+				sumZ += z;
+			}
+			final double z = Math.max(sumZ, Double.MIN_VALUE);
+
+			parallel.forRanges(m, (chunk, from, to) -> {
+				for (int i = from * 2; i < to * 2; i++) {
+					double gradient = exaggeration * attractive[i] - repulsive[i] / z;
+					gains[i] = Math.signum(gradient) != Math.signum(update[i]) ? gains[i] + 0.2 : Math.max(MIN_GAIN, gains[i] * 0.8);
+					update[i] = momentum * update[i] - eta * gains[i] * gradient;
+					y[i] += update[i];
+				}
+			});
+
+			// Keep the embedding centred
+			double meanX = 0, meanY = 0;
+			for (int i = 0; i < m; i++) {
+				meanX += y[i * 2];
+				meanY += y[i * 2 + 1];
+			}
+			meanX /= m;
+			meanY /= m;
+			for (int i = 0; i < m; i++) {
+				y[i * 2] -= meanX;
+				y[i * 2 + 1] -= meanY;
+			}
+
+			parallel.checkCancelled();
+			report(progress, "Optimizing the embedding: iteration " + (iter + 1) + " of " + iterations, 0.25 + 0.7 * (iter + 1) / iterations);
+		}
+		return y;
+	}
+
+	/**
+	 * Place every row which was not sampled at the similarity-weighted mean of its nearest sampled rows.
+	 */
+	private static void project (final Parallel parallel, final float [] reduced, final boolean [] sampled, final int dims,
+								 final float [] x, final double [] y, final int m, final int k, final double perplexity,
+								 final float [] embedding) {
+
+		int [] rest = new int[sampled.length - m];
+		int count = 0;
+		for (int i = 0; i < sampled.length; i++) {
+			if (!sampled[i]) {
+				rest[count++] = i;
+			}
+		}
+
+		for (int start = 0; start < rest.length; start += PROJECTION_BATCH) {
+			final int rows = Math.min(PROJECTION_BATCH, rest.length - start);
+			final int first = start;
+			float [] query = new float[rows * dims];
+			for (int r = 0; r < rows; r++) {
+				System.arraycopy(reduced, rest[first + r] * dims, query, r * dims, dims);
+			}
+
+			final int [] neighbours = new int[rows * k];
+			final float [] distances = new float[rows * k];
+			nearestNeighbours(parallel, query, rows, x, m, dims, k, false, neighbours, distances);
+
+			parallel.forRanges(rows, (chunk, from, to) -> {
+				double [] weights = new double[k];
+				for (int r = from; r < to; r++) {
+					calibrate(distances, r * k, k, perplexity, weights);
+					double px = 0, py = 0;
+					for (int t = 0; t < k; t++) {
+						int j = neighbours[r * k + t];
+						px += weights[t] * y[j * 2];
+						py += weights[t] * y[j * 2 + 1];
+					}
+					embedding[rest[first + r] * 2] = (float) px;
+					embedding[rest[first + r] * 2 + 1] = (float) py;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sparse matrix in compressed row format.
+	 */
+	private static class SparseMatrix {
+
+		private final int [] rowStart;
+		private final int [] columns;
+		private final double [] values;
+
+		SparseMatrix (final int [] rowStart, final int [] columns, final double [] values) {
+			this.rowStart = rowStart;
+			this.columns = columns;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Quadtree over the embedding, holding the number of points and their centre of mass in every cell.
+	 * Points at exactly the same position share a leaf.
+	 */
+	private static class QuadTree {
+
+		private static final int MAX_DEPTH = 50;
+
+		private final double centreX, centreY, halfWidth;
+		private double massX, massY;
+		private int count;
+		private int point = -1;
+		private QuadTree [] children;
+
+		private QuadTree (final double centreX, final double centreY, final double halfWidth) {
+			this.centreX = centreX;
+			this.centreY = centreY;
+			this.halfWidth = halfWidth;
+		}
+
+		static QuadTree build (final double [] y, final int n) {
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				minX = Math.min(minX, y[i * 2]);
+				maxX = Math.max(maxX, y[i * 2]);
+				minY = Math.min(minY, y[i * 2 + 1]);
+				maxY = Math.max(maxY, y[i * 2 + 1]);
+			}
+			double half = Math.max(maxX - minX, maxY - minY) / 2 + 1e-5;
+			QuadTree tree = new QuadTree((minX + maxX) / 2, (minY + maxY) / 2, half);
+			for (int i = 0; i < n; i++) {
+				tree.insert(y, i, 0);
+			}
+			return tree;
+		}
+
+		private void insert (final double [] y, final int i, final int depth) {
+			double px = y[i * 2], py = y[i * 2 + 1];
+			massX = (massX * count + px) / (count + 1);
+			massY = (massY * count + py) / (count + 1);
+			count++;
+
+			if (children == null) {
+				if (point < 0) {
+					point = i;
+					return;
+				}
+				if ((y[point * 2] == px && y[point * 2 + 1] == py) || depth >= MAX_DEPTH) {
+					// Same position: only the mass of the leaf grows
+					return;
+				}
+				double quarter = halfWidth / 2;
+				children = new QuadTree[] {
+						new QuadTree(centreX - quarter, centreY - quarter, quarter),
+						new QuadTree(centreX + quarter, centreY - quarter, quarter),
+						new QuadTree(centreX - quarter, centreY + quarter, quarter),
+						new QuadTree(centreX + quarter, centreY + quarter, quarter)
+				};
+				int old = point;
+				point = -1;
+				getChild(y[old * 2], y[old * 2 + 1]).insert(y, old, depth + 1);
+			}
+			getChild(px, py).insert(y, i, depth + 1);
+		}
+
+		private QuadTree getChild (final double px, final double py) {
+			return children[(px < centreX ? 0 : 1) + (py < centreY ? 0 : 2)];
+		}
+
+		/**
+		 * Add the unnormalized repulsive force on a point to the given array.
+		 *
+		 * @return The contribution of this cell to the normalization Z.
+		 */
+		double computeRepulsion (final double px, final double py, final double theta, final double [] force) {
+			if (count == 0) {
+				return 0;
+			}
+			double dx = px - massX, dy = py - massY;
+			double d2 = dx * dx + dy * dy;
+			if (children == null && d2 == 0) {
+				// A leaf at the point itself: the other points at the same position repel with zero force
+				return count - 1;
+			}
+			double width = 2 * halfWidth;
+			if (children == null || width * width < theta * theta * d2) {
+				double q = 1 / (1 + d2);
+				double mult = count * q;
+				force[0] += mult * q * dx;
+				force[1] += mult * q * dy;
+				return mult;
+			}
+			double z = 0;
+			for (QuadTree child : children) {
+				z += child.computeRepulsion(px, py, theta, force);
+			}
+			return z;
+		}
+	}
+
+	private interface RangeTask {
+		void run (int chunk, int from, int to);
+	}
+
+	/**
+	 * Splits loops into ranges which run on a fixed pool of threads.
+	 */
+	private static class Parallel {
+
+		private final int workers;
+		private final BooleanSupplier cancelled;
+		private final ExecutorService executor;
+
+		Parallel (final int workers, final BooleanSupplier cancelled) {
+			this.workers = workers;
+			this.cancelled = cancelled;
+			final AtomicInteger count = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(workers, r -> {
+				Thread thread = new Thread(r, "dl4j-tsne-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		int getChunkCount (final int n) {
+			return Math.max(1, Math.min(n, workers * 4));
+		}
+
+		void forRanges (final int n, final RangeTask task) {
+			checkCancelled();
+			int chunks = getChunkCount(n);
+			List <Future<?>> futures = new ArrayList<>(chunks);
+			for (int c = 0; c < chunks; c++) {
+				final int chunk = c;
+				final int from = (int) ((long) n * c / chunks);
+				final int to = (int) ((long) n * (c + 1) / chunks);
+				futures.add(executor.submit(() -> task.run(chunk, from, to)));
+			}
+			try {
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("t-SNE was interrupted");
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("t-SNE failed", e.getCause());
+			}
+		}
+
+		void checkCancelled () {
+			if (cancelled != null && cancelled.getAsBoolean()) {
+				throw new CancellationException("t-SNE was cancelled");
+			}
+		}
+
+		void shutdown () {
+			executor.shutdownNow();
+		}
+	}
+
+}
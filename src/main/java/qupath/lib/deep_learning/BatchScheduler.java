@@ -0,0 +1,366 @@
+package qupath.lib.deep_learning;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Runs a trained network over many slides. Several slides are processed at the same time, all sharing
+ * the model loaded once in a {@link DL4JEngine}; the available cores are divided between them. For
+ * every slide the measurements of all detections are extracted, the network is run on them and the
+ * slide is written back with the results.
+ *
+ * The memory taken by the slides in flight (their object hierarchies, feature matrices and per-thread
+ * copies of the network) is bounded by a budget: a slide is only read when its estimated memory is
+ * available. The estimate is made from the size of the file; once the slide is read it is corrected
+ * with the real number of detections, without waiting.
+ *
+ * Every completed slide is recorded in a journal file. When a run is interrupted and started again with
+ * the same journal, the slides that were completed already are skipped. Slides are written to a
+ * temporary file first and then moved into place, so an interrupted write never leaves a broken slide.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class BatchScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchScheduler.class);
+
+	public static final String DEFAULT_JOURNAL_NAME = "dl4j-batch.journal";
+
+	private static final long MEGABYTE = 1024 * 1024;
+	// Rough sizes of a serialized detection, and of an object hierarchy on the heap relative to its file
+	private static final long FILE_BYTES_PER_OBJECT = 512;
+	private static final long HEAP_BYTES_PER_FILE_BYTE = 3;
+
+	private final DL4JEngine engine;
+	private final int concurrentSlides;
+	private final int maxMegabytes;
+	private final Semaphore memory;
+
+	private File outputDirectory;
+	private File journal;
+	private Consumer <SlideResult> listener;
+
+	/**
+	 * @param engine Engine holding the shared model and the output settings. Its thread count is set
+	 *               to divide the {@link ConcurrencyBudget} between the concurrent slides.
+	 * @param concurrentSlides Number of slides processed at the same time.
+	 * @param memoryBudget Maximum number of bytes used by the slides in flight; 0 or less means no limit.
+	 */
+	public BatchScheduler (final DL4JEngine engine, final int concurrentSlides, final long memoryBudget) {
+		this.engine = engine;
+		this.concurrentSlides = Math.max(1, concurrentSlides);
+		this.maxMegabytes = memoryBudget > 0 ? (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / MEGABYTE)) : 0;
+		this.memory = maxMegabytes > 0 ? new Semaphore(maxMegabytes, true) : null;
+		// Every slide leases its inference threads, so together the slides never exceed the budget
+		engine.setThreads(Math.max(1, ConcurrencyBudget.getInstance().getTotalThreads() / this.concurrentSlides));
+	}
+
+	/**
+	 * Write the processed slides to this directory instead of overwriting the input files.
+	 */
+	public void setOutputDirectory (final File outputDirectory) {
+		this.outputDirectory = outputDirectory;
+	}
+
+	/**
+	 * Set the journal recording the completed slides. By default it is stored in the output directory,
+	 * or next to the first slide when the slides are overwritten.
+	 */
+	public void setJournal (final File journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Set a listener informed after every slide, from the worker threads.
+	 */
+	public void setListener (final Consumer <SlideResult> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Process all slides which are not in the journal yet.
+	 *
+	 * @param slides The .qpdata files of the slides.
+	 * @param cancelled Checked before every slide; may be null.
+	 * @return The result of every slide, in the order of the input.
+	 */
+	public List <SlideResult> run (final List <File> slides, final BooleanSupplier cancelled) throws IOException {
+
+		if (slides.isEmpty()) {
+			return new ArrayList<>();
+		}
+		if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("Could not create output directory " + outputDirectory);
+		}
+		File journalFile = journal != null ? journal :
+				new File(outputDirectory != null ? outputDirectory : slides.get(0).getAbsoluteFile().getParentFile(), DEFAULT_JOURNAL_NAME);
+		Set <String> done = readJournal(journalFile);
+
+		logger.info("Processing {} slides ({} done already), {} at a time", slides.size(), countDone(slides, done), concurrentSlides);
+
+		final AtomicInteger count = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(concurrentSlides, r -> {
+			Thread thread = new Thread(r, "dl4j-batch-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		List <SlideResult> results = new ArrayList<>(slides.size());
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8))) {
+
+			List <Future<SlideResult>> futures = new ArrayList<>(slides.size());
+			for (File slide : slides) {
+				if (done.contains(slide.getAbsolutePath())) {
+					futures.add(null);
+					continue;
+				}
+				futures.add(executor.submit(() -> process(slide, cancelled, writer)));
+			}
+
+			for (int i = 0; i < slides.size(); i++) {
+				Future<SlideResult> future = futures.get(i);
+				SlideResult result = future == null ? new SlideResult(slides.get(i), Status.SKIPPED, 0, 0, null) : future.get();
+				results.add(result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Batch processing was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Batch processing failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		int failed = 0;
+		for (SlideResult result : results) {
+			if (result.getStatus() == Status.FAILED) {
+				failed++;
+			}
+		}
+		logger.info("Batch processing finished: {} slides, {} failed", results.size(), failed);
+		return results;
+	}
+
+	private SlideResult process (final File slide, final BooleanSupplier cancelled, final BufferedWriter journalWriter) {
+
+		if (cancelled != null && cancelled.getAsBoolean()) {
+			return notify(new SlideResult(slide, Status.CANCELLED, 0, 0, null));
+		}
+
+		long start = System.currentTimeMillis();
+		int permits = 0;
+		try {
+			long fileBytes = slide.length();
+			permits = acquireMemory(estimatePermits(fileBytes, fileBytes / FILE_BYTES_PER_OBJECT));
+			ImageData <BufferedImage> imageData = DL4JEngine.readImageData(slide);
+			Collection <PathObject> detections = imageData.getHierarchy().getObjects(null, PathDetectionObject.class);
+			permits = adjustMemory(permits, estimatePermits(fileBytes, detections.size()));
+
+			int objects = engine.run(detections, null, cancelled);
+			File output = outputDirectory == null ? slide : new File(outputDirectory, slide.getName());
+			write(imageData, output);
+			releaseMemory(permits);
+			permits = 0;
+			long millis = System.currentTimeMillis() - start;
+
+			synchronized (journalWriter) {
+				journalWriter.write(slide.getAbsolutePath() + "\t" + objects + "\t" + millis);
+				journalWriter.newLine();
+				journalWriter.flush();
+			}
+			logger.info("{}: {} detections processed in {} ms", slide.getName(), objects, millis);
+			return notify(new SlideResult(slide, Status.DONE, objects, millis, null));
+
+		} catch (Exception e) {
+			releaseMemory(permits);
+			if (cancelled != null && cancelled.getAsBoolean()) {
+				return notify(new SlideResult(slide, Status.CANCELLED, 0, 0, null));
+			}
+			logger.error("Could not process " + slide, e);
+			return notify(new SlideResult(slide, Status.FAILED, 0, System.currentTimeMillis() - start, e));
+		}
+	}
+
+	/**
+	 * Estimate the memory of a slide in flight, in megabytes: its object hierarchy, the feature matrix,
+	 * the outputs and a copy of the network per thread. A slide needing more than the whole budget
+	 * needs all of it.
+	 *
+	 * @param fileBytes Size of the slide's file.
+	 * @param objects Number of detections of the slide.
+	 */
+	private int estimatePermits (final long fileBytes, final long objects) {
+		if (memory == null) {
+			return 0;
+		}
+		long params = engine.getModel().numParams();
+		long values = objects * (engine.getInputSize() + engine.getOutputSize())
+				+ params * ConcurrencyBudget.getInstance().getTotalThreads() / concurrentSlides;
+		long bytes = fileBytes * HEAP_BYTES_PER_FILE_BYTE + values * 4;
+		return (int) Math.min(maxMegabytes, Math.max(1, bytes / MEGABYTE));
+	}
+
+	/**
+	 * Wait until the given memory is available.
+	 */
+	private int acquireMemory (final int permits) throws InterruptedException {
+		if (memory == null) {
+			return 0;
+		}
+		memory.acquire(permits);
+		return permits;
+	}
+
+	/**
+	 * Correct the memory held by a slide that was read already. Surplus is released; more is only taken
+	 * if it is available, as waiting while holding memory could block the other slides forever.
+	 *
+	 * @return The number of permits now held.
+	 */
+	private int adjustMemory (final int held, final int needed) {
+		if (memory == null || needed == held) {
+			return held;
+		}
+		if (needed < held) {
+			memory.release(held - needed);
+			return needed;
+		}
+		if (memory.tryAcquire(needed - held)) {
+			return needed;
+		}
+		logger.debug("Slide needs {} MB instead of the estimated {} MB, which is not available now", needed, held);
+		return held;
+	}
+
+	private void releaseMemory (final int permits) {
+		if (memory != null && permits > 0) {
+			memory.release(permits);
+		}
+	}
+
+	/**
+	 * Write the slide to a temporary file next to the output, then move it into place.
+	 */
+	private static void write (final ImageData <BufferedImage> imageData, final File output) throws IOException {
+		File temp = new File(output.getParentFile(), output.getName() + ".tmp");
+		try {
+			DL4JEngine.writeImageData(temp, imageData);
+			Files.move(temp.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private SlideResult notify (final SlideResult result) {
+		if (listener != null) {
+			listener.accept(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Read the paths of the completed slides from a journal; an absent journal means nothing was done.
+	 */
+	public static Set <String> readJournal (final File journal) throws IOException {
+		Set <String> done = new HashSet<>();
+		if (!journal.isFile()) {
+			return done;
+		}
+		for (String line : Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8)) {
+			int tab = line.indexOf('\t');
+			if (tab > 0) {
+				done.add(line.substring(0, tab));
+			}
+		}
+		return done;
+	}
+
+	private static int countDone (final List <File> slides, final Set <String> done) {
+		int n = 0;
+		for (File slide : slides) {
+			if (done.contains(slide.getAbsolutePath())) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	public enum Status {
+		DONE,
+		SKIPPED,
+		FAILED,
+		CANCELLED
+	}
+
+	/**
+	 * Outcome of the processing of one slide.
+	 */
+	public static class SlideResult {
+
+		private final File slide;
+		private final Status status;
+		private final int objectCount;
+		private final long millis;
+		private final Exception error;
+
+		SlideResult (final File slide, final Status status, final int objectCount, final long millis, final Exception error) {
+			this.slide = slide;
+			this.status = status;
+			this.objectCount = objectCount;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		public File getSlide () {
+			return slide;
+		}
+
+		public Status getStatus () {
+			return status;
+		}
+
+		public int getObjectCount () {
+			return objectCount;
+		}
+
+		public long getMillis () {
+			return millis;
+		}
+
+		/**
+		 * Get the exception which made the slide fail, or null.
+		 */
+		public Exception getError () {
+			return error;
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+package qupath.lib.deep_learning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes checkpoints of a network during training on a dedicated background thread, so training does
+ * not wait for the disk. The caller hands over a copy of the network; if the writer is still busy with
+ * an older checkpoint when a new one arrives, only the newest pending checkpoint is written.
+ *
+ * Checkpoints are written with {@link ModelSerializer} (including the updater, the normalizer and the
+ * input measurement names) to a temporary file which is then moved into place, so a crash never leaves
+ * a partial checkpoint. The epoch is part of the file name, e.g. {@code checkpoint_epoch12.zip}; the
+ * model with the best validation score so far is kept as {@code checkpoint_best.zip}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class CheckpointWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CheckpointWriter.class);
+
+	private static final String PREFIX = "checkpoint_";
+	private static final Pattern EPOCH_PATTERN = Pattern.compile(PREFIX + "epoch(\\d+)\\.zip");
+	public static final String BEST_FILE_NAME = PREFIX + "best.zip";
+
+	private final File directory;
+	private final int keep;
+	private final ExecutorService executor;
+	private final AtomicReference <Checkpoint> pending = new AtomicReference<>();
+	private final AtomicReference <Checkpoint> pendingBest = new AtomicReference<>();
+	private volatile Future<?> lastWrite;
+
+	/**
+	 * @param directory Directory holding the checkpoints; it is created if needed.
+	 * @param keep Number of most recent epoch checkpoints kept on disk.
+	 */
+	public CheckpointWriter (final File directory, final int keep) {
+		this.directory = directory;
+		this.keep = Math.max(1, keep);
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "dl4j-checkpoint-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Queue a checkpoint of the given epoch. The network is copied before this method returns.
+	 */
+	public void write (final MultiLayerNetwork model, final DataNormalization normalization,
+					   final List <String> measurementNames, final int epoch) {
+		submit(pending, new Checkpoint(model.clone(), normalization, measurementNames, epoch));
+	}
+
+	/**
+	 * Queue the network as the best model so far.
+	 */
+	public void writeBest (final MultiLayerNetwork model, final DataNormalization normalization,
+						   final List <String> measurementNames, final int epoch) {
+		submit(pendingBest, new Checkpoint(model.clone(), normalization, measurementNames, epoch));
+	}
+
+	private void submit (final AtomicReference <Checkpoint> slot, final Checkpoint checkpoint) {
+		// Only schedule a write if none is waiting; a waiting write picks up the newest checkpoint
+		if (slot.getAndSet(checkpoint) == null) {
+			lastWrite = executor.submit(() -> {
+				Checkpoint next = slot.getAndSet(null);
+				if (next != null) {
+					writeCheckpoint(next, slot == pendingBest);
+				}
+			});
+		}
+	}
+
+	private void writeCheckpoint (final Checkpoint checkpoint, final boolean best) {
+
+		File target = new File(directory, best ? BEST_FILE_NAME : PREFIX + "epoch" + checkpoint.epoch + ".zip");
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create " + directory);
+			}
+			File temp = File.createTempFile(PREFIX, ".tmp", directory);
+			try {
+				ModelSerializer.writeModel(checkpoint.model, temp, true);
+				if (checkpoint.normalization != null) {
+					ModelSerializer.addNormalizerToModel(temp, checkpoint.normalization);
+				}
+				if (checkpoint.measurementNames != null) {
+					ModelMeasurements.write(temp, checkpoint.measurementNames);
+				}
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(temp.toPath());
+			}
+			logger.info("Wrote checkpoint of epoch {} to {}", checkpoint.epoch, target);
+			if (!best) {
+				removeOldCheckpoints();
+			}
+		} catch (IOException e) {
+			logger.error("Could not write checkpoint " + target, e);
+		}
+	}
+
+	private void removeOldCheckpoints () {
+		List <File> checkpoints = listCheckpoints(directory);
+		for (int i = 0; i < checkpoints.size() - keep; i++) {
+			if (!checkpoints.get(i).delete()) {
+				logger.warn("Could not delete old checkpoint {}", checkpoints.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Wait until all queued checkpoints are written.
+	 */
+	public void flush () {
+		// The executor runs the writes in order, so waiting for an empty task is enough
+		Future<?> marker = executor.submit(() -> {});
+		try {
+			marker.get();
+		} catch (Exception e) {
+			logger.warn("Interrupted while waiting for checkpoints", e);
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Write the queued checkpoints and stop the writer thread.
+	 */
+	public void shutdown () {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+				logger.warn("Checkpoints were still being written after 5 minutes");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public File getDirectory () {
+		return directory;
+	}
+
+	/**
+	 * List the epoch checkpoints in a directory, oldest epoch first.
+	 */
+	public static List <File> listCheckpoints (final File directory) {
+		List <File> files = new ArrayList<>();
+		File [] contents = directory.listFiles();
+		if (contents != null) {
+			for (File file : contents) {
+				if (getEpoch(file) >= 0) {
+					files.add(file);
+				}
+			}
+		}
+		Collections.sort(files, (a, b) -> Integer.compare(getEpoch(a), getEpoch(b)));
+		return files;
+	}
+
+	/**
+	 * Get the most recent epoch checkpoint in a directory, or null if there is none.
+	 */
+	public static File getLatestCheckpoint (final File directory) {
+		List <File> files = listCheckpoints(directory);
+		return files.isEmpty() ? null : files.get(files.size() - 1);
+	}
+
+	/**
+	 * Get the epoch of a checkpoint file from its name, or -1 if it is not an epoch checkpoint.
+	 */
+	public static int getEpoch (final File file) {
+		Matcher matcher = EPOCH_PATTERN.matcher(file.getName());
+		return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+	}
+
+	private static class Checkpoint {
+
+		private final MultiLayerNetwork model;
+		private final DataNormalization normalization;
+		private final List <String> measurementNames;
+		private final int epoch;
+
+		Checkpoint (final MultiLayerNetwork model, final DataNormalization normalization, final List <String> measurementNames, final int epoch) {
+			this.model = model;
+			this.normalization = normalization;
+			this.measurementNames = measurementNames;
+			this.epoch = epoch;
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+package qupath.lib.deep_learning;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.nativeblas.Nd4jBlas;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single budget of CPU threads for the whole extension. Every component that starts worker threads
+ * (data loaders, training workers, inference workers, concurrent slides) leases them from here, so
+ * running several jobs at the same time does not oversubscribe the machine.
+ *
+ * A lease is granted its fair share: the requested number of workers, but at most the cores that are
+ * still free, and never less than the total divided by the number of open leases (so a new job still
+ * makes progress when the budget is used up). Every worker also runs ND4J operations, which are
+ * parallelized with OpenMP and BLAS threads; these are set for the whole process to the number of cores
+ * divided by the number of leased workers, and updated whenever a lease is opened or closed.
+ *
+ * Every lease measures the process CPU time while it is open and reports the effective number of
+ * cores used when it is closed, which shows whether the granted workers were kept busy.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ConcurrencyBudget {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConcurrencyBudget.class);
+
+	private static final ConcurrencyBudget instance = new ConcurrencyBudget(Runtime.getRuntime().availableProcessors());
+
+	private int totalThreads;
+	private final List <Lease> leases = new ArrayList<>();
+	private int nativeThreads = -1;
+
+	/**
+	 * @param totalThreads Number of threads shared by all leases; usually the number of cores.
+	 */
+	public ConcurrencyBudget (final int totalThreads) {
+		this.totalThreads = Math.max(1, totalThreads);
+	}
+
+	/**
+	 * Get the budget shared by the whole extension.
+	 */
+	public static ConcurrencyBudget getInstance () {
+		return instance;
+	}
+
+	/**
+	 * Change the number of threads shared by all leases, e.g. to leave cores free for other applications.
+	 * Only affects leases opened afterwards.
+	 */
+	public synchronized void setTotalThreads (final int totalThreads) {
+		this.totalThreads = Math.max(1, totalThreads);
+		updateNativeThreads();
+	}
+
+	public synchronized int getTotalThreads () {
+		return totalThreads;
+	}
+
+	/**
+	 * Lease worker threads. The lease must be closed when the workers are stopped.
+	 *
+	 * @param owner Name of the component, for logging.
+	 * @param requested Maximum number of workers the component can use.
+	 * @return The lease; its thread count is at least 1 and at most the requested number.
+	 */
+	public synchronized Lease acquire (final String owner, final int requested) {
+		int free = totalThreads - getLeasedThreads();
+		int fairShare = totalThreads / (leases.size() + 1);
+		int granted = Math.max(1, Math.min(Math.max(1, requested), Math.max(free, fairShare)));
+
+		Lease lease = new Lease(owner, granted);
+		leases.add(lease);
+		updateNativeThreads();
+		logger.debug("{} leased {} of {} requested threads ({} open leases, {} native threads)",
+				owner, granted, requested, leases.size(), nativeThreads);
+		return lease;
+	}
+
+	private synchronized boolean release (final Lease lease) {
+		if (leases.remove(lease)) {
+			updateNativeThreads();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of worker threads currently leased.
+	 */
+	public synchronized int getLeasedThreads () {
+		int sum = 0;
+		for (Lease lease : leases) {
+			sum += lease.threads;
+		}
+		return sum;
+	}
+
+	/**
+	 * Get the number of OpenMP/BLAS threads each worker currently uses for ND4J operations.
+	 */
+	public synchronized int getNativeThreads () {
+		return Math.max(1, totalThreads / Math.max(1, getLeasedThreads()));
+	}
+
+	/**
+	 * Get a summary of the open leases and the CPU load of the process.
+	 */
+	public synchronized String report () {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d of %d threads leased, %d native threads per worker, process CPU load %.0f%%",
+				getLeasedThreads(), totalThreads, getNativeThreads(), getProcessCpuLoad() * 100));
+		for (Lease lease : leases) {
+			sb.append(String.format("%n  %s: %d threads, %.1f effective cores", lease.owner, lease.threads, lease.getEffectiveCores()));
+		}
+		return sb.toString();
+	}
+
+	private void updateNativeThreads () {
+		int n = getNativeThreads();
+		if (n == nativeThreads) {
+			return;
+		}
+		nativeThreads = n;
+		try {
+			NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(n);
+			if (Nd4j.factory().blas() instanceof Nd4jBlas) {
+				((Nd4jBlas) Nd4j.factory().blas()).setMaxThreads(n);
+			}
+		} catch (Throwable t) {
+			// Not every backend supports this, the native defaults are kept
+			logger.debug("Could not set the number of native threads", t);
+		}
+	}
+
+	/**
+	 * Get the CPU time used by the process in nanoseconds, or -1 if the JVM does not report it.
+	 */
+	private static long getProcessCpuTime () {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the recent CPU load of the process, relative to all cores, or 0 if the JVM does not report it.
+	 */
+	private static double getProcessCpuLoad () {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return Math.max(0, ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad());
+		}
+		return 0;
+	}
+
+	/**
+	 * Worker threads leased by one component.
+	 */
+	public class Lease implements AutoCloseable {
+
+		private final String owner;
+		private final int threads;
+		private final long startNanos = System.nanoTime();
+		private final long startCpu = getProcessCpuTime();
+
+		Lease (final String owner, final int threads) {
+			this.owner = owner;
+			this.threads = threads;
+		}
+
+		/**
+		 * Get the number of worker threads the owner may start.
+		 */
+		public int getThreads () {
+			return threads;
+		}
+
+		/**
+		 * Get the average number of cores the process used since the lease was opened.
+		 */
+		public double getEffectiveCores () {
+			long wall = System.nanoTime() - startNanos;
+			long cpu = getProcessCpuTime();
+			if (startCpu < 0 || cpu < 0 || wall <= 0) {
+				return 0;
+			}
+			return (double) (cpu - startCpu) / wall;
+		}
+
+		/**
+		 * Return the threads to the budget. Closing a lease twice has no effect.
+		 */
+		@Override
+		public void close () {
+			double effectiveCores = getEffectiveCores();
+			if (release(this)) {
+				logger.info("{} used {} threads, {} effective cores over {} s", owner, threads,
+						String.format("%.1f", effectiveCores), String.format("%.1f", (System.nanoTime() - startNanos) / 1e9));
+			}
+		}
+	}
+
+}
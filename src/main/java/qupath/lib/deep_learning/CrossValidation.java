@@ -0,0 +1,238 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * K-fold cross-validation of the configuration of a network. Every fold trains a new model on its
+ * own training indices and evaluates it on the remaining samples. The folds are stratified by class
+ * (see {@link TrainTestSplit}) and all of them gather their minibatches from the single read-only
+ * feature matrix of the network's split.
+ *
+ * Several folds are trained concurrently. The number of concurrent folds is limited by the number
+ * of threads leased from the {@link ConcurrencyBudget} and, if the network has a memory budget, by the
+ * number of models that fit in it.
+ * When the network normalizes its data, each fold fits its own normalizer on its training samples
+ * only, so no statistics of the test samples leak into training.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class CrossValidation <T extends PathDataSet> {
+
+	private static final Logger logger = LoggerFactory.getLogger(CrossValidation.class);
+
+	private final AbstractNeuralNetwork <T> network;
+	private final int foldCount;
+	private final int threads;
+	private int epochCount = 1;
+
+	/**
+	 * @param network Network whose configuration, samples, batch size and normalization method are used.
+	 *                Its own model is not changed.
+	 * @param foldCount Number of folds (k), at least 2.
+	 * @param threads Maximum number of folds trained at the same time.
+	 */
+	public CrossValidation (final AbstractNeuralNetwork <T> network, final int foldCount, final int threads) {
+		if (foldCount < 2) {
+			throw new IllegalArgumentException("Cross-validation needs at least 2 folds, not " + foldCount);
+		}
+		this.network = network;
+		this.foldCount = foldCount;
+		this.threads = Math.max(1, threads);
+	}
+
+	public void setEpochCount (final int epochCount) {
+		this.epochCount = Math.max(1, epochCount);
+	}
+
+	/**
+	 * Get the number of folds trained at the same time, given the threads and the memory budget.
+	 */
+	public int getConcurrency () {
+		int concurrency = Math.min(threads, foldCount);
+		MemoryBudget budget = network.getMemoryBudget();
+		if (budget.isLimited()) {
+			long perFold = MemoryBudget.estimateBytes(network.getConfiguration(), network.getBatchSize());
+			concurrency = (int) Math.min(concurrency, Math.max(1, budget.getMaxBytes() / Math.max(1, perFold)));
+		}
+		return concurrency;
+	}
+
+	/**
+	 * Train and evaluate all folds.
+	 *
+	 * @return The evaluation of every fold and their aggregate.
+	 */
+	public Result run () {
+
+		final MultiLayerConfiguration conf = network.getConfiguration();
+		if (conf == null) {
+			throw new IllegalStateException("The configuration of the network was not built");
+		}
+		final INDArray features = network.getSplitFeatures();
+		final int [] featureRows = network.getSplitFeatureRows();
+		final INDArray labels = network.getSplitLabels();
+		if (labels == null) {
+			throw new IllegalStateException("Cross-validation needs labelled samples");
+		}
+		final TrainTestSplit split = network.getSplit();
+
+		// Every fold trains on its own thread, leased from the budget shared with other jobs
+		ConcurrencyBudget.Lease lease = ConcurrencyBudget.getInstance().acquire("Cross-validation", getConcurrency());
+		int concurrency = lease.getThreads();
+		logger.info("Cross-validating {} folds of {} samples, {} folds at a time...", foldCount, split.size(), concurrency);
+
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread thread = new Thread(r, "dl4j-cross-validation-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency, factory);
+
+		List <Future<Evaluation>> futures = new ArrayList<>(foldCount);
+		for (int i = 0; i < foldCount; i++) {
+			final int fold = i;
+			futures.add(executor.submit(() -> runFold(conf, features, featureRows, labels, split.fold(fold, foldCount), fold)));
+		}
+
+		List <Evaluation> evaluations = new ArrayList<>(foldCount);
+		try {
+			for (Future<Evaluation> future : futures) {
+				evaluations.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Cross-validation was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Cross-validation failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			lease.close();
+		}
+
+		Result result = new Result(evaluations);
+		logger.info(result.report());
+		return result;
+	}
+
+	private Evaluation runFold (final MultiLayerConfiguration conf, final INDArray features, final int [] featureRows, final INDArray labels,
+								final TrainTestSplit.Fold fold, final int index) {
+
+		int batchSize = network.getBatchSize();
+		IndexedDataSetIterator train = new IndexedDataSetIterator(features, labels, featureRows, fold.getTrainIndices(), batchSize);
+		IndexedDataSetIterator test = new IndexedDataSetIterator(features, labels, featureRows, fold.getTestIndices(), batchSize);
+
+		AbstractNeuralNetwork.NormalizationMethod method = network.getNormalizationMethod();
+		if (method != null) {
+			StreamingNormalizer statistics = new StreamingNormalizer();
+			while (train.hasNext()) {
+				statistics.update(train.next().getFeatures());
+			}
+			train.reset();
+			DataNormalization normalization = statistics.toDataNormalization(method);
+			train.setPreProcessor(MissingValues.preProcessor(normalization));
+			test.setPreProcessor(MissingValues.preProcessor(normalization));
+		}
+		else {
+			train.setPreProcessor(MissingValues.preProcessor(null));
+			test.setPreProcessor(MissingValues.preProcessor(null));
+		}
+
+		MultiLayerNetwork model = new MultiLayerNetwork(conf.clone());
+		model.init();
+		for (int epoch = 0; epoch < epochCount; epoch++) {
+			train.reset();
+			model.fit(train);
+		}
+
+		Evaluation evaluation = model.evaluate(test);
+		logger.info("Fold {}/{}: accuracy {}, F1 {} on {} samples", index + 1, foldCount,
+				String.format("%.4f", evaluation.accuracy()), String.format("%.4f", evaluation.f1()), test.totalExamples());
+		return evaluation;
+	}
+
+	/**
+	 * Evaluations of all folds, merged into one evaluation over all samples.
+	 */
+	public static class Result {
+
+		private final List <Evaluation> folds;
+		private final Evaluation merged;
+
+		Result (final List <Evaluation> folds) {
+			this.folds = folds;
+			this.merged = new Evaluation();
+			for (Evaluation fold : folds) {
+				merged.merge(fold);
+			}
+		}
+
+		public List <Evaluation> getFoldEvaluations () {
+			return folds;
+		}
+
+		/**
+		 * Evaluation of all test samples of all folds together.
+		 */
+		public Evaluation getMergedEvaluation () {
+			return merged;
+		}
+
+		public double getMeanAccuracy () {
+			double sum = 0;
+			for (Evaluation fold : folds) {
+				sum += fold.accuracy();
+			}
+			return sum / folds.size();
+		}
+
+		public double getAccuracyStd () {
+			double mean = getMeanAccuracy();
+			double sum = 0;
+			for (Evaluation fold : folds) {
+				sum += (fold.accuracy() - mean) * (fold.accuracy() - mean);
+			}
+			return Math.sqrt(sum / folds.size());
+		}
+
+		public double getMeanF1 () {
+			double sum = 0;
+			for (Evaluation fold : folds) {
+				sum += fold.f1();
+			}
+			return sum / folds.size();
+		}
+
+		/**
+		 * Create a report with the scores per fold and the statistics of the merged evaluation.
+		 */
+		public String report () {
+			StringBuilder sb = new StringBuilder();
+			sb.append("======== Cross-validation over ").append(folds.size()).append(" folds ========\n");
+			for (int i = 0; i < folds.size(); i++) {
+				sb.append(String.format("Fold %d: accuracy %.4f, precision %.4f, recall %.4f, F1 %.4f%n", i + 1,
+						folds.get(i).accuracy(), folds.get(i).precision(), folds.get(i).recall(), folds.get(i).f1()));
+			}
+			sb.append(String.format("Mean accuracy %.4f (std %.4f), mean F1 %.4f%n", getMeanAccuracy(), getAccuracyStd(), getMeanF1()));
+			sb.append(merged.stats());
+			return sb.toString();
+		}
+	}
+
+}
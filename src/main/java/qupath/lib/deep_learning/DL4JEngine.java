@@ -0,0 +1,230 @@
+package qupath.lib.deep_learning;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.io.PathIO;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Headless entry point for running trained networks on images, without any dependency on the QuPath
+ * GUI. Models are loaded from a path and images are passed in explicitly, so the engine can be used
+ * from Groovy scripts, from {@link DL4JRunner} on the command line, and from the GUI commands alike.
+ *
+ * Example (Groovy):
+ * <pre>
+ *     def engine = DL4JEngine.load(new File("network.zip"))
+ *     engine.run(getCurrentImageData())
+ * </pre>
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class DL4JEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(DL4JEngine.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	private final ModelPool pool;
+	private final DataNormalization normalization;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int threads = ConcurrencyBudget.getInstance().getTotalThreads();
+	private String measurementPrefix = SlideInferenceEngine.DEFAULT_MEASUREMENT_PREFIX;
+	private List <String> classNames;
+	private List <String> measurementNames;
+	private TrainingMetrics metrics;
+
+	/**
+	 * @param model Trained network.
+	 * @param normalization Normalization used during training, or null.
+	 */
+	public DL4JEngine (final MultiLayerNetwork model, final DataNormalization normalization) {
+		this(new ModelPool(model, ConcurrencyBudget.getInstance().getTotalThreads()), normalization);
+	}
+
+	/**
+	 * @param pool Copies of the trained network, shared with other users of the same network.
+	 * @param normalization Normalization used during training, or null.
+	 */
+	public DL4JEngine (final ModelPool pool, final DataNormalization normalization) {
+		this.pool = pool;
+		this.normalization = normalization;
+	}
+
+	/**
+	 * Load a network saved with {@link AbstractNeuralNetwork#saveModel(File)} or exported with
+	 * {@link AbstractNeuralNetwork#exportModel(File, List, boolean)}, including its normalizer.
+	 * The network is taken from the {@link ModelRegistry}, so it is loaded and warmed up only once and
+	 * shared with other engines using the same file.
+	 */
+	public static DL4JEngine load (final File modelFile) throws IOException {
+		return ModelRegistry.getInstance().get(modelFile).createEngine();
+	}
+
+	/**
+	 * Read an image with its object hierarchy from a .qpdata file.
+	 */
+	public static ImageData <BufferedImage> readImageData (final File file) throws IOException {
+		ImageData <BufferedImage> imageData = PathIO.readImageData(file, null, null, BufferedImage.class);
+		if (imageData == null) {
+			throw new IOException("Could not read image data from " + file);
+		}
+		return imageData;
+	}
+
+	/**
+	 * Write an image with its object hierarchy to a .qpdata file.
+	 */
+	public static void writeImageData (final File file, final ImageData <BufferedImage> imageData) throws IOException {
+		if (!PathIO.writeImageData(file, imageData)) {
+			throw new IOException("Could not write image data to " + file);
+		}
+	}
+
+	public void setBatchSize (final int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Set the maximum number of inference threads; fewer are used when the {@link ConcurrencyBudget} is shared with other jobs.
+	 */
+	public void setThreads (final int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Write the network output as measurements named "prefix 1", "prefix 2", ... (the default).
+	 */
+	public void setOutputAsMeasurements (final String prefix) {
+		this.measurementPrefix = prefix;
+		this.classNames = null;
+	}
+
+	/**
+	 * Classify every object as the class with the highest output.
+	 *
+	 * @param classNames Names of the classes, in the order of the output layer.
+	 */
+	public void setOutputAsClassification (final List <String> classNames) {
+		this.classNames = classNames;
+	}
+
+	/**
+	 * Set the names of the input measurements, in the order the network was trained on. This overrides
+	 * the names stored with the model; models saved without names should always have them set.
+	 */
+	public void setMeasurementNames (final List <String> measurementNames) {
+		this.measurementNames = measurementNames;
+	}
+
+	/**
+	 * Record the time spent on every inference batch in the given metrics, see {@link SlideInferenceEngine#setMetrics}.
+	 */
+	public void setMetrics (final TrainingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public TrainingMetrics getMetrics () {
+		return metrics;
+	}
+
+	public MultiLayerNetwork getModel () {
+		return pool.getModel();
+	}
+
+	public DataNormalization getNormalization () {
+		return normalization;
+	}
+
+	/**
+	 * Get the number of inputs of the network.
+	 */
+	public int getInputSize () {
+		return ((FeedForwardLayer) getModel().getLayer(0).conf().getLayer()).getNIn();
+	}
+
+	/**
+	 * Get the number of outputs of the network.
+	 */
+	public int getOutputSize () {
+		return ((FeedForwardLayer) getModel().getOutputLayer().conf().getLayer()).getNOut();
+	}
+
+	/**
+	 * Get the measurements used as input for the given objects. These are the measurement names set on
+	 * the engine or stored with the model. Models saved without names are assumed to be trained on all
+	 * measurements of the objects, in the order of their measurement lists, except the outputs a previous
+	 * run wrote back and the other {@link DerivedMeasurements}.
+	 *
+	 * @throws IllegalArgumentException if the number of measurements does not match the network.
+	 */
+	public List <String> getMeasurementNames (final Collection <? extends PathObject> pathObjects) {
+		List <String> measurements = measurementNames;
+		if (measurements == null) {
+			logger.warn("No input measurement names are stored with the network - using all measurements except earlier outputs");
+			measurements = DerivedMeasurements.getInputMeasurements(
+					pathObjects.iterator().next().getMeasurementList().getMeasurementNames(), measurementPrefix + " ");
+		}
+		if (measurements.size() != getInputSize()) {
+			throw new IllegalArgumentException("The network expects " + getInputSize() +
+					" measurements, but the objects have " + measurements.size());
+		}
+		return measurements;
+	}
+
+	/**
+	 * Run the network on all detections of an image and write the results to them.
+	 *
+	 * @return Number of detections that received a result.
+	 */
+	public int run (final ImageData <BufferedImage> imageData) {
+		PathObjectHierarchy hierarchy = imageData.getHierarchy();
+		Collection <PathObject> detections = hierarchy.getObjects(null, PathDetectionObject.class);
+		int count = run(detections, null, null);
+		if (count > 0) {
+			hierarchy.fireHierarchyChangedEvent(this);
+		}
+		return count;
+	}
+
+	/**
+	 * Run the network on the given objects and write the results to them.
+	 *
+	 * @param pathObjects Objects to run the inference on.
+	 * @param progress Receives the fraction done, from any thread; may be null.
+	 * @param cancelled Checked regularly; may be null.
+	 * @return Number of objects that received a result.
+	 */
+	public int run (final Collection <? extends PathObject> pathObjects, final DoubleConsumer progress, final BooleanSupplier cancelled) {
+
+		if (pathObjects.isEmpty()) {
+			return 0;
+		}
+		SlideInferenceEngine engine = new SlideInferenceEngine(pool, getMeasurementNames(pathObjects), normalization, batchSize, threads);
+		if (classNames != null) {
+			engine.setOutputAsClassification(classNames);
+		}
+		else {
+			engine.setOutputAsMeasurements(measurementPrefix);
+		}
+		engine.setMetrics(metrics);
+		return engine.run(pathObjects, progress, cancelled);
+	}
+
+}
@@ -0,0 +1,126 @@
+package qupath.lib.deep_learning;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Command-line runner which applies a trained network to the detections of a cohort of slides,
+ * without starting the QuPath GUI. The slides are read from their .qpdata files, processed by a
+ * {@link BatchScheduler} and written back (to the same files or to an output directory). Running
+ * the same command again after an interruption skips the slides in the journal.
+ *
+ * A cohort can be spread over several nodes with --shard: node i of n only processes the slides whose
+ * position in the argument list modulo n equals i.
+ *
+ * Usage:
+ * <pre>
+ *     DL4JRunner --model network.zip|network.dl4j [--output dir] [--concurrent n] [--memory mb] [--journal file]
+ *                [--batch-size n] [--classes A,B,C | --prefix name] [--shard i/n] slide1.qpdata slide2.qpdata ...
+ * </pre>
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class DL4JRunner {
+
+	private static final Logger logger = LoggerFactory.getLogger(DL4JRunner.class);
+
+	public static void main (final String [] args) throws Exception {
+
+		File modelFile = null;
+		File outputDir = null;
+		File journal = null;
+		int concurrent = 1;
+		long memoryMegabytes = 0;
+		int batchSize = DL4JEngine.DEFAULT_BATCH_SIZE;
+		List <String> classNames = null;
+		String prefix = null;
+		int shard = 0, shardCount = 1;
+		List <File> slides = new ArrayList<>();
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--model":
+					modelFile = new File(args[++i]);
+					break;
+				case "--output":
+					outputDir = new File(args[++i]);
+					break;
+				case "--concurrent":
+					concurrent = Integer.parseInt(args[++i]);
+					break;
+				case "--memory":
+					memoryMegabytes = Long.parseLong(args[++i]);
+					break;
+				case "--journal":
+					journal = new File(args[++i]);
+					break;
+				case "--batch-size":
+					batchSize = Integer.parseInt(args[++i]);
+					break;
+				case "--classes":
+					classNames = Arrays.asList(args[++i].split(","));
+					break;
+				case "--prefix":
+					prefix = args[++i];
+					break;
+				case "--shard":
+					String [] parts = args[++i].split("/");
+					shard = Integer.parseInt(parts[0]);
+					shardCount = Integer.parseInt(parts[1]);
+					break;
+				default:
+					slides.add(new File(args[i]));
+			}
+		}
+
+		if (modelFile == null || slides.isEmpty() || shard < 0 || shard >= shardCount) {
+			System.err.println("Usage: DL4JRunner --model network.zip [--output dir] [--concurrent n] [--memory mb] " +
+					"[--journal file] [--batch-size n] [--classes A,B,C | --prefix name] [--shard i/n] slide.qpdata ...");
+			System.exit(1);
+		}
+
+		DL4JEngine engine = DL4JEngine.load(modelFile);
+		engine.setBatchSize(batchSize);
+		if (classNames != null) {
+			engine.setOutputAsClassification(classNames);
+		}
+		else if (prefix != null) {
+			engine.setOutputAsMeasurements(prefix);
+		}
+
+		List <File> shardSlides = new ArrayList<>();
+		for (int i = shard; i < slides.size(); i += shardCount) {
+			shardSlides.add(slides.get(i));
+		}
+
+		BatchScheduler scheduler = new BatchScheduler(engine, concurrent, memoryMegabytes * 1024 * 1024);
+		scheduler.setOutputDirectory(outputDir);
+		if (journal == null && shardCount > 1) {
+			// Nodes must not append to the same journal
+			File dir = outputDir != null ? outputDir : slides.get(0).getAbsoluteFile().getParentFile();
+			journal = new File(dir, BatchScheduler.DEFAULT_JOURNAL_NAME + "." + shard);
+		}
+		if (journal != null) {
+			scheduler.setJournal(journal);
+		}
+
+		int failed = 0;
+		for (BatchScheduler.SlideResult result : scheduler.run(shardSlides, null)) {
+			if (result.getStatus() == BatchScheduler.Status.FAILED) {
+				failed++;
+			}
+		}
+
+		if (failed > 0) {
+			logger.error("{} slides failed", failed);
+			System.exit(2);
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Prefixes of the measurements the extension writes back to objects: principal components, t-SNE
+ * coordinates and network outputs. These are results rather than inputs, so the commands leave them
+ * out when they use "all measurements" of the objects; otherwise every run would feed on the results
+ * of the previous one.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class DerivedMeasurements {
+
+	public static final String PCA_PREFIX = "PCA ";
+	public static final String TSNE_PREFIX = "t-SNE ";
+	public static final String OUTPUT_PREFIX = SlideInferenceEngine.DEFAULT_MEASUREMENT_PREFIX + " ";
+
+	/**
+	 * All prefixes of derived measurements.
+	 */
+	public static final List <String> PREFIXES = Collections.unmodifiableList(Arrays.asList(PCA_PREFIX, TSNE_PREFIX, OUTPUT_PREFIX));
+
+	private DerivedMeasurements () {}
+
+	/**
+	 * Check if a measurement was written by the extension, or starts with one of the extra prefixes.
+	 */
+	public static boolean isDerived (final String name, final String... extraPrefixes) {
+		for (String prefix : PREFIXES) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		for (String prefix : extraPrefixes) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the measurement names that are not derived, in their original order.
+	 *
+	 * @param names Measurement names, e.g. of the measurement list of an object.
+	 * @param extraPrefixes Other prefixes to leave out, e.g. a custom output prefix.
+	 */
+	public static List <String> getInputMeasurements (final Collection <String> names, final String... extraPrefixes) {
+		List <String> inputs = new ArrayList<>(names.size());
+		for (String name : names) {
+			if (!isDerived(name, extraPrefixes)) {
+				inputs.add(name);
+			}
+		}
+		return inputs;
+	}
+
+}
@@ -0,0 +1,332 @@
+package qupath.lib.deep_learning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.dataset.api.preprocessor.serializer.NormalizerSerializer;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uncompressed model format, stored as a directory next to the regular zip format of
+ * {@link org.deeplearning4j.util.ModelSerializer}. The directory holds:
+ * <ul>
+ *     <li>configuration.json: the network configuration</li>
+ *     <li>parameters.bin: a small header followed by the raw parameter values</li>
+ *     <li>updater.bin: the updater state in the same layout, optional</li>
+ *     <li>normalizer.bin: the fitted normalizer, optional</li>
+ *     <li>measurements.txt: the input measurement names, one per line, optional</li>
+ * </ul>
+ *
+ * Nothing is decompressed. For inference (without the updater state) the parameter file is memory-mapped
+ * copy-on-write: the network uses the mapping directly, the values are paged in as they are first used,
+ * and changes to the parameters stay private to the process, so they never reach the file. When the
+ * updater is loaded to continue training, the parameters are read in one bulk read straight into an
+ * array owned by ND4J instead, so the network can be written back to the same directory; a mapped file
+ * cannot be replaced on Windows while the mapping is alive. Leaving out the updater state halves the
+ * size of inference-only models.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class FastModelFormat {
+
+	private static final Logger logger = LoggerFactory.getLogger(FastModelFormat.class);
+
+	public static final String EXTENSION = ".dl4j";
+
+	private static final String CONFIGURATION_FILE = "configuration.json";
+	private static final String PARAMETERS_FILE = "parameters.bin";
+	private static final String UPDATER_FILE = "updater.bin";
+	private static final String NORMALIZER_FILE = "normalizer.bin";
+	private static final String MEASUREMENTS_FILE = "measurements.txt";
+
+	private static final int MAGIC = 0x51444C4D; // "QDLM"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+	private FastModelFormat () {}
+
+	/**
+	 * Check whether a file is a model in this format.
+	 */
+	public static boolean isFastModel (final File file) {
+		return file.isDirectory() && new File(file, CONFIGURATION_FILE).isFile() && new File(file, PARAMETERS_FILE).isFile();
+	}
+
+	/**
+	 * Get the files of a model in this format which exist, in a fixed order.
+	 */
+	public static List <File> getFiles (final File directory) {
+		List <File> files = new ArrayList<>();
+		for (String name : new String[] {CONFIGURATION_FILE, PARAMETERS_FILE, UPDATER_FILE, NORMALIZER_FILE, MEASUREMENTS_FILE}) {
+			File file = new File(directory, name);
+			if (file.isFile()) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Write a network. The model is written to a temporary directory first, which then replaces the target.
+	 *
+	 * @param directory Directory of the model; conventionally ending in {@value #EXTENSION}.
+	 * @param model The network.
+	 * @param normalization The fitted normalizer, or null.
+	 * @param measurementNames Names of the input measurements, or null.
+	 * @param saveUpdater Whether to store the updater state, needed to continue training.
+	 */
+	public static void write (final File directory, final MultiLayerNetwork model, final DataNormalization normalization,
+							  final List <String> measurementNames, final boolean saveUpdater) throws IOException {
+
+		long start = System.currentTimeMillis();
+		File parent = directory.getAbsoluteFile().getParentFile();
+		File temp = new File(parent, directory.getName() + ".tmp");
+		deleteDirectory(temp);
+		if (!temp.mkdirs()) {
+			throw new IOException("Could not create " + temp);
+		}
+
+		try {
+			Files.write(new File(temp, CONFIGURATION_FILE).toPath(), model.getLayerWiseConfigurations().toJson().getBytes(StandardCharsets.UTF_8));
+			writeArray(new File(temp, PARAMETERS_FILE), model.params());
+			if (saveUpdater && model.getUpdater() != null && model.getUpdater().getStateViewArray() != null) {
+				writeArray(new File(temp, UPDATER_FILE), model.getUpdater().getStateViewArray());
+			}
+			if (normalization != null) {
+				NormalizerSerializer.getDefault().write(normalization, new File(temp, NORMALIZER_FILE));
+			}
+			if (measurementNames != null) {
+				Files.write(new File(temp, MEASUREMENTS_FILE).toPath(), measurementNames, StandardCharsets.UTF_8);
+			}
+
+			// Replace the previous model, if any
+			File old = new File(parent, directory.getName() + ".old");
+			if (directory.exists()) {
+				deleteDirectory(old);
+				Files.move(directory.toPath(), old.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			Files.move(temp.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			deleteDirectory(old);
+		} finally {
+			deleteDirectory(temp);
+		}
+		logger.info("Wrote model to {} in {} ms", directory, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Read a network.
+	 *
+	 * @param directory Directory of the model.
+	 * @param loadUpdater Whether to restore the updater state; not needed for inference.
+	 */
+	public static LoadedModel read (final File directory, final boolean loadUpdater) throws IOException {
+
+		long start = System.currentTimeMillis();
+		if (!isFastModel(directory)) {
+			throw new IOException(directory + " is not a model directory");
+		}
+
+		String json = new String(Files.readAllBytes(new File(directory, CONFIGURATION_FILE).toPath()), StandardCharsets.UTF_8);
+		MultiLayerNetwork model = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(json));
+		INDArray params = readArray(new File(directory, PARAMETERS_FILE), !loadUpdater);
+		// The parameters are not shared with anything else, so the network can use them without a copy
+		model.init(params, false);
+
+		File updaterFile = new File(directory, UPDATER_FILE);
+		if (loadUpdater && updaterFile.isFile()) {
+			model.getUpdater().setStateViewArray(model, readArray(updaterFile, false), false);
+		}
+
+		DataNormalization normalization = null;
+		File normalizerFile = new File(directory, NORMALIZER_FILE);
+		if (normalizerFile.isFile()) {
+			try {
+				normalization = NormalizerSerializer.getDefault().restore(normalizerFile);
+			} catch (Exception e) {
+				throw new IOException("Could not read the normalizer of " + directory, e);
+			}
+		}
+
+		List <String> measurementNames = null;
+		File measurementsFile = new File(directory, MEASUREMENTS_FILE);
+		if (measurementsFile.isFile()) {
+			measurementNames = Collections.unmodifiableList(Files.readAllLines(measurementsFile.toPath(), StandardCharsets.UTF_8));
+		}
+
+		logger.info("Read model {} in {} ms", directory, System.currentTimeMillis() - start);
+		return new LoadedModel(model, normalization, measurementNames);
+	}
+
+	/**
+	 * Write an array as a header (magic, version, element size, length) followed by its little-endian values.
+	 */
+	private static void writeArray (final File file, final INDArray array) throws IOException {
+
+		INDArray values = array.isView() || array.ordering() != 'c' ? array.dup('c') : array;
+		boolean isDouble = values.data().dataType() == DataBuffer.Type.DOUBLE;
+		int elementBytes = isDouble ? 8 : 4;
+		long bytes = (long) values.length() * elementBytes;
+		if (HEADER_BYTES + bytes > Integer.MAX_VALUE) {
+			throw new IOException("Array of " + values.length() + " values is too large for this format - use the zip format instead");
+		}
+
+		// Written through a channel rather than a mapping, which would keep the file locked on Windows
+		// until it is garbage collected and block the move of the directory
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(elementBytes).putInt(values.length());
+			if (isDouble) {
+				for (double v : values.data().asDouble()) {
+					if (buffer.remaining() < 8) {
+						writeFully(channel, buffer);
+					}
+					buffer.putDouble(v);
+				}
+			}
+			else {
+				for (float v : values.data().asFloat()) {
+					if (buffer.remaining() < 4) {
+						writeFully(channel, buffer);
+					}
+					buffer.putFloat(v);
+				}
+			}
+			writeFully(channel, buffer);
+			channel.force(false);
+		}
+	}
+
+	private static void writeFully (final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Read an array written by {@link #writeArray}, as a row vector of ND4J's current data type.
+	 *
+	 * @param map Whether to return a view on a private (copy-on-write) mapping of the file, rather than
+	 *            reading the values into memory owned by ND4J. Only possible if the file holds values of
+	 *            the current data type in the native byte order; otherwise the values are converted.
+	 */
+	private static INDArray readArray (final File file, final boolean map) throws IOException {
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, file);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException(file + " is not a parameter file of a supported version");
+			}
+			int elementBytes = header.getInt();
+			int length = header.getInt();
+			if (channel.size() != HEADER_BYTES + (long) length * elementBytes) {
+				throw new IOException(file + " is truncated");
+			}
+
+			DataBuffer.Type type = elementBytes == 8 ? DataBuffer.Type.DOUBLE : DataBuffer.Type.FLOAT;
+			if (type == Nd4j.dataType() && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+				if (map) {
+					// createBuffer wraps the mapping without copying; the buffer keeps the mapping alive,
+					// and it stays valid after the channel is closed
+					ByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, HEADER_BYTES, (long) length * elementBytes);
+					return Nd4j.create(Nd4j.createBuffer(mapped, type, length), new int[] {1, length});
+				}
+				// Read straight into the memory of a new array, so the values are copied only once
+				INDArray array = Nd4j.createUninitialized(new int[] {1, length}, 'c');
+				ByteBuffer target = array.data().asNio();
+				target.clear();
+				target.limit(length * elementBytes);
+				readFully(channel, target, file);
+				return array;
+			}
+
+			// Different precision or byte order: convert through the heap
+			ByteBuffer values = ByteBuffer.allocate(length * elementBytes).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, values, file);
+			values.flip();
+			if (elementBytes == 8) {
+				double [] data = new double[length];
+				values.asDoubleBuffer().get(data);
+				return Nd4j.create(data, new int[] {1, length});
+			}
+			float [] data = new float[length];
+			values.asFloatBuffer().get(data);
+			return Nd4j.create(data, new int[] {1, length});
+		}
+	}
+
+	private static void readFully (final FileChannel channel, final ByteBuffer buffer, final File file) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException(file + " is truncated");
+			}
+		}
+	}
+
+	private static void deleteDirectory (final File directory) throws IOException {
+		File [] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+		Files.deleteIfExists(directory.toPath());
+	}
+
+	/**
+	 * A network read from disk, with the normalizer and measurement names stored with it.
+	 */
+	public static class LoadedModel {
+
+		private final MultiLayerNetwork model;
+		private final DataNormalization normalization;
+		private final List <String> measurementNames;
+
+		LoadedModel (final MultiLayerNetwork model, final DataNormalization normalization, final List <String> measurementNames) {
+			this.model = model;
+			this.normalization = normalization;
+			this.measurementNames = measurementNames;
+		}
+
+		public MultiLayerNetwork getModel () {
+			return model;
+		}
+
+		/**
+		 * Get the normalizer, or null if the model was stored without one.
+		 */
+		public DataNormalization getNormalization () {
+			return normalization;
+		}
+
+		/**
+		 * Get the input measurement names, or null if they were not stored.
+		 */
+		public List <String> getMeasurementNames () {
+			return measurementNames;
+		}
+	}
+
+}
@@ -0,0 +1,341 @@
+package qupath.lib.deep_learning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * On-disk cache of feature matrices, one binary file per key. A key is derived from the image path,
+ * the modification time of the saved image data, the objects and the measurement names; these are cheap
+ * to hash, unlike the measurement values themselves. A cached matrix is therefore only valid for image
+ * data that is saved and unchanged since it was read, see {@link #getMeasurementMatrix}.
+ *
+ * The files hold a small header followed by the row-major float32 values, and are read through memory
+ * mapping: loading a matrix costs no conversion or copy, and {@link CachedFeatures#iterator(int)} can
+ * train on matrices which do not fit on the heap.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class FeatureCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(FeatureCache.class);
+
+	private static final int MAGIC = 0x51444C34; // "QDL4"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final String EXTENSION = ".features";
+
+	// Keep single mappings well below the 2 GB limit of a MappedByteBuffer
+	private static final long SEGMENT_BYTES = 1L << 30;
+	private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+	private final File directory;
+
+	public FeatureCache (final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Default cache location in the user's home directory.
+	 */
+	public static File getDefaultDirectory () {
+		return new File(new File(System.getProperty("user.home"), ".qupath-dl4j"), "feature-cache");
+	}
+
+	/**
+	 * Create a cache key for features of the given objects. QuPath objects do not have a persistent ID,
+	 * so every object is identified by its position in the list and its ROI bounds; the measurement values
+	 * are not read. Changed measurements are detected through the modification time of the saved image
+	 * data, so the key is only valid for image data without unsaved changes.
+	 *
+	 * @param imagePath Path of the image server.
+	 * @param dataModified Modification time of the saved image data (.qpdata) the objects were read from.
+	 * @param pathObjects Objects, in the order of the rows.
+	 * @param measurementNames Names of the columns.
+	 * @param variant Distinguishes different features of the same objects, e.g. the layer of an embedding; may be null.
+	 */
+	public static String createKey (final String imagePath, final long dataModified, final Collection <? extends PathObject> pathObjects,
+									final List <String> measurementNames, final String variant) {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		digest.update(String.valueOf(imagePath).getBytes(StandardCharsets.UTF_8));
+		digest.update(String.valueOf(variant).getBytes(StandardCharsets.UTF_8));
+		for (String name : measurementNames) {
+			digest.update(name.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putLong(dataModified).putInt(pathObjects.size()).flip();
+		digest.update(buffer);
+		for (PathObject pathObject : pathObjects) {
+			buffer.clear();
+			ROI roi = pathObject.getROI();
+			if (roi != null) {
+				buffer.putFloat((float) roi.getBoundsX()).putFloat((float) roi.getBoundsY())
+						.putFloat((float) roi.getBoundsWidth()).putFloat((float) roi.getBoundsHeight());
+			}
+			buffer.flip();
+			digest.update(buffer);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	public File getFile (final String key) {
+		return new File(directory, key + EXTENSION);
+	}
+
+	public boolean contains (final String key) {
+		return getFile(key).isFile();
+	}
+
+	/**
+	 * Write a matrix to the cache. The file is written next to its final location and moved into place
+	 * when complete, so readers never see a partial file. It is written through a channel rather than a
+	 * mapping, as a mapped file cannot be moved or replaced on Windows until the mapping is collected.
+	 * A key that is in the cache already holds the same features, so an existing file is kept.
+	 */
+	public void write (final String key, final INDArray matrix) throws IOException {
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create cache directory " + directory);
+		}
+
+		final int rows = matrix.rows();
+		final int cols = matrix.columns();
+		final File file = getFile(key);
+		final File temp = new File(directory, key + ".tmp");
+
+		try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			 FileChannel channel = raf.getChannel()) {
+
+			raf.setLength(0);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(cols);
+
+			int segmentRows = getSegmentRows(cols);
+			for (int start = 0; start < rows; start += segmentRows) {
+				int end = Math.min(rows, start + segmentRows);
+				INDArray segment = matrix.get(NDArrayIndex.interval(start, end), NDArrayIndex.all()).dup('c');
+				for (float v : segment.data().asFloat()) {
+					if (buffer.remaining() < 4) {
+						writeFully(channel, buffer);
+					}
+					buffer.putFloat(v);
+				}
+			}
+			writeFully(channel, buffer);
+			channel.force(false);
+		}
+
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// Another writer was first, or the existing file is mapped (Windows)
+			Files.deleteIfExists(temp.toPath());
+			if (!file.isFile()) {
+				throw e;
+			}
+			logger.debug("Keeping the existing cache file {}", file);
+			return;
+		}
+		logger.info("Cached {} x {} features in {}", rows, cols, file);
+	}
+
+	private static void writeFully (final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Open a cached matrix.
+	 *
+	 * @return The mapped features, or null if the key is not in the cache or the file is invalid.
+	 */
+	public CachedFeatures open (final String key) throws IOException {
+
+		File file = getFile(key);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			raf.getChannel().read(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				logger.warn("Ignoring invalid feature cache file {}", file);
+				return null;
+			}
+			int rows = header.getInt();
+			int cols = header.getInt();
+			if (raf.length() != HEADER_BYTES + (long) rows * cols * 4) {
+				logger.warn("Ignoring truncated feature cache file {}", file);
+				return null;
+			}
+			return new CachedFeatures(file, rows, cols);
+		}
+	}
+
+	/**
+	 * Get the measurement matrix of the objects from the cache, or build it and add it to the cache. A
+	 * cached matrix is a copy-on-write view on the mapped file, see {@link CachedFeatures#toINDArray()}.
+	 *
+	 * @param imagePath Path of the image server.
+	 * @param dataFile The saved image data the objects were read from; it must not have unsaved changes.
+	 * @param pathObjects Objects, in the order of the rows.
+	 * @param measurementNames Names of the columns.
+	 */
+	public MeasurementMatrix getMeasurementMatrix (final String imagePath, final File dataFile, final Collection <? extends PathObject> pathObjects,
+												   final List <String> measurementNames) throws IOException {
+
+		String key = createKey(imagePath, dataFile.lastModified(), pathObjects, measurementNames, null);
+		CachedFeatures cached = open(key);
+		if (cached != null && cached.getRowCount() == pathObjects.size() && cached.getColumnCount() == measurementNames.size()) {
+			logger.info("Loaded features of {} objects from the cache", cached.getRowCount());
+			return MeasurementMatrix.createInstance(new ArrayList<>(pathObjects), measurementNames, cached.toINDArray());
+		}
+
+		MeasurementMatrix matrix = MeasurementMatrix.build(pathObjects, measurementNames);
+		write(key, matrix.getMatrix());
+		return matrix;
+	}
+
+	private static int getSegmentRows (final int cols) {
+		return (int) Math.max(1, SEGMENT_BYTES / (Math.max(1, cols) * 4L));
+	}
+
+	/**
+	 * A feature matrix in the cache. The file is mapped in segments of at most 1 GB when rows are read.
+	 */
+	public static class CachedFeatures {
+
+		private final File file;
+		private final int rows;
+		private final int cols;
+		private final int segmentRows;
+		private final FloatBuffer [] segments;
+
+		private CachedFeatures (final File file, final int rows, final int cols) {
+			this.file = file;
+			this.rows = rows;
+			this.cols = cols;
+			this.segmentRows = getSegmentRows(cols);
+			this.segments = new FloatBuffer[(rows + segmentRows - 1) / segmentRows];
+		}
+
+		private synchronized FloatBuffer getSegment (final int segment) throws IOException {
+			if (segments[segment] == null) {
+				int start = segment * segmentRows;
+				int end = Math.min(rows, start + segmentRows);
+				try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+					 FileChannel channel = raf.getChannel()) {
+					// The mapping stays valid after the channel is closed
+					segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + (long) start * cols * 4,
+							(long) (end - start) * cols * 4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+				}
+			}
+			return segments[segment].duplicate();
+		}
+
+		/**
+		 * Copy consecutive rows into the given array.
+		 */
+		public void readRows (final int firstRow, final int count, final float [] dest) throws IOException {
+			int row = firstRow;
+			int offset = 0;
+			while (row < firstRow + count) {
+				int segment = row / segmentRows;
+				int inSegment = row - segment * segmentRows;
+				int n = Math.min(firstRow + count - row, segmentRows - inSegment);
+				FloatBuffer buffer = getSegment(segment);
+				buffer.position(inSegment * cols);
+				buffer.get(dest, offset, n * cols);
+				row += n;
+				offset += n * cols;
+			}
+		}
+
+		/**
+		 * Get the whole matrix as an INDArray. A matrix within a single segment is a view on a private
+		 * (copy-on-write) mapping of the file: nothing is read until it is used, and changes to the array
+		 * never reach the file. Larger matrices, or files in another precision or byte order than ND4J's,
+		 * are copied into a new array.
+		 */
+		public INDArray toINDArray () throws IOException {
+			if (rows > 0 && segments.length == 1 && Nd4j.dataType() == DataBuffer.Type.FLOAT
+					&& ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+				try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+					 FileChannel channel = raf.getChannel()) {
+					// createBuffer wraps the mapping without copying, and the buffer keeps the mapping alive
+					ByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, HEADER_BYTES, (long) rows * cols * 4);
+					return Nd4j.create(Nd4j.createBuffer(mapped, DataBuffer.Type.FLOAT, rows * cols), new int[] {rows, cols});
+				}
+			}
+
+			INDArray matrix = Nd4j.create(new int[] {rows, cols}, 'c');
+			float [] chunk = new float[Math.min(rows, segmentRows) * cols];
+			for (int start = 0; start < rows; start += segmentRows) {
+				int n = Math.min(segmentRows, rows - start);
+				float [] data = n * cols == chunk.length ? chunk : new float[n * cols];
+				readRows(start, n, data);
+				matrix.get(NDArrayIndex.interval(start, start + n), NDArrayIndex.all())
+						.assign(Nd4j.create(data, new int[] {n, cols}, 'c'));
+			}
+			return matrix;
+		}
+
+		/**
+		 * Iterate over the rows in minibatches, reading every minibatch from the mapped file.
+		 */
+		public MappedFeatureIterator iterator (final int batchSize) {
+			return new MappedFeatureIterator(this, batchSize);
+		}
+
+		public int getRowCount () {
+			return rows;
+		}
+
+		public int getColumnCount () {
+			return cols;
+		}
+	}
+
+}
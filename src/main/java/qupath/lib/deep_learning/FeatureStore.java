@@ -0,0 +1,199 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+
+/**
+ * Fixed-size storage for the high-level features of many PathObjects. All features live in one
+ * contiguous off-heap matrix with one row per object, so no boxed values are kept and the whole store
+ * can be handed to ND4J (PCA, t-SNE, ...) without copying.
+ *
+ * Rows are reserved under a lock, but distinct rows can be written concurrently. Every reserved row is
+ * a new row, also for a null object or an object that is in the store already, so the rows follow the
+ * samples they were reserved for; looking up the row of an object is only an optional extra.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class FeatureStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(FeatureStore.class);
+
+	private final int capacity;
+	private final int dimension;
+	private final INDArray matrix;
+	private final DataBuffer data;
+
+	private final List <PathObject> pathObjects;
+	// Lookup of the first row of every object, built on the first call of indexOf
+	private Map <PathObject, Integer> rows;
+	private int mappedRows = 0;
+
+	/**
+	 * @param capacity Maximum number of objects in the store.
+	 * @param dimension Number of features per object.
+	 */
+	public FeatureStore (final int capacity, final int dimension) {
+		this.capacity = capacity;
+		this.dimension = dimension;
+		this.matrix = Nd4j.create(new int[] {Math.max(1, capacity), dimension}, 'c');
+		this.data = matrix.data();
+		this.pathObjects = new ArrayList<>(capacity);
+	}
+
+	/**
+	 * Reserve the next row for the given object.
+	 *
+	 * @param pathObject The object the row belongs to; may be null.
+	 * @return The new row.
+	 * @throws IllegalStateException if the store is full.
+	 */
+	public synchronized int add (final PathObject pathObject) {
+		if (pathObjects.size() >= capacity) {
+			throw new IllegalStateException("Feature store is full (" + capacity + " objects)");
+		}
+		pathObjects.add(pathObject);
+		return pathObjects.size() - 1;
+	}
+
+	/**
+	 * Reserve consecutive rows for the given objects, one per object in the order of the list.
+	 *
+	 * @return The first of the new rows.
+	 * @throws IllegalStateException if the objects do not fit in the store.
+	 */
+	public synchronized int addAll (final List <? extends PathObject> objects) {
+		if (pathObjects.size() + objects.size() > capacity) {
+			throw new IllegalStateException("Feature store is full (" + capacity + " objects)");
+		}
+		int first = pathObjects.size();
+		pathObjects.addAll(objects);
+		return first;
+	}
+
+	public void set (final int row, final double [] features) {
+		checkLength(features.length);
+		long offset = (long) row * dimension;
+		for (int i = 0; i < dimension; i++) {
+			data.put(offset + i, features[i]);
+		}
+	}
+
+	public void set (final int row, final float [] features) {
+		checkLength(features.length);
+		long offset = (long) row * dimension;
+		for (int i = 0; i < dimension; i++) {
+			data.put(offset + i, features[i]);
+		}
+	}
+
+	/**
+	 * Copy the given array of shape [n, dimension] into the rows starting at the given row.
+	 */
+	public void set (final int firstRow, final INDArray features) {
+		checkLength(features.columns());
+		matrix.get(NDArrayIndex.interval(firstRow, firstRow + features.rows()), NDArrayIndex.all()).assign(features);
+	}
+
+	private void checkLength (final int length) {
+		if (length != dimension) {
+			throw new IllegalArgumentException("Expected " + dimension + " features, got " + length);
+		}
+	}
+
+	public double get (final int row, final int feature) {
+		return data.getDouble((long) row * dimension + feature);
+	}
+
+	/**
+	 * Copy the features of a row into the given array, which must be at least the dimension long.
+	 */
+	public float [] get (final int row, final float [] dest) {
+		long offset = (long) row * dimension;
+		for (int i = 0; i < dimension; i++) {
+			dest[i] = data.getFloat(offset + i);
+		}
+		return dest;
+	}
+
+	/**
+	 * Get the first row of the given object, or -1 if it is not in the store.
+	 */
+	public synchronized int indexOf (final PathObject pathObject) {
+		if (rows == null) {
+			rows = new HashMap<>();
+		}
+		for (; mappedRows < pathObjects.size(); mappedRows++) {
+			PathObject p = pathObjects.get(mappedRows);
+			if (p != null) {
+				rows.putIfAbsent(p, mappedRows);
+			}
+		}
+		Integer row = rows.get(pathObject);
+		return row == null ? -1 : row;
+	}
+
+	public synchronized PathObject getPathObject (final int row) {
+		return pathObjects.get(row);
+	}
+
+	public synchronized List <PathObject> getPathObjects () {
+		return Collections.unmodifiableList(new ArrayList<>(pathObjects));
+	}
+
+	/**
+	 * Get the features of a single object as a view on the store.
+	 */
+	public INDArray getRow (final int row) {
+		return matrix.getRow(row);
+	}
+
+	/**
+	 * Get a view of all stored features with shape [size, dimension]. Nothing is copied, so changes to
+	 * the returned array change the store.
+	 */
+	public INDArray getMatrix () {
+		int size = size();
+		if (size == capacity) {
+			return matrix;
+		}
+		return matrix.get(NDArrayIndex.interval(0, size), NDArrayIndex.all());
+	}
+
+	/**
+	 * Create a feature object for every object in the store.
+	 */
+	public List <PathFeatureObject> createFeatureObjects () {
+		int size = size();
+		List <PathFeatureObject> list = new ArrayList<>(size);
+		for (int row = 0; row < size; row++) {
+			list.add(new PathFeatureObject(this, row));
+		}
+		return list;
+	}
+
+	public synchronized int size () {
+		return pathObjects.size();
+	}
+
+	public int getCapacity () {
+		return capacity;
+	}
+
+	public int getDimension () {
+		return dimension;
+	}
+
+}
@@ -0,0 +1,257 @@
+package qupath.lib.deep_learning;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Iterator over a subset of the rows of a shared feature (and label) matrix, given as an array of
+ * row indices. Each minibatch is gathered into a new contiguous array, so the shared matrix is never
+ * changed and the preprocessor can safely be applied to every minibatch.
+ *
+ * The indices can be replaced with {@link #setIndices(int[])}, e.g. to move to the next fold of a
+ * cross-validation, without building a new iterator or copying the data.
+ *
+ * The features can be a matrix the samples are row views on, such as a {@link MeasurementMatrix} or a
+ * {@link FeatureStore}, with a separate row for every sample index; see {@link #findFeatureRows(List)}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class IndexedDataSetIterator implements DataSetIterator {
+
+	private static final long serialVersionUID = -3390154732412093610L;
+
+	private final INDArray features;
+	private final INDArray labels;
+	// Row of the features of every sample, or null if the features are in sample order
+	private final int [] featureRows;
+	// Shape of the features of a single example, e.g. [channels, height, width] for image patches
+	private final int [] exampleShape;
+	private int [] indices;
+	private int batchSize;
+	private int position = 0;
+	private DataSetPreProcessor preProcessor;
+
+	/**
+	 * @param features Features of all samples, one example per row (along the first dimension).
+	 * @param labels Labels of all samples, one row per example; may be null.
+	 * @param indices Rows to iterate over, in this order.
+	 * @param batchSize Maximum number of examples per minibatch.
+	 */
+	public IndexedDataSetIterator (final INDArray features, final INDArray labels, final int [] indices, final int batchSize) {
+		this(features, labels, null, indices, batchSize);
+	}
+
+	/**
+	 * @param features Features of all samples, one example per row (along the first dimension).
+	 * @param labels Labels of all samples, one row per sample index; may be null.
+	 * @param featureRows Row of the features of every sample index; null if they are the same.
+	 * @param indices Sample indices to iterate over, in this order.
+	 * @param batchSize Maximum number of examples per minibatch.
+	 */
+	public IndexedDataSetIterator (final INDArray features, final INDArray labels, final int [] featureRows, final int [] indices, final int batchSize) {
+		this.featureRows = featureRows;
+		this.exampleShape = Arrays.copyOfRange(features.shape(), 1, features.rank());
+		// Rows can only be gathered from a matrix, so higher dimensional examples are flattened
+		this.features = features.rank() > 2 ? features.reshape('c', features.size(0), (int) (features.length() / features.size(0))) : features;
+		this.labels = labels;
+		this.indices = indices;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Iterate over other rows of the shared matrices. The iterator is reset.
+	 */
+	public void setIndices (final int [] indices) {
+		this.indices = indices;
+		reset();
+	}
+
+	public int [] getIndices () {
+		return indices;
+	}
+
+	public void setBatchSize (final int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	@Override
+	public boolean hasNext () {
+		return position < indices.length;
+	}
+
+	@Override
+	public DataSet next () {
+		return next(batchSize);
+	}
+
+	@Override
+	public DataSet next (final int num) {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		int n = Math.min(num, indices.length - position);
+		int [] rows = Arrays.copyOfRange(indices, position, position + n);
+		position += n;
+
+		INDArray batchFeatures = Nd4j.pullRows(features, 1, featureRows == null ? rows : toFeatureRows(rows));
+		if (exampleShape.length > 1) {
+			int [] shape = new int[exampleShape.length + 1];
+			shape[0] = n;
+			System.arraycopy(exampleShape, 0, shape, 1, exampleShape.length);
+			batchFeatures = batchFeatures.reshape('c', shape);
+		}
+		INDArray batchLabels = labels == null ? null : Nd4j.pullRows(labels, 1, rows);
+
+		DataSet batch = new DataSet(batchFeatures, batchLabels);
+		if (preProcessor != null) {
+			preProcessor.preProcess(batch);
+		}
+		return batch;
+	}
+
+	private int [] toFeatureRows (final int [] indices) {
+		int [] rows = new int[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			rows[i] = featureRows[indices[i]];
+		}
+		return rows;
+	}
+
+	/**
+	 * Find the rows of the matrix that the features of all samples are row views on, e.g. the rows of a
+	 * {@link MeasurementMatrix} (see {@link MeasurementMatrix#toDataSets()}) or a {@link FeatureStore}.
+	 *
+	 * @return The matrix and the row of every sample, or null if the samples do not share one matrix.
+	 */
+	public static SharedRows findFeatureRows (final List <? extends PathDataSet> samples) {
+
+		if (samples.isEmpty()) {
+			return null;
+		}
+		INDArray first = samples.get(0).getFeatures();
+		if (first == null || first.rank() != 2 || first.rows() != 1) {
+			return null;
+		}
+		final int columns = first.columns();
+		final DataBuffer buffer = rootBuffer(first);
+		int [] rows = new int[samples.size()];
+		for (int i = 0; i < rows.length; i++) {
+			INDArray features = samples.get(i).getFeatures();
+			if (features == null || rootBuffer(features) != buffer || features.rank() != 2 || features.rows() != 1
+					|| features.columns() != columns || (columns > 1 && features.stride(1) != 1)) {
+				return null;
+			}
+			long offset = features.offset();
+			if (offset % columns != 0) {
+				return null;
+			}
+			rows[i] = (int) (offset / columns);
+		}
+		// A view on the whole buffer, so nothing is copied
+		INDArray matrix = Nd4j.create(buffer, new int[] {(int) (buffer.length() / columns), columns});
+		return new SharedRows(matrix, rows);
+	}
+
+	/**
+	 * Get the buffer an array is a view on, or its own buffer.
+	 */
+	private static DataBuffer rootBuffer (final INDArray array) {
+		DataBuffer buffer = array.data();
+		DataBuffer original = buffer.originalDataBuffer();
+		return original == null ? buffer : original;
+	}
+
+	/**
+	 * Matrix shared by the features of several samples, with the row of every sample.
+	 */
+	public static class SharedRows {
+
+		private final INDArray matrix;
+		private final int [] rows;
+
+		SharedRows (final INDArray matrix, final int [] rows) {
+			this.matrix = matrix;
+			this.rows = rows;
+		}
+
+		public INDArray getMatrix () {
+			return matrix;
+		}
+
+		public int [] getRows () {
+			return rows;
+		}
+	}
+
+	@Override
+	public void reset () {
+		position = 0;
+	}
+
+	@Override
+	public int totalExamples () {
+		return indices.length;
+	}
+
+	@Override
+	public int inputColumns () {
+		return features.columns();
+	}
+
+	@Override
+	public int totalOutcomes () {
+		return labels == null ? 0 : labels.columns();
+	}
+
+	@Override
+	public boolean resetSupported () {
+		return true;
+	}
+
+	@Override
+	public boolean asyncSupported () {
+		return true;
+	}
+
+	@Override
+	public int batch () {
+		return batchSize;
+	}
+
+	@Override
+	public int cursor () {
+		return position;
+	}
+
+	@Override
+	public int numExamples () {
+		return indices.length;
+	}
+
+	@Override
+	public void setPreProcessor (final DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor () {
+		return preProcessor;
+	}
+
+	@Override
+	public List <String> getLabels () {
+		return null;
+	}
+
+}
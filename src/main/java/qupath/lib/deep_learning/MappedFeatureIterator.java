@@ -0,0 +1,134 @@
+package qupath.lib.deep_learning;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Iterates over a cached feature matrix in minibatches, reading each minibatch from the memory-mapped
+ * file. Only one minibatch is on the heap at a time, so the matrix may be larger than the heap.
+ * The minibatches hold features only.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class MappedFeatureIterator implements DataSetIterator {
+
+	private static final long serialVersionUID = -3417829065617380451L;
+
+	private final FeatureCache.CachedFeatures features;
+	private final int batchSize;
+	private final float [] buffer;
+	private int cursor = 0;
+	private DataSetPreProcessor preProcessor;
+
+	public MappedFeatureIterator (final FeatureCache.CachedFeatures features, final int batchSize) {
+		this.features = features;
+		this.batchSize = Math.max(1, batchSize);
+		this.buffer = new float[this.batchSize * features.getColumnCount()];
+	}
+
+	@Override
+	public DataSet next (final int num) {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		int cols = features.getColumnCount();
+		int n = Math.min(Math.min(num, batchSize), features.getRowCount() - cursor);
+		try {
+			features.readRows(cursor, n, buffer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		cursor += n;
+
+		float [] data = n == batchSize ? buffer : Arrays.copyOf(buffer, n * cols);
+		INDArray matrix = Nd4j.create(data, new int[] {n, cols}, 'c');
+
+		DataSet dataSet = new DataSet(matrix, null);
+		if (preProcessor != null) {
+			preProcessor.preProcess(dataSet);
+		}
+		return dataSet;
+	}
+
+	@Override
+	public DataSet next () {
+		return next(batchSize);
+	}
+
+	@Override
+	public boolean hasNext () {
+		return cursor < features.getRowCount();
+	}
+
+	@Override
+	public void reset () {
+		cursor = 0;
+	}
+
+	@Override
+	public int totalExamples () {
+		return features.getRowCount();
+	}
+
+	@Override
+	public int inputColumns () {
+		return features.getColumnCount();
+	}
+
+	@Override
+	public int totalOutcomes () {
+		return 0;
+	}
+
+	@Override
+	public boolean resetSupported () {
+		return true;
+	}
+
+	@Override
+	public boolean asyncSupported () {
+		return true;
+	}
+
+	@Override
+	public int batch () {
+		return batchSize;
+	}
+
+	@Override
+	public int cursor () {
+		return cursor;
+	}
+
+	@Override
+	public int numExamples () {
+		return features.getRowCount();
+	}
+
+	@Override
+	public void setPreProcessor (final DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor () {
+		return preProcessor;
+	}
+
+	@Override
+	public List <String> getLabels () {
+		return null;
+	}
+
+}
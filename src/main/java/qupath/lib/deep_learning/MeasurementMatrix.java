@@ -0,0 +1,184 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Columnar feature matrix for a whole collection of PathObjects. Every row holds the requested
+ * measurements of one object, in the order of the requested measurement names.
+ *
+ * The measurement names are resolved to column indices once, after which the rows are filled in
+ * parallel chunks into a single preallocated row-major array. Only one native allocation is made
+ * for the whole collection; the rows handed out by {@link #getRow(int)} are views on that matrix.
+ *
+ * Measurements missing from an object's measurement list are stored as NaN, so the normalization
+ * statistics can leave them out; they are replaced before the features reach a network, see {@link MissingValues}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class MeasurementMatrix {
+
+	private static final Logger logger = LoggerFactory.getLogger(MeasurementMatrix.class);
+
+	// Amount of objects handled by a single task when filling the matrix
+	private static final int CHUNK_SIZE = 4096;
+
+	private final List <PathObject> pathObjects;
+	private final List <String> measurementNames;
+	private final INDArray matrix;
+
+	private MeasurementMatrix (final List <PathObject> pathObjects, final List <String> measurementNames, final INDArray matrix) {
+		this.pathObjects = pathObjects;
+		this.measurementNames = measurementNames;
+		this.matrix = matrix;
+	}
+
+	/**
+	 * Extract the given measurements for all objects into a single matrix.
+	 *
+	 * @param pathObjects Objects to convert, one row per object.
+	 * @param measurementNames Names of the measurements to use as columns.
+	 * @return The filled measurement matrix.
+	 * @throws IllegalArgumentException if the matrix has more values than a Java array can hold.
+	 */
+	public static MeasurementMatrix build (final Collection <? extends PathObject> pathObjects, final List <String> measurementNames) {
+
+		final List <PathObject> objects = Collections.unmodifiableList(new ArrayList<>(pathObjects));
+		final List <String> names = Collections.unmodifiableList(new ArrayList<>(measurementNames));
+		final int rows = objects.size();
+		final int cols = names.size();
+		if ((long) rows * cols > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("A matrix of " + rows + " objects and " + cols + " measurements is too large - convert the objects in parts");
+		}
+
+		// Resolve every measurement name to its column once
+		final Map <String, Integer> columns = new HashMap<>(cols * 2);
+		for (int c = 0; c < cols; c++) {
+			columns.putIfAbsent(names.get(c), c);
+		}
+
+		// Fill a heap array in the precision ND4J is using, then hand it over in one go
+		final INDArray matrix;
+		final int [] shape = new int [] {rows, cols};
+		if (Nd4j.dataType() == DataBuffer.Type.DOUBLE) {
+			final double [] data = new double[rows * cols];
+			fill(objects, columns, cols, (i, v) -> data[i] = v);
+			matrix = Nd4j.create(data, shape, 'c');
+		}
+		else {
+			final float [] data = new float[rows * cols];
+			fill(objects, columns, cols, (i, v) -> data[i] = (float) v);
+			matrix = Nd4j.create(data, shape, 'c');
+		}
+
+		// Single objects are converted all the time, so this is not worth more than a debug message
+		logger.debug("Extracted {} measurements for {} objects.", cols, rows);
+
+		return new MeasurementMatrix(objects, names, matrix);
+	}
+
+	/**
+	 * Wrap an existing matrix, e.g. one loaded from a {@link FeatureCache}.
+	 *
+	 * @param pathObjects Objects, one per row.
+	 * @param measurementNames Names of the columns.
+	 * @param matrix Matrix of shape [objects, measurements].
+	 */
+	public static MeasurementMatrix createInstance (final List <? extends PathObject> pathObjects, final List <String> measurementNames, final INDArray matrix) {
+		if (matrix.rows() != pathObjects.size() || matrix.columns() != measurementNames.size()) {
+			throw new IllegalArgumentException("Matrix shape does not match the objects and measurements");
+		}
+		return new MeasurementMatrix(Collections.unmodifiableList(new ArrayList<>(pathObjects)),
+				Collections.unmodifiableList(new ArrayList<>(measurementNames)), matrix);
+	}
+
+	/**
+	 * Fill the values of all objects in parallel chunks. Each object's measurement list is walked
+	 * once and every value is looked up in the column map, so the cost is linear in the amount of measurements.
+	 */
+	private static void fill (final List <PathObject> objects, final Map <String, Integer> columns, final int cols, final ValueSetter setter) {
+
+		final int rows = objects.size();
+		final int chunks = (rows + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+		IntStream.range(0, chunks).parallel().forEach(chunk -> {
+			final int end = Math.min(rows, (chunk + 1) * CHUNK_SIZE);
+			for (int row = chunk * CHUNK_SIZE; row < end; row++) {
+				final int offset = row * cols;
+				for (int c = 0; c < cols; c++) {
+					setter.set(offset + c, Double.NaN);
+				}
+
+				final MeasurementList list = objects.get(row).getMeasurementList();
+				final int size = list.size();
+				for (int m = 0; m < size; m++) {
+					final Integer c = columns.get(list.getMeasurementName(m));
+					if (c != null) {
+						setter.set(offset + c, list.getMeasurementValue(m));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Create one PathDataSet per object whose features are a row view on this matrix.
+	 * No feature values are copied.
+	 *
+	 * @return List of datasets in the same order as the objects.
+	 */
+	public List <PathDataSet> toDataSets () {
+		final List <PathDataSet> dataSets = new ArrayList<>(pathObjects.size());
+		for (int i = 0; i < pathObjects.size(); i++) {
+			dataSets.add(new PathDataSet(pathObjects.get(i), getRow(i), null));
+		}
+		return dataSets;
+	}
+
+	/**
+	 * Get the features of a single object as a view on the matrix.
+	 */
+	public INDArray getRow (final int row) {
+		return matrix.getRow(row);
+	}
+
+	public INDArray getMatrix () {
+		return matrix;
+	}
+
+	public List <PathObject> getPathObjects () {
+		return pathObjects;
+	}
+
+	public List <String> getMeasurementNames () {
+		return measurementNames;
+	}
+
+	public int size () {
+		return pathObjects.size();
+	}
+
+	public int getColumnCount () {
+		return measurementNames.size();
+	}
+
+	private interface ValueSetter {
+		void set (int index, double value);
+	}
+
+}
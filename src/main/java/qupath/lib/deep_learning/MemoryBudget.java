@@ -0,0 +1,160 @@
+package qupath.lib.deep_learning;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Off-heap memory budget for the working memory of a network: its parameters, gradients and updater
+ * state, plus the activations and errors of one minibatch. The memory needed is estimated from the
+ * layer sizes of the configuration, and the batch size is reduced when a minibatch would not fit.
+ *
+ * The budget also sizes the ND4J workspaces used for inference, and keeps track of the peak off-heap
+ * usage (as counted by JavaCPP, which includes the workspaces). The data itself is not part of the
+ * budget; the hard limit of JavaCPP can be set with the {@code org.bytedeco.javacpp.maxbytes} property.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class MemoryBudget {
+
+	private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+	// Activations, pre-activations and errors are kept for every layer during the backward pass
+	private static final int ARRAYS_PER_ACTIVATION = 3;
+	// Parameters, gradients and (at most) two arrays of updater state
+	private static final int ARRAYS_PER_PARAMETER = 4;
+
+	private final long maxBytes;
+	private volatile long peakBytes;
+
+	/**
+	 * @param maxBytes Maximum number of off-heap bytes the network may use; 0 or less means no limit.
+	 */
+	public MemoryBudget (final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public static MemoryBudget ofMegabytes (final long megabytes) {
+		return new MemoryBudget(megabytes * 1024 * 1024);
+	}
+
+	public long getMaxBytes () {
+		return maxBytes;
+	}
+
+	public boolean isLimited () {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * Estimate the bytes needed independently of the batch size: parameters, gradients and updater state.
+	 */
+	public static long estimateFixedBytes (final MultiLayerConfiguration conf) {
+		long params = 0;
+		for (NeuralNetConfiguration layerConf : conf.getConfs()) {
+			Layer layer = layerConf.getLayer();
+			if (layer instanceof FeedForwardLayer) {
+				FeedForwardLayer ff = (FeedForwardLayer) layer;
+				params += (long) ff.getNIn() * ff.getNOut() + ff.getNOut();
+			}
+		}
+		return params * ARRAYS_PER_PARAMETER * Nd4j.sizeOfDataType();
+	}
+
+	/**
+	 * Estimate the bytes needed per example in a minibatch: the activations and errors of every layer.
+	 */
+	public static long estimateBytesPerExample (final MultiLayerConfiguration conf) {
+		long values = 0;
+		for (NeuralNetConfiguration layerConf : conf.getConfs()) {
+			Layer layer = layerConf.getLayer();
+			if (layer instanceof FeedForwardLayer) {
+				FeedForwardLayer ff = (FeedForwardLayer) layer;
+				values += ff.getNIn() + ff.getNOut();
+			}
+		}
+		return values * ARRAYS_PER_ACTIVATION * Nd4j.sizeOfDataType();
+	}
+
+	/**
+	 * Estimate the bytes needed to train on minibatches of the given size.
+	 */
+	public static long estimateBytes (final MultiLayerConfiguration conf, final int batchSize) {
+		return estimateFixedBytes(conf) + estimateBytesPerExample(conf) * batchSize;
+	}
+
+	/**
+	 * Return the largest batch size, at most the requested one, for which training fits in the budget.
+	 * The batch size is halved until it fits; 1 is returned if not even a single example fits.
+	 */
+	public int fitBatchSize (final MultiLayerConfiguration conf, final int batchSize) {
+
+		if (!isLimited()) {
+			return batchSize;
+		}
+
+		int size = Math.max(1, batchSize);
+		while (size > 1 && estimateBytes(conf, size) > maxBytes) {
+			size /= 2;
+		}
+
+		if (estimateBytes(conf, size) > maxBytes) {
+			logger.warn("Network needs about {} MB, which exceeds the memory budget of {} MB even for single examples.",
+					toMegabytes(estimateBytes(conf, size)), toMegabytes(maxBytes));
+		}
+		return size;
+	}
+
+	/**
+	 * Create the configuration of a workspace holding the arrays of one minibatch of the given size.
+	 * The workspace learns its size from the first minibatch; within a budget it may not grow beyond
+	 * the part of the budget that is left after the parameters.
+	 */
+	public WorkspaceConfiguration createWorkspaceConfiguration (final MultiLayerConfiguration conf, final int batchSize) {
+
+		WorkspaceConfiguration.WorkspaceConfigurationBuilder builder = WorkspaceConfiguration.builder()
+				.initialSize(estimateBytesPerExample(conf) * batchSize)
+				.policyAllocation(AllocationPolicy.OVERALLOCATE)
+				.policyLearning(LearningPolicy.FIRST_LOOP);
+
+		if (isLimited()) {
+			builder.maxSize(Math.max(0, maxBytes - estimateFixedBytes(conf)))
+				   .policySpill(SpillPolicy.REALLOCATE);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Sample the current off-heap usage, updating the peak.
+	 */
+	public long sample () {
+		long bytes = Pointer.totalBytes();
+		if (bytes > peakBytes) {
+			peakBytes = bytes;
+		}
+		return bytes;
+	}
+
+	public long getPeakBytes () {
+		return peakBytes;
+	}
+
+	public void resetPeak () {
+		peakBytes = 0;
+	}
+
+	static long toMegabytes (final long bytes) {
+		return bytes / (1024 * 1024);
+	}
+
+}
@@ -0,0 +1,262 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterator over minibatches which are merged only once, when the iterator is created. Each minibatch
+ * holds its samples in one contiguous feature matrix (and label matrix), and the same matrices are
+ * returned in every epoch.
+ *
+ * Because the minibatches are reused, a preprocessor set on this iterator would be applied again in
+ * every epoch. Use {@link #preProcessAll(DataSetPreProcessor)} instead to transform the minibatches once;
+ * a normalization applied earlier is reverted first, so the minibatches are never normalized twice.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class MinibatchDataSetIterator implements DataSetIterator {
+
+	private static final Logger logger = LoggerFactory.getLogger(MinibatchDataSetIterator.class);
+
+	private static final long serialVersionUID = 6014638211497810215L;
+
+	private final List <DataSet> batches;
+	private final int batchSize;
+	private final int totalExamples;
+	private int position = 0;
+	private int cursor = 0;
+	private DataSetPreProcessor preProcessor;
+	// Preprocessor the merged minibatches were transformed with, or null if they hold the raw features
+	private DataSetPreProcessor applied;
+
+	/**
+	 * Merge the samples into minibatches. Samples without features are skipped.
+	 *
+	 * @param samples Samples holding a single row of features each.
+	 * @param batchSize Maximum number of samples per minibatch.
+	 */
+	public MinibatchDataSetIterator (final List <? extends DataSet> samples, final int batchSize) {
+		this(samples, batchSize, null, null);
+	}
+
+	/**
+	 * Merge the samples into minibatches, gathering normalization statistics and normalizing while
+	 * the minibatches are assembled. Samples without features are skipped.
+	 *
+	 * @param samples Samples holding a single row of features each.
+	 * @param batchSize Maximum number of samples per minibatch.
+	 * @param statistics Statistics updated with the raw features of every minibatch; may be null.
+	 * @param preProcessor Applied once to every merged minibatch, after the statistics were updated; may be null.
+	 */
+	public MinibatchDataSetIterator (final List <? extends DataSet> samples, final int batchSize,
+									 final StreamingNormalizer statistics, final DataSetPreProcessor preProcessor) {
+		this.batchSize = Math.max(1, batchSize);
+		this.batches = merge(samples, this.batchSize, statistics, preProcessor);
+		this.applied = preProcessor;
+
+		int total = 0;
+		for (DataSet batch : batches) {
+			total += batch.numExamples();
+		}
+		this.totalExamples = total;
+	}
+
+	/**
+	 * Merge the samples into contiguous minibatches. Labels are only merged if every sample in a minibatch has them.
+	 */
+	public static List <DataSet> merge (final List <? extends DataSet> samples, final int batchSize) {
+		return merge(samples, batchSize, null, null);
+	}
+
+	/**
+	 * Merge the samples into contiguous minibatches, updating the statistics and applying the preprocessor
+	 * to every minibatch as it is created.
+	 */
+	public static List <DataSet> merge (final List <? extends DataSet> samples, final int batchSize,
+										final StreamingNormalizer statistics, final DataSetPreProcessor preProcessor) {
+
+		List <DataSet> batches = new ArrayList<>(samples.size() / batchSize + 1);
+		List <INDArray> features = new ArrayList<>(batchSize);
+		List <INDArray> labels = new ArrayList<>(batchSize);
+		int skipped = 0;
+
+		for (DataSet sample : samples) {
+			if (sample.getFeatures() == null) {
+				skipped++;
+				continue;
+			}
+			features.add(sample.getFeatures());
+			labels.add(sample.getLabels());
+
+			if (features.size() == batchSize) {
+				batches.add(createBatch(features, labels, statistics, preProcessor));
+				features.clear();
+				labels.clear();
+			}
+		}
+		if (!features.isEmpty()) {
+			batches.add(createBatch(features, labels, statistics, preProcessor));
+		}
+
+		if (skipped > 0) {
+			logger.warn("{} samples without features were skipped.", skipped);
+		}
+		return batches;
+	}
+
+	private static DataSet createBatch (final List <INDArray> features, final List <INDArray> labels,
+										final StreamingNormalizer statistics, final DataSetPreProcessor preProcessor) {
+		INDArray featureMatrix = Nd4j.concat(0, features.toArray(new INDArray[0]));
+		INDArray labelMatrix = labels.contains(null) ? null : Nd4j.concat(0, labels.toArray(new INDArray[0]));
+		if (statistics != null) {
+			statistics.update(featureMatrix);
+		}
+		DataSet batch = new DataSet(featureMatrix, labelMatrix);
+		if (preProcessor != null) {
+			preProcessor.preProcess(batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Apply the preprocessor to every minibatch once, in place. If the minibatches were transformed
+	 * before, that normalization is reverted first. Missing values replaced by a {@link MissingValues.Imputer}
+	 * are not restored, they keep the value the imputer gave them.
+	 *
+	 * @param preProcessor The new preprocessor; null only reverts the previous one.
+	 * @throws IllegalStateException if the minibatches were transformed by a preprocessor that cannot be reverted.
+	 */
+	public void preProcessAll (final DataSetPreProcessor preProcessor) {
+		if (applied != null) {
+			DataSetPreProcessor normalization = applied instanceof MissingValues.Imputer ? ((MissingValues.Imputer) applied).getNormalization() : applied;
+			if (normalization != null && !(normalization instanceof DataNormalization)) {
+				throw new IllegalStateException("The minibatches were preprocessed already and cannot be restored - merge the samples again");
+			}
+			if (normalization != null) {
+				for (DataSet batch : batches) {
+					((DataNormalization) normalization).revert(batch);
+				}
+			}
+			applied = null;
+		}
+		if (preProcessor != null) {
+			for (DataSet batch : batches) {
+				preProcessor.preProcess(batch);
+			}
+			applied = preProcessor;
+		}
+	}
+
+	/**
+	 * Return the merged minibatches.
+	 */
+	public List <DataSet> getBatches () {
+		return Collections.unmodifiableList(batches);
+	}
+
+	@Override
+	public boolean hasNext () {
+		return position < batches.size();
+	}
+
+	@Override
+	public DataSet next () {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		DataSet batch = batches.get(position++);
+		cursor += batch.numExamples();
+		if (preProcessor != null) {
+			preProcessor.preProcess(batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * The minibatches are fixed when the iterator is created, so the requested size is ignored.
+	 */
+	@Override
+	public DataSet next (final int num) {
+		return next();
+	}
+
+	@Override
+	public void reset () {
+		position = 0;
+		cursor = 0;
+	}
+
+	@Override
+	public int totalExamples () {
+		return totalExamples;
+	}
+
+	@Override
+	public int inputColumns () {
+		if (batches.isEmpty()) {
+			return 0;
+		}
+		// Product of the trailing dimensions, so also for image features of shape [n, channels, height, width]
+		INDArray features = batches.get(0).getFeatures();
+		return (int) (features.length() / features.size(0));
+	}
+
+	@Override
+	public int totalOutcomes () {
+		return batches.isEmpty() || batches.get(0).getLabels() == null ? 0 : batches.get(0).getLabels().columns();
+	}
+
+	@Override
+	public boolean resetSupported () {
+		return true;
+	}
+
+	@Override
+	public boolean asyncSupported () {
+		// Everything is in memory already
+		return false;
+	}
+
+	@Override
+	public int batch () {
+		return batchSize;
+	}
+
+	@Override
+	public int cursor () {
+		return cursor;
+	}
+
+	@Override
+	public int numExamples () {
+		return totalExamples;
+	}
+
+	@Override
+	public void setPreProcessor (final DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor () {
+		return preProcessor;
+	}
+
+	@Override
+	public List <String> getLabels () {
+		return null;
+	}
+
+}
@@ -0,0 +1,107 @@
+package qupath.lib.deep_learning;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.impl.accum.MatchCondition;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.BooleanIndexing;
+import org.nd4j.linalg.indexing.conditions.Conditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imputation of missing measurements before features are passed to a network. The feature matrices
+ * keep missing measurements as NaN, so the normalization statistics only use the values that are
+ * present; every path into a network prepares its features with {@link #prepare} or {@link #preProcessor},
+ * which normalize them and then replace the values that are still NaN by 0. For standardized features
+ * this is the mean of the training data. Min-max scaled features get the minimum and features that are
+ * not normalized get 0, the value QuPath used for missing measurements before.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public final class MissingValues {
+
+	private static final Logger logger = LoggerFactory.getLogger(MissingValues.class);
+
+	private MissingValues () {
+	}
+
+	/**
+	 * Normalize the features in place, if there is a normalizer, and replace the missing values.
+	 *
+	 * @param normalization The normalizer of the network, or null.
+	 * @return The number of values that were replaced.
+	 */
+	public static long prepare (final INDArray features, final DataNormalization normalization) {
+		if (normalization != null) {
+			normalization.transform(features);
+		}
+		return replace(features);
+	}
+
+	/**
+	 * Replace the missing (NaN) values by 0, in place.
+	 *
+	 * @return The number of values that were replaced.
+	 */
+	public static long replace (final INDArray features) {
+		long missing = Nd4j.getExecutioner().exec(new MatchCondition(features, Conditions.isNan()), Integer.MAX_VALUE).getLong(0);
+		if (missing > 0) {
+			BooleanIndexing.replaceWhere(features, 0.0, Conditions.isNan());
+			logger.debug("Replaced {} missing values in {} rows", missing, features.size(0));
+		}
+		return missing;
+	}
+
+	/**
+	 * Get a preprocessor for the minibatches of an iterator, see {@link #prepare}.
+	 *
+	 * @param normalization The normalizer of the network, or null.
+	 */
+	public static Imputer preProcessor (final DataNormalization normalization) {
+		return new Imputer(normalization);
+	}
+
+	/**
+	 * Preprocessor which normalizes the features and replaces the missing values, counting how many it replaced.
+	 */
+	public static class Imputer implements DataSetPreProcessor {
+
+		private static final long serialVersionUID = 5316027884016349027L;
+
+		private final DataNormalization normalization;
+		private final AtomicLong replaced = new AtomicLong();
+
+		Imputer (final DataNormalization normalization) {
+			this.normalization = normalization;
+		}
+
+		@Override
+		public void preProcess (final DataSet dataSet) {
+			if (normalization != null) {
+				normalization.preProcess(dataSet);
+			}
+			replaced.addAndGet(replace(dataSet.getFeatures()));
+		}
+
+		/**
+		 * Get the normalizer applied before the missing values are replaced, or null.
+		 */
+		public DataNormalization getNormalization () {
+			return normalization;
+		}
+
+		/**
+		 * Get the number of values replaced so far, from all threads.
+		 */
+		public long getReplacedCount () {
+			return replaced.get();
+		}
+	}
+
+}
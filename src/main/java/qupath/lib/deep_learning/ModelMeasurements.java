@@ -0,0 +1,67 @@
+package qupath.lib.deep_learning;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Stores the names of the input measurements of a network in the zip file written by
+ * {@link org.deeplearning4j.util.ModelSerializer}, next to the entries DL4J writes itself. Inference
+ * then uses exactly the measurements the network was trained on, in the same order, instead of
+ * guessing them from the measurement lists of the objects.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+class ModelMeasurements {
+
+	static final String ENTRY = "measurements.txt";
+
+	private ModelMeasurements () {}
+
+	/**
+	 * Add the measurement names to a model zip file, replacing names stored earlier.
+	 */
+	static void write (final File file, final List <String> measurementNames) throws IOException {
+		URI uri = URI.create("jar:" + file.getAbsoluteFile().toURI());
+		try (FileSystem zip = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+			Files.write(zip.getPath(ENTRY), measurementNames, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		}
+	}
+
+	/**
+	 * Read the measurement names of a model zip file.
+	 *
+	 * @return The names, or null if the model was saved without them.
+	 */
+	static List <String> read (final File file) throws IOException {
+		try (ZipFile zip = new ZipFile(file)) {
+			ZipEntry entry = zip.getEntry(ENTRY);
+			if (entry == null) {
+				return null;
+			}
+			List <String> names = new ArrayList<>();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					names.add(line);
+				}
+			}
+			return Collections.unmodifiableList(names);
+		}
+	}
+
+}
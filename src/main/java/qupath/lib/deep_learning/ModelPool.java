@@ -0,0 +1,61 @@
+package qupath.lib.deep_learning;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * Bounded pool of copies of a network, for threads running forward passes at the same time. A network
+ * keeps its activations between calls, so it cannot be shared by threads; copying it for every run is
+ * expensive for large networks. A borrowed copy is returned to the pool when the thread is done, and
+ * at most a fixed number of idle copies is kept.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ModelPool {
+
+	private final MultiLayerNetwork model;
+	private final BlockingQueue <MultiLayerNetwork> idle;
+
+	/**
+	 * @param model Network to copy; it is never run itself.
+	 * @param maxIdle Maximum number of copies kept between uses, e.g. the number of inference threads.
+	 */
+	public ModelPool (final MultiLayerNetwork model, final int maxIdle) {
+		this.model = model;
+		this.idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+	}
+
+	/**
+	 * Take a copy of the network for the current thread, creating one if none is idle.
+	 * Give it back with {@link #release(MultiLayerNetwork)}.
+	 */
+	public MultiLayerNetwork borrow () {
+		MultiLayerNetwork replica = idle.poll();
+		return replica == null ? model.clone() : replica;
+	}
+
+	/**
+	 * Return a borrowed copy; it is dropped if the pool is full.
+	 */
+	public void release (final MultiLayerNetwork replica) {
+		idle.offer(replica);
+	}
+
+	/**
+	 * Get the network the copies are made from. It is shared, so it must not be trained or changed.
+	 */
+	public MultiLayerNetwork getModel () {
+		return model;
+	}
+
+	/**
+	 * Get the number of idle copies.
+	 */
+	public int getIdleCount () {
+		return idle.size();
+	}
+
+}
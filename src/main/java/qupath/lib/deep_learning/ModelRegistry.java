@@ -0,0 +1,332 @@
+package qupath.lib.deep_learning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of loaded networks, shared by all commands and scripts. Networks are identified by the SHA-256
+ * hash of their file, so a file that is overwritten with another network is loaded again, while copies
+ * of the same network share one instance. When the cache is full the least recently used network is
+ * dropped.
+ *
+ * A network is loaded only once even when several threads request it at the same time. After loading,
+ * a warm-up batch can be run through the network, so the JIT compilation and the native initialization
+ * do not slow down the first real forward passes. The copies of the network made for the forward passes
+ * are pooled, so engines created from the registry reuse them instead of copying the network per run.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ModelRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(ModelRegistry.class);
+
+	public static final int DEFAULT_CAPACITY = 4;
+	private static final int WARM_UP_PASSES = 3;
+
+	private static final ModelRegistry instance = new ModelRegistry(DEFAULT_CAPACITY);
+
+	private final int capacity;
+	private final Map <String, FutureTask<SharedModel>> models;
+	// Hashes of the files seen, so a file is only hashed again when it changed
+	private final Map <File, FileHash> hashes = new HashMap<>();
+
+	private boolean warmUp = true;
+	private int warmUpBatchSize = AbstractNeuralNetwork.DEFAULT_BATCH_SIZE;
+
+	/**
+	 * @param capacity Maximum number of networks kept in memory.
+	 */
+	public ModelRegistry (final int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.models = new LinkedHashMap <String, FutureTask<SharedModel>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry (final Map.Entry <String, FutureTask<SharedModel>> eldest) {
+				if (size() > ModelRegistry.this.capacity) {
+					logger.info("Removing network {} from the registry", eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get the registry shared by the whole extension.
+	 */
+	public static ModelRegistry getInstance () {
+		return instance;
+	}
+
+	/**
+	 * Run a warm-up batch through every network after it is loaded (the default).
+	 */
+	public synchronized void setWarmUp (final boolean warmUp, final int batchSize) {
+		this.warmUp = warmUp;
+		this.warmUpBatchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Get the network stored in a file, loading it if it is not in the registry yet.
+	 */
+	public SharedModel get (final File file) throws IOException {
+
+		String hash = hash(file);
+		FutureTask<SharedModel> task;
+		boolean load = false;
+		synchronized (this) {
+			task = models.get(hash);
+			if (task == null) {
+				final boolean runWarmUp = warmUp;
+				final int batchSize = warmUpBatchSize;
+				task = new FutureTask<>(() -> load(file, hash, runWarmUp, batchSize));
+				models.put(hash, task);
+				load = true;
+			}
+		}
+
+		// Load outside the lock, other threads asking for the same network wait for this one
+		if (load) {
+			task.run();
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading " + file, e);
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				models.remove(hash, task);
+			}
+			throw new IOException("Could not load the network from " + file, e.getCause());
+		}
+	}
+
+	private static SharedModel load (final File file, final String hash, final boolean warmUp, final int batchSize) throws IOException {
+
+		ND4JBackend.awaitReady();
+		long start = System.currentTimeMillis();
+		MultiLayerNetwork model;
+		DataNormalization normalization = null;
+		List <String> measurementNames = null;
+		if (FastModelFormat.isFastModel(file)) {
+			FastModelFormat.LoadedModel loaded = FastModelFormat.read(file, false);
+			model = loaded.getModel();
+			normalization = loaded.getNormalization();
+			measurementNames = loaded.getMeasurementNames();
+		}
+		else {
+			model = ModelSerializer.restoreMultiLayerNetwork(file, false);
+			try {
+				normalization = ModelSerializer.restoreNormalizerFromFile(file);
+			} catch (Exception e) {
+				logger.info("No normalizer stored with the network - input will not be normalized.");
+			}
+			measurementNames = ModelMeasurements.read(file);
+		}
+
+		SharedModel shared = new SharedModel(file, hash, model, normalization, measurementNames);
+		if (warmUp) {
+			shared.warmUp(batchSize);
+		}
+		logger.info("Loaded network {} in {} ms", file.getName(), System.currentTimeMillis() - start);
+		return shared;
+	}
+
+	/**
+	 * Remove the network stored in a file from the registry.
+	 */
+	public synchronized void invalidate (final File file) throws IOException {
+		models.remove(hash(file));
+	}
+
+	public synchronized void clear () {
+		models.clear();
+		hashes.clear();
+	}
+
+	public synchronized int size () {
+		return models.size();
+	}
+
+	/**
+	 * Compute the SHA-256 hash of a file, reusing the previous hash if its size and modification time did not change.
+	 * For a model directory the files in it are hashed together.
+	 */
+	private String hash (final File file) throws IOException {
+
+		File key = file.getAbsoluteFile();
+		List <File> files = FastModelFormat.isFastModel(key) ? FastModelFormat.getFiles(key) : Collections.singletonList(key);
+		long length = 0;
+		long modified = 0;
+		for (File f : files) {
+			length += f.length();
+			modified = Math.max(modified, f.lastModified());
+		}
+		synchronized (this) {
+			FileHash cached = hashes.get(key);
+			if (cached != null && cached.length == length && cached.modified == modified) {
+				return cached.hash;
+			}
+		}
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte [] buffer = new byte[1 << 16];
+		for (File f : files) {
+			try (InputStream stream = new DigestInputStream(Files.newInputStream(f.toPath()), digest)) {
+				while (stream.read(buffer) >= 0) {
+					// Reading updates the digest
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		String hash = sb.toString();
+
+		synchronized (this) {
+			hashes.put(key, new FileHash(hash, length, modified));
+		}
+		return hash;
+	}
+
+	private static class FileHash {
+
+		private final String hash;
+		private final long length;
+		private final long modified;
+
+		FileHash (final String hash, final long length, final long modified) {
+			this.hash = hash;
+			this.length = length;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * A loaded network that can be used by several threads at the same time. The network itself is
+	 * never run; every concurrent forward pass, including those of the engines created from it, borrows
+	 * its own copy from one bounded {@link ModelPool}.
+	 */
+	public static class SharedModel {
+
+		private final File file;
+		private final String hash;
+		private final MultiLayerNetwork model;
+		private final DataNormalization normalization;
+		private final List <String> measurementNames;
+		private final ModelPool pool;
+		private final TrainingMetrics metrics;
+
+		SharedModel (final File file, final String hash, final MultiLayerNetwork model, final DataNormalization normalization,
+					 final List <String> measurementNames) {
+			this.file = file;
+			this.hash = hash;
+			this.model = model;
+			this.normalization = normalization;
+			this.measurementNames = measurementNames;
+			this.pool = new ModelPool(model, ConcurrencyBudget.getInstance().getTotalThreads());
+			this.metrics = new TrainingMetrics(file.getName());
+		}
+
+		/**
+		 * Run the network on unnormalized features; the features are not changed. Safe to call from
+		 * several threads at the same time.
+		 */
+		public INDArray output (final INDArray features) {
+			INDArray input = features.dup();
+			MissingValues.prepare(input, normalization);
+			MultiLayerNetwork replica = pool.borrow();
+			try {
+				return replica.output(input, false);
+			} finally {
+				pool.release(replica);
+			}
+		}
+
+		/**
+		 * Create an engine running this network on slides. Its threads borrow the copies of the network
+		 * from the pool of this model, so they are warmed up already. All engines record their batches in
+		 * the metrics of this model.
+		 */
+		public DL4JEngine createEngine () {
+			DL4JEngine engine = new DL4JEngine(pool, normalization);
+			engine.setMeasurementNames(measurementNames);
+			engine.setMetrics(metrics);
+			return engine;
+		}
+
+		private void warmUp (final int batchSize) {
+			long start = System.currentTimeMillis();
+			int nIn = ((FeedForwardLayer) model.getLayer(0).conf().getLayer()).getNIn();
+			INDArray input = Nd4j.rand(batchSize, nIn);
+			for (int i = 0; i < WARM_UP_PASSES; i++) {
+				output(input);
+			}
+			logger.info("Warmed up network {} in {} ms", file.getName(), System.currentTimeMillis() - start);
+		}
+
+		public File getFile () {
+			return file;
+		}
+
+		public String getHash () {
+			return hash;
+		}
+
+		/**
+		 * Get the network. It is shared, so it must not be trained or changed.
+		 */
+		public MultiLayerNetwork getModel () {
+			return model;
+		}
+
+		public DataNormalization getNormalization () {
+			return normalization;
+		}
+
+		/**
+		 * Get the input measurement names stored with the network, or null if they were not stored.
+		 */
+		public List <String> getMeasurementNames () {
+			return measurementNames;
+		}
+
+		/**
+		 * Get the metrics of the inference batches run with this network.
+		 */
+		public TrainingMetrics getMetrics () {
+			return metrics;
+		}
+	}
+
+}
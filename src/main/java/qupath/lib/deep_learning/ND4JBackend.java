@@ -0,0 +1,98 @@
+package qupath.lib.deep_learning;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Initializes the ND4J backend in the background. ND4J discovers and loads its native backend the first
+ * time one of its classes is used, which takes several seconds; starting this from the extension install
+ * keeps QuPath's startup fast, and the first command does not have to wait for it.
+ *
+ * The backend is chosen by ND4J at runtime from the backends on the classpath: the default build only
+ * contains nd4j-native-platform, which holds the CPU libraries of all platforms. A build with the cuda
+ * profile also contains the CUDA backend, which ND4J prefers when a GPU is available and otherwise falls
+ * back to the CPU. The choice can be overridden without a rebuild with the BACKEND_PRIORITY_CPU and
+ * BACKEND_PRIORITY_GPU environment variables (the backend with the highest number wins).
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ND4JBackend {
+
+	private static final Logger logger = LoggerFactory.getLogger(ND4JBackend.class);
+
+	private static final int WARM_UP_SIZE = 256;
+
+	private static final CompletableFuture <String> readiness = new CompletableFuture<>();
+	private static boolean started = false;
+
+	private ND4JBackend () {}
+
+	/**
+	 * Start loading the backend on a background thread, if that has not been done yet.
+	 *
+	 * @return Future completed with a description of the backend once it is loaded and warmed up.
+	 */
+	public static synchronized CompletableFuture <String> initializeAsync () {
+		if (!started) {
+			started = true;
+			Thread thread = new Thread(ND4JBackend::initialize, "dl4j-backend-init");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return readiness;
+	}
+
+	/**
+	 * Get the future completed when the backend is ready, without starting the initialization.
+	 */
+	public static CompletableFuture <String> getReadiness () {
+		return readiness;
+	}
+
+	public static boolean isReady () {
+		return readiness.isDone() && !readiness.isCompletedExceptionally();
+	}
+
+	/**
+	 * Wait until the backend is ready, starting the initialization if needed.
+	 *
+	 * @throws IllegalStateException if the backend could not be loaded.
+	 */
+	public static void awaitReady () {
+		try {
+			initializeAsync().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the ND4J backend", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("The ND4J backend could not be loaded", e.getCause());
+		}
+	}
+
+	private static void initialize () {
+		try {
+			long start = System.currentTimeMillis();
+			String backend = Nd4j.getBackend().getClass().getSimpleName();
+			logger.info("Loaded ND4J backend {} in {} ms", backend, System.currentTimeMillis() - start);
+
+			// A matrix multiplication and a reduction, so BLAS and the native ops are loaded as well
+			long warmUpStart = System.currentTimeMillis();
+			INDArray a = Nd4j.rand(WARM_UP_SIZE, WARM_UP_SIZE);
+			double sum = a.mmul(a).sumNumber().doubleValue();
+			logger.debug("Warm-up result {}", sum);
+			logger.info("Warmed up ND4J backend in {} ms", System.currentTimeMillis() - warmUpStart);
+
+			readiness.complete(backend + " (" + Nd4j.dataType().toString().toLowerCase() + ")");
+		} catch (Throwable t) {
+			logger.error("Could not load the ND4J backend", t);
+			readiness.completeExceptionally(t);
+		}
+	}
+
+}
@@ -3,6 +3,7 @@ package qupath.lib.deep_learning;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,7 +14,10 @@ public class NeuralNetworkExample {
 
     public NeuralNetworkExample () {}
 
-    public static void run () throws IOException {
+    /**
+     * @param saveFile File to save the network to, or null to skip saving.
+     */
+    public static void run (final File saveFile) throws IOException {
 
         System.out.println("Started neural network test...");
 
@@ -31,7 +35,9 @@ public class NeuralNetworkExample {
         an.createModel(10);
 
         // Save the model
-        an.saveModel();
+        if (saveFile != null) {
+            an.saveModel(saveFile);
+        }
 
         logger.info("Succesfully finished neural network test");
     }
@@ -0,0 +1,159 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Data-parallel training of a MultiLayerNetwork on several threads.
+ *
+ * Every worker trains its own replica of the network on a different share of the minibatches. After
+ * each worker has seen a fixed number of minibatches the parameters (and updater state) of the
+ * replicas are averaged and copied back into all replicas and into the original network.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ParallelTrainer {
+
+	private static final Logger logger = LoggerFactory.getLogger(ParallelTrainer.class);
+
+	private final MultiLayerNetwork model;
+	private final int averagingFrequency;
+	private final List <MultiLayerNetwork> replicas;
+	private final ExecutorService executor;
+	private final ConcurrencyBudget.Lease lease;
+
+	/**
+	 * @param model The network to train; it holds the averaged parameters after every round.
+	 * @param workers Maximum number of replicas trained in parallel; leased from the {@link ConcurrencyBudget}.
+	 * @param averagingFrequency Number of minibatches each replica trains on between two averaging steps.
+	 */
+	public ParallelTrainer (final MultiLayerNetwork model, final int workers, final int averagingFrequency) {
+
+		this.model = model;
+		this.averagingFrequency = Math.max(1, averagingFrequency);
+
+		this.lease = ConcurrencyBudget.getInstance().acquire("Parallel training", workers);
+		int n = lease.getThreads();
+		this.replicas = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			MultiLayerNetwork replica = model.clone();
+			// Only the original network reports its score
+			replica.setListeners(Collections.<IterationListener>emptyList());
+			replicas.add(replica);
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread thread = new Thread(r, "dl4j-trainer-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+		this.executor = Executors.newFixedThreadPool(n, factory);
+	}
+
+	/**
+	 * Train one epoch over the given minibatches.
+	 */
+	public void fit (final List <DataSet> batches) {
+
+		final int workers = replicas.size();
+		final int roundSize = workers * averagingFrequency;
+
+		for (int start = 0; start < batches.size(); start += roundSize) {
+
+			// Every replica gets an interleaved share of this round's minibatches
+			final int end = Math.min(batches.size(), start + roundSize);
+			List <Future<?>> futures = new ArrayList<>(workers);
+			List <MultiLayerNetwork> active = new ArrayList<>(workers);
+
+			for (int w = 0; w < workers && start + w < end; w++) {
+				final MultiLayerNetwork replica = replicas.get(w);
+				final int first = start + w;
+				active.add(replica);
+				futures.add(executor.submit(() -> {
+					for (int b = first; b < end; b += workers) {
+						replica.fit(batches.get(b));
+					}
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Training was interrupted", e);
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Training failed in a worker", e.getCause());
+				}
+			}
+
+			average(active);
+		}
+	}
+
+	/**
+	 * Average the parameters and updater state of the given replicas and distribute them again.
+	 */
+	private void average (final List <MultiLayerNetwork> active) {
+
+		INDArray params = active.get(0).params().dup();
+		for (int i = 1; i < active.size(); i++) {
+			params.addi(active.get(i).params());
+		}
+		params.divi(active.size());
+
+		INDArray updaterState = getUpdaterState(active.get(0));
+		if (updaterState != null) {
+			updaterState = updaterState.dup();
+			for (int i = 1; i < active.size(); i++) {
+				updaterState.addi(getUpdaterState(active.get(i)));
+			}
+			updaterState.divi(active.size());
+		}
+
+		for (MultiLayerNetwork replica : replicas) {
+			replica.params().assign(params);
+			if (updaterState != null) {
+				getUpdaterState(replica).assign(updaterState);
+			}
+		}
+		model.params().assign(params);
+		if (updaterState != null && getUpdaterState(model) != null) {
+			getUpdaterState(model).assign(updaterState);
+		}
+	}
+
+	private static INDArray getUpdaterState (final MultiLayerNetwork network) {
+		return network.getUpdater() == null ? null : network.getUpdater().getStateViewArray();
+	}
+
+	public int getWorkerCount () {
+		return replicas.size();
+	}
+
+	/**
+	 * Stop the worker threads and return them to the budget.
+	 */
+	public void shutdown () {
+		executor.shutdownNow();
+		lease.close();
+		logger.debug("Stopped {} training workers.", replicas.size());
+	}
+
+}
@@ -3,11 +3,12 @@ package qupath.lib.deep_learning;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 
-import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.objects.PathObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -56,23 +57,31 @@ class PathDataSet extends DataSet {
 	 * Get the features from the measurement list of the PathObject
 	 */
 	protected void convertFeatures (final List<String> measurements) {
+		MeasurementMatrix matrix = MeasurementMatrix.build(Collections.singletonList(pathObject), measurements);
+		setFeatures(matrix.getRow(0));
+	}
 
-		INDArray features;
-		double [] d = new double[measurements.size()];
-		int i = 0;
-
-		for (String measurement : pathObject.getMeasurementList().getMeasurementNames()) {
+	/**
+	 * Get the features of a whole list of datasets at once. All features are written into a single
+	 * {@link MeasurementMatrix} and every dataset receives a row view on it, so this is much cheaper than
+	 * converting each dataset separately.
+	 *
+	 * @param dataSets The datasets to convert; all should have a PathObject set.
+	 * @param measurements Names of the measurements to use as features.
+	 * @return The matrix backing the features of the datasets.
+	 */
+	public static MeasurementMatrix convertFeatures (final List<? extends PathDataSet> dataSets, final List<String> measurements) {
 
-			// If in the list, then add to the array
-			if (measurements.contains(measurement)) {
-				d[i] = pathObject.getMeasurementList().getMeasurementValue(measurement);
-				i++;
-			}
+		List<PathObject> pathObjects = new ArrayList<>(dataSets.size());
+		for (PathDataSet dataSet : dataSets) {
+			pathObjects.add(dataSet.getPathObject());
 		}
 
-		features = Nd4j.create(d);
-
-		setFeatures(features);
+		MeasurementMatrix matrix = MeasurementMatrix.build(pathObjects, measurements);
+		for (int i = 0; i < dataSets.size(); i++) {
+			dataSets.get(i).setFeatures(matrix.getRow(i));
+		}
+		return matrix;
 	}
 
 	protected void convertFeatures () {
@@ -20,8 +20,9 @@ public class PathFeatureObject extends AbstractFeatureObject {
 	
 	private static final Logger logger = LoggerFactory.getLogger(PathFeatureObject.class);
 	
-	private PathObject pathObject;
-	private Collection <Double> featureList; // List of high-level features: should all be doubles
+	public PathFeatureObject (final FeatureStore store, final int row) {
+		super(store, row);
+	}
 	
 	public PathFeatureObject (final PathObject pathObject, final Collection <Double> featureList) {
 		super(pathObject, featureList);
@@ -1,43 +1,103 @@
 package qupath.lib.deep_learning;
 
-import org.nd4j.linalg.api.buffer.DataBuffer;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
-import qupath.imagej.objects.PathImagePlus;
-import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
-import qupath.lib.images.servers.ServerTools;
 import qupath.lib.objects.PathObject;
 import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
 
 import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.List;
 
 public class PathImageDataSet extends PathDataSet {
 
+    public static final int DEFAULT_PATCH_SIZE = 64;
+
+    private int patchSize = DEFAULT_PATCH_SIZE;
+    private double downsample = 1.0;
+    private ImageData<BufferedImage> imageData;
+
     public PathImageDataSet (final PathObject p, INDArray features, INDArray labels) {
         super(p, features, labels);
     }
 
+    public PathImageDataSet (final PathObject p, final int patchSize, final double downsample) {
+        super(p);
+        this.patchSize = patchSize;
+        this.downsample = downsample;
+    }
+
+    /**
+     * @param p The object the patch is centered on.
+     * @param imageData The image the object belongs to; the patch is read from its server.
+     * @param patchSize Width and height of the patch.
+     * @param downsample Downsample at which the patch is read.
+     */
+    public PathImageDataSet (final PathObject p, final ImageData<BufferedImage> imageData, final int patchSize, final double downsample) {
+        this(p, patchSize, downsample);
+        this.imageData = imageData;
+    }
+
     public PathImageDataSet () {
         super();
     }
 
     /**
-     * Convert the image data corresponding with the pathObject into a feature matrix
+     * Convert the image data corresponding with the pathObject into a feature matrix, reading from the
+     * image this dataset was created with.
      *
-     * TODO Rewrite this to not have to calculate all these things...
+     * @throws IllegalStateException if no image was given.
      */
     @Override
     protected void convertFeatures () {
+        if (imageData == null) {
+            throw new IllegalStateException("No image data was set to read the patch of " + pathObject);
+        }
+        convertFeatures(imageData.getServer());
+    }
+
+    /**
+     * Convert the image data corresponding with the pathObject into a feature matrix. Only the
+     * patch centered on the object is read from the server, and it is stored with shape [1, channels, patchSize, patchSize].
+     *
+     * To convert many objects use {@link #createIterator} instead, which reads every tile only once.
+     */
+    public void convertFeatures (final ImageServer<BufferedImage> server) {
+
+        ROI roi = pathObject.getROI();
+        int span = (int) Math.ceil(patchSize * downsample);
+        int x = (int) Math.round(roi.getCentroidX() - span / 2.0);
+        int y = (int) Math.round(roi.getCentroidY() - span / 2.0);
+        BufferedImage img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), downsample, x, y, span, span));
+
+        int channels = server.nChannels();
+        float [] data = new float[channels * patchSize * patchSize];
+        TiledPatchIterator.cropPatch(img, x, y, downsample, roi.getCentroidX(), roi.getCentroidY(),
+                patchSize, channels, data, 0, new float[patchSize]);
 
-        ImageData<BufferedImage> imageData = QuPathGUI.getInstance().getImageData();
-        ImageServer<BufferedImage> server = imageData.getServer();
-        double downsample = imageData.getServer().getAveragedPixelSizeMicrons();
-        BufferedImage img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), downsample, pathObject.getROI()));
+        setFeatures(Nd4j.create(data, new int[] {1, channels, patchSize, patchSize}, 'c'));
+    }
 
-        INDArray array = Nd4j.create((DataBuffer) img.getData().getDataBuffer());
+    /**
+     * Create an iterator which streams the patches of all given objects as minibatches, reading each
+     * server tile only once.
+     *
+     * @param imageData Image to read from.
+     * @param pathObjects Objects to create patches for.
+     * @param patchSize Width and height of a patch.
+     * @param downsample Downsample at which the patches are read.
+     * @param batchSize Number of patches per minibatch.
+     * @param labels Class names used for the one-hot labels, or null.
+     */
+    public static TiledPatchIterator createIterator (final ImageData<BufferedImage> imageData, final Collection<? extends PathObject> pathObjects,
+                                                     final int patchSize, final double downsample, final int batchSize, final List<String> labels) {
+        return TiledPatchIterator.createInstance(imageData.getServer(), downsample, pathObjects, patchSize, batchSize, labels);
+    }
 
-        logger.info(array.toString());
+    public ImageData<BufferedImage> getImageData () {
+        return imageData;
     }
 }
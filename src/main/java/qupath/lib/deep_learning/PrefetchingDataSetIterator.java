@@ -0,0 +1,327 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DataSetIterator which prepares minibatches on background threads while the consumer is training
+ * on the previous ones.
+ *
+ * The wrapped iterator is not assumed to be thread-safe, so fetching from it is serialized; the
+ * preprocessor (usually the normalization) is applied by the workers in parallel. To make this work the
+ * preprocessor of the wrapped iterator is taken over for the lifetime of this iterator and restored by
+ * {@link #shutdown()}. Minibatches may be returned in a different order than the wrapped iterator
+ * produces them when more than one worker is used.
+ *
+ * The iterator counts how often the consumer had to wait for data ("starved"), which shows whether
+ * training is bound by data loading, and reports the time the workers spend preprocessing to the
+ * {@link TrainingMetrics} set with {@link #setMetrics(TrainingMetrics)}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class PrefetchingDataSetIterator implements DataSetIterator {
+
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchingDataSetIterator.class);
+
+	private static final long serialVersionUID = -2876152085430624123L;
+
+	// Marker put in the queue by a worker when the wrapped iterator is exhausted
+	private static final DataSet END = new DataSet();
+
+	private final DataSetIterator source;
+	private final DataSetPreProcessor sourcePreProcessor;
+	private final int queueDepth;
+	private final int workerCount;
+	private final ConcurrencyBudget.Lease lease;
+
+	private volatile DataSetPreProcessor preProcessor;
+	private volatile TrainingMetrics metrics;
+	private BlockingQueue <DataSet> queue;
+	private List <Thread> workers = new ArrayList<>();
+	private volatile boolean stopped;
+	private volatile Throwable workerException;
+	private int finishedWorkers;
+	private DataSet next;
+	private int cursor;
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong starved = new AtomicLong();
+	private final AtomicLong starvedNanos = new AtomicLong();
+
+	/**
+	 * @param source The iterator to prefetch from.
+	 * @param queueDepth Maximum number of prepared minibatches held in memory.
+	 * @param workerCount Maximum number of threads preparing minibatches; leased from the {@link ConcurrencyBudget}.
+	 */
+	public PrefetchingDataSetIterator (final DataSetIterator source, final int queueDepth, final int workerCount) {
+		this.source = source;
+		this.queueDepth = Math.max(1, queueDepth);
+		this.lease = ConcurrencyBudget.getInstance().acquire("Data prefetching", workerCount);
+		this.workerCount = lease.getThreads();
+
+		// Take over the preprocessing so it can run on the workers
+		this.sourcePreProcessor = source.getPreProcessor();
+		this.preProcessor = sourcePreProcessor;
+		source.setPreProcessor(null);
+
+		startWorkers();
+	}
+
+	private void startWorkers () {
+		queue = new ArrayBlockingQueue<>(queueDepth + workerCount);
+		stopped = false;
+		workerException = null;
+		finishedWorkers = 0;
+		next = null;
+		cursor = 0;
+
+		workers = new ArrayList<>(workerCount);
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(this::prefetch, "dl4j-prefetch-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	private void prefetch () {
+		try {
+			while (!stopped) {
+				DataSet dataSet;
+				synchronized (source) {
+					if (!source.hasNext()) {
+						break;
+					}
+					dataSet = source.next();
+				}
+
+				DataSetPreProcessor p = preProcessor;
+				if (p != null) {
+					long start = System.nanoTime();
+					p.preProcess(dataSet);
+					TrainingMetrics m = metrics;
+					if (m != null) {
+						m.recordNormalization(System.nanoTime() - start);
+					}
+				}
+				queue.put(dataSet);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Throwable e) {
+			// Errors too (e.g. a failed native allocation), or the consumer would wait for the worker forever
+			logger.error("Error while prefetching data", e);
+			workerException = e;
+		} finally {
+			// Returns at once if the worker was interrupted, i.e. when the workers are stopped
+			try {
+				queue.put(END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Stop all workers and wait for them to finish.
+	 */
+	private void stopWorkers () {
+		stopped = true;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		workers.clear();
+		queue.clear();
+	}
+
+	@Override
+	public boolean hasNext () {
+
+		while (next == null && finishedWorkers < workerCount) {
+			DataSet dataSet = queue.poll();
+			if (dataSet == null) {
+				// The trainer has to wait for the data
+				long start = System.nanoTime();
+				try {
+					dataSet = queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				starved.incrementAndGet();
+				starvedNanos.addAndGet(System.nanoTime() - start);
+			}
+
+			if (dataSet == END) {
+				finishedWorkers++;
+				if (workerException != null) {
+					break;
+				}
+			}
+			else {
+				next = dataSet;
+			}
+		}
+
+		Throwable e = workerException;
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		if (e != null) {
+			throw new IllegalStateException("Error while prefetching data", e);
+		}
+		return next != null;
+	}
+
+	@Override
+	public DataSet next () {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		DataSet dataSet = next;
+		next = null;
+		cursor += dataSet.numExamples();
+		batches.incrementAndGet();
+		return dataSet;
+	}
+
+	/**
+	 * The batch size is determined by the wrapped iterator.
+	 */
+	@Override
+	public DataSet next (final int num) {
+		return next();
+	}
+
+	@Override
+	public void reset () {
+		stopWorkers();
+		synchronized (source) {
+			source.reset();
+		}
+		startWorkers();
+	}
+
+	/**
+	 * Stop the workers, return their threads to the budget and hand the preprocessor back to the wrapped iterator.
+	 */
+	public void shutdown () {
+		stopWorkers();
+		lease.close();
+		source.setPreProcessor(sourcePreProcessor);
+	}
+
+	/**
+	 * Report the preprocessing time of the workers to the given metrics; null stops reporting.
+	 */
+	public void setMetrics (final TrainingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Amount of minibatches handed to the consumer since creation.
+	 */
+	public long getBatchCount () {
+		return batches.get();
+	}
+
+	/**
+	 * Amount of times the consumer had to wait for a minibatch to be prepared.
+	 */
+	public long getStarvedCount () {
+		return starved.get();
+	}
+
+	/**
+	 * Total time in milliseconds the consumer spent waiting for minibatches.
+	 */
+	public long getStarvedMillis () {
+		return TimeUnit.NANOSECONDS.toMillis(starvedNanos.get());
+	}
+
+	public void resetCounters () {
+		batches.set(0);
+		starved.set(0);
+		starvedNanos.set(0);
+	}
+
+	@Override
+	public int totalExamples () {
+		return source.totalExamples();
+	}
+
+	@Override
+	public int inputColumns () {
+		return source.inputColumns();
+	}
+
+	@Override
+	public int totalOutcomes () {
+		return source.totalOutcomes();
+	}
+
+	@Override
+	public boolean resetSupported () {
+		return source.resetSupported();
+	}
+
+	@Override
+	public boolean asyncSupported () {
+		// This iterator is asynchronous itself
+		return false;
+	}
+
+	@Override
+	public int batch () {
+		return source.batch();
+	}
+
+	@Override
+	public int cursor () {
+		return cursor;
+	}
+
+	@Override
+	public int numExamples () {
+		return source.numExamples();
+	}
+
+	@Override
+	public void setPreProcessor (final DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor () {
+		return preProcessor;
+	}
+
+	@Override
+	public List <String> getLabels () {
+		return source.getLabels();
+	}
+
+}
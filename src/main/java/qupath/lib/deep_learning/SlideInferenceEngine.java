@@ -0,0 +1,258 @@
+package qupath.lib.deep_learning;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClassFactory;
+
+/**
+ * Runs a trained network over all objects of a slide in large batches.
+ *
+ * The measurements of all objects are extracted into a single {@link MeasurementMatrix}, which is cut
+ * into batches. A pool of workers, each with its own ND4J workspace and a copy of the network borrowed
+ * from a {@link ModelPool}, runs the forward passes. When all batches are done the predictions are written back to the objects
+ * in one pass, either as measurements or as classifications.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class SlideInferenceEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideInferenceEngine.class);
+
+	private static final String WORKSPACE_ID = "DL4J_SLIDE_INFERENCE";
+
+	public static final String DEFAULT_MEASUREMENT_PREFIX = "DL4J output";
+
+	private final ModelPool pool;
+	private final List <String> measurementNames;
+	private final DataNormalization normalization;
+	private final int batchSize;
+	private final int threads;
+
+	private String measurementPrefix = DEFAULT_MEASUREMENT_PREFIX;
+	private List <String> classNames;
+	private TrainingMetrics metrics;
+
+	/**
+	 * @param model Trained network; it is only used as a template for the per-thread copies.
+	 * @param measurementNames Measurements used as input, in the order the network was trained on.
+	 * @param normalization Normalization used during training, or null.
+	 * @param batchSize Number of objects per forward pass.
+	 * @param threads Maximum number of forward passes running in parallel; leased from the {@link ConcurrencyBudget}.
+	 */
+	public SlideInferenceEngine (final MultiLayerNetwork model, final List <String> measurementNames,
+								 final DataNormalization normalization, final int batchSize, final int threads) {
+		this(new ModelPool(model, threads), measurementNames, normalization, batchSize, threads);
+	}
+
+	/**
+	 * @param pool Copies of the trained network; the workers borrow them and return them when the run is done.
+	 * @param measurementNames Measurements used as input, in the order the network was trained on.
+	 * @param normalization Normalization used during training, or null.
+	 * @param batchSize Number of objects per forward pass.
+	 * @param threads Maximum number of forward passes running in parallel; leased from the {@link ConcurrencyBudget}.
+	 */
+	public SlideInferenceEngine (final ModelPool pool, final List <String> measurementNames,
+								 final DataNormalization normalization, final int batchSize, final int threads) {
+		this.pool = pool;
+		this.measurementNames = measurementNames;
+		this.normalization = normalization;
+		this.batchSize = Math.max(1, batchSize);
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Write the network output as measurements named "prefix 1", "prefix 2", ... (the default).
+	 */
+	public void setOutputAsMeasurements (final String prefix) {
+		this.measurementPrefix = prefix;
+		this.classNames = null;
+	}
+
+	/**
+	 * Classify every object as the class with the highest output.
+	 *
+	 * @param classNames Names of the classes, in the order of the output layer.
+	 */
+	public void setOutputAsClassification (final List <String> classNames) {
+		this.classNames = classNames;
+	}
+
+	/**
+	 * Record the time spent on every batch in the given metrics, which are available through JMX while running.
+	 */
+	public void setMetrics (final TrainingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Run the network on all objects and write the results back to them.
+	 *
+	 * @param pathObjects Objects to run the inference on.
+	 * @param progress Receives the fraction of batches done, from any thread; may be null.
+	 * @param cancelled Checked before every batch; may be null.
+	 * @return Number of objects that received a result.
+	 * @throws CancellationException if the run was cancelled; no objects are changed in that case.
+	 */
+	public int run (final Collection <? extends PathObject> pathObjects, final DoubleConsumer progress, final BooleanSupplier cancelled) {
+
+		final MeasurementMatrix matrix = MeasurementMatrix.build(pathObjects, measurementNames);
+		final int rows = matrix.size();
+		if (rows == 0) {
+			return 0;
+		}
+
+		final int nOut = ((FeedForwardLayer) pool.getModel().getOutputLayer().conf().getLayer()).getNOut();
+		final float [] results = new float[rows * nOut];
+		final int batches = (rows + batchSize - 1) / batchSize;
+		final AtomicInteger nextBatch = new AtomicInteger();
+		final AtomicInteger doneBatches = new AtomicInteger();
+		final AtomicLong imputed = new AtomicLong();
+
+		final TrainingMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.register();
+		}
+
+		// Fewer threads may be granted when other jobs are running
+		ConcurrencyBudget.Lease lease = ConcurrencyBudget.getInstance().acquire("Slide inference", Math.min(threads, batches));
+		final int workers = lease.getThreads();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List <Future<?>> futures = new ArrayList<>(workers);
+		for (int t = 0; t < workers; t++) {
+			futures.add(executor.submit(() -> {
+				MultiLayerNetwork network = pool.borrow();
+				WorkspaceConfiguration config = WorkspaceConfiguration.builder()
+						.policyAllocation(AllocationPolicy.OVERALLOCATE)
+						.policyLearning(LearningPolicy.FIRST_LOOP)
+						.build();
+
+				try {
+					int batch;
+					while ((batch = nextBatch.getAndIncrement()) < batches) {
+						if (cancelled != null && cancelled.getAsBoolean()) {
+							return;
+						}
+						int start = batch * batchSize;
+						int end = Math.min(rows, start + batchSize);
+
+						try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(config, WORKSPACE_ID)) {
+							long dataStart = System.nanoTime();
+							INDArray input = matrix.getMatrix().get(NDArrayIndex.interval(start, end), NDArrayIndex.all()).dup();
+							long normalizationStart = System.nanoTime();
+							imputed.addAndGet(MissingValues.prepare(input, normalization));
+							long computeStart = System.nanoTime();
+							INDArray output = network.output(input, false);
+							if (metrics != null) {
+								metrics.recordInference(normalizationStart - dataStart, computeStart - normalizationStart,
+										System.nanoTime() - computeStart, end - start);
+							}
+							for (int r = 0; r < end - start; r++) {
+								for (int c = 0; c < nOut; c++) {
+									results[(start + r) * nOut + c] = output.getFloat(r, c);
+								}
+							}
+						}
+
+						if (progress != null) {
+							progress.accept(doneBatches.incrementAndGet() / (double) batches);
+						}
+					}
+				} finally {
+					pool.release(network);
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Inference was interrupted");
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Inference failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			lease.close();
+			if (metrics != null) {
+				metrics.unregister();
+			}
+		}
+
+		if (cancelled != null && cancelled.getAsBoolean()) {
+			throw new CancellationException("Inference was cancelled");
+		}
+
+		writeResults(matrix.getPathObjects(), results, nOut);
+		logger.info("Ran inference on {} objects in {} batches using {} threads.", rows, batches, workers);
+		if (metrics != null) {
+			metrics.inferenceFinished();
+		}
+		if (imputed.get() > 0) {
+			logger.info("{} missing measurements were replaced before the inference", imputed.get());
+		}
+		return rows;
+	}
+
+	/**
+	 * Write all results to the objects in one pass.
+	 */
+	private void writeResults (final List <PathObject> pathObjects, final float [] results, final int nOut) {
+
+		if (classNames != null) {
+			for (int i = 0; i < pathObjects.size(); i++) {
+				int best = 0;
+				for (int c = 1; c < nOut; c++) {
+					if (results[i * nOut + c] > results[i * nOut + best]) {
+						best = c;
+					}
+				}
+				if (best < classNames.size()) {
+					pathObjects.get(i).setPathClass(PathClassFactory.getPathClass(classNames.get(best)));
+				}
+			}
+			return;
+		}
+
+		String [] names = new String[nOut];
+		for (int c = 0; c < nOut; c++) {
+			names[c] = measurementPrefix + " " + (c + 1);
+		}
+		for (int i = 0; i < pathObjects.size(); i++) {
+			MeasurementList list = pathObjects.get(i).getMeasurementList();
+			for (int c = 0; c < nOut; c++) {
+				list.putMeasurement(names[c], results[i * nOut + c]);
+			}
+			list.closeList();
+		}
+	}
+
+}
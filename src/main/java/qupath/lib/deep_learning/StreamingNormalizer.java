@@ -0,0 +1,198 @@
+package qupath.lib.deep_learning;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerMinMaxScaler;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Normalization statistics (mean, variance, min and max per feature) which are updated incrementally,
+ * using Welford's algorithm, as the data is created. Statistics gathered separately (per slide, per
+ * thread) can be merged, so no extra pass over the data is needed to fit a normalizer.
+ *
+ * NaN values are ignored; features without any values get mean 0, standard deviation 1, min 0 and
+ * max 1, so they pass through the normalizers unchanged. The statistics can be turned into a regular fitted ND4J normalizer with
+ * {@link #toDataNormalization(AbstractNeuralNetwork.NormalizationMethod)}, which is also how they are
+ * stored with a model.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class StreamingNormalizer implements Serializable {
+
+	private static final long serialVersionUID = 8052870418262195523L;
+
+	// Smallest standard deviation used, so constant features do not cause a division by zero
+	private static final double MIN_STD = 1e-5;
+
+	private int columns = -1;
+	private long [] count;
+	private double [] mean;
+	private double [] m2;
+	private double [] min;
+	private double [] max;
+
+	private void init (final int columns) {
+		this.columns = columns;
+		this.count = new long[columns];
+		this.mean = new double[columns];
+		this.m2 = new double[columns];
+		this.min = new double[columns];
+		this.max = new double[columns];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Add the rows of the given array to the statistics. Arrays with more than two dimensions are
+	 * treated as one row per example.
+	 */
+	public synchronized void update (final INDArray features) {
+
+		int rows = features.size(0);
+		if (rows == 0) {
+			return;
+		}
+		int cols = (int) (features.length() / rows);
+		if (columns < 0) {
+			init(cols);
+		}
+		else if (cols != columns) {
+			throw new IllegalArgumentException("Expected " + columns + " features, got " + cols);
+		}
+
+		double [] data = features.dup('c').data().asDouble();
+		for (int r = 0; r < rows; r++) {
+			int offset = r * cols;
+			for (int c = 0; c < cols; c++) {
+				double value = data[offset + c];
+				if (Double.isNaN(value)) {
+					continue;
+				}
+				long n = ++count[c];
+				double delta = value - mean[c];
+				mean[c] += delta / n;
+				m2[c] += delta * (value - mean[c]);
+				if (value < min[c]) {
+					min[c] = value;
+				}
+				if (value > max[c]) {
+					max[c] = value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merge the statistics of another normalizer into this one.
+	 */
+	public synchronized void merge (final StreamingNormalizer other) {
+
+		synchronized (other) {
+			if (other.columns < 0) {
+				return;
+			}
+			if (columns < 0) {
+				init(other.columns);
+			}
+			else if (other.columns != columns) {
+				throw new IllegalArgumentException("Cannot merge statistics of " + other.columns + " features into " + columns);
+			}
+
+			for (int c = 0; c < columns; c++) {
+				long n = count[c] + other.count[c];
+				if (n == 0) {
+					continue;
+				}
+				double delta = other.mean[c] - mean[c];
+				mean[c] += delta * other.count[c] / n;
+				m2[c] += other.m2[c] + delta * delta * count[c] * other.count[c] / n;
+				count[c] = n;
+				min[c] = Math.min(min[c], other.min[c]);
+				max[c] = Math.max(max[c], other.max[c]);
+			}
+		}
+	}
+
+	/**
+	 * Create a fitted ND4J normalizer from these statistics.
+	 */
+	public DataNormalization toDataNormalization (final AbstractNeuralNetwork.NormalizationMethod method) {
+		if (method == AbstractNeuralNetwork.NormalizationMethod.MinMax) {
+			NormalizerMinMaxScaler normalizer = new NormalizerMinMaxScaler();
+			normalizer.setFeatureStats(getMin(), getMax());
+			return normalizer;
+		}
+		NormalizerStandardize normalizer = new NormalizerStandardize();
+		normalizer.setFeatureStats(getMean(), getStd());
+		return normalizer;
+	}
+
+	/**
+	 * @throws IllegalStateException if no data was added yet, so the number of features is not known.
+	 */
+	private void checkNotEmpty () {
+		if (columns < 0) {
+			throw new IllegalStateException("No data was added to the normalization statistics");
+		}
+	}
+
+	public synchronized INDArray getMean () {
+		checkNotEmpty();
+		return Nd4j.create(mean);
+	}
+
+	/**
+	 * Population standard deviation, as used by ND4J's normalizers.
+	 */
+	public synchronized INDArray getStd () {
+		checkNotEmpty();
+		double [] std = new double[columns];
+		for (int c = 0; c < columns; c++) {
+			std[c] = count[c] == 0 ? 1.0 : Math.max(MIN_STD, Math.sqrt(m2[c] / count[c]));
+		}
+		return Nd4j.create(std);
+	}
+
+	public synchronized INDArray getMin () {
+		checkNotEmpty();
+		double [] values = new double[columns];
+		for (int c = 0; c < columns; c++) {
+			values[c] = count[c] == 0 ? 0.0 : min[c];
+		}
+		return Nd4j.create(values);
+	}
+
+	public synchronized INDArray getMax () {
+		checkNotEmpty();
+		double [] values = new double[columns];
+		for (int c = 0; c < columns; c++) {
+			values[c] = count[c] == 0 ? 1.0 : max[c];
+		}
+		return Nd4j.create(values);
+	}
+
+	public synchronized long getCount () {
+		long n = 0;
+		for (int c = 0; c < columns; c++) {
+			n = Math.max(n, count[c]);
+		}
+		return n;
+	}
+
+	/**
+	 * Get the number of features, or -1 if no data was added yet.
+	 */
+	public synchronized int getColumnCount () {
+		return columns;
+	}
+
+	public synchronized boolean isEmpty () {
+		return getCount() == 0;
+	}
+
+}
@@ -0,0 +1,464 @@
+package qupath.lib.deep_learning;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.eigen.Eigen;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.BooleanIndexing;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.indexing.conditions.Conditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Principal component analysis of feature matrices too large to hold twice in memory, or at all. The
+ * covariance matrix is computed in a single streaming pass over chunks of rows, which are read and
+ * multiplied on several threads; only the d x d sums of products are kept. The components are the
+ * leading eigenvectors of the (d x d) covariance matrix, and objects are projected in parallel chunks
+ * as well.
+ *
+ * To limit the loss of precision of the one-pass formula, every chunk is shifted by an estimate of the
+ * mean taken from the first chunk and the sums are accumulated in double precision. Missing values (NaN)
+ * are replaced by the mean of the present values; as the mean is only known at the end of the pass, the
+ * sums are also kept per pair of features over the rows where both are present, which gives the same
+ * covariance as imputing first. Measurements have very different scales,
+ * so by default every feature is standardized, i.e. the correlation matrix is used instead of the
+ * covariance matrix.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class StreamingPCA {
+
+	private static final Logger logger = LoggerFactory.getLogger(StreamingPCA.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+	private final int componentCount;
+	private boolean standardize = true;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int threads = ConcurrencyBudget.getInstance().getTotalThreads();
+
+	private long count;
+	private double [] mean;
+	private double [] scale;
+	private double [] eigenvalues;
+	private double totalVariance;
+	private INDArray components;
+
+	/**
+	 * @param componentCount Number of leading components to keep.
+	 */
+	public StreamingPCA (final int componentCount) {
+		this.componentCount = Math.max(1, componentCount);
+	}
+
+	/**
+	 * Standardize every feature to unit variance before the analysis (the default).
+	 */
+	public void setStandardize (final boolean standardize) {
+		this.standardize = standardize;
+	}
+
+	/**
+	 * Set the number of rows read and multiplied at once.
+	 */
+	public void setChunkSize (final int chunkSize) {
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * Set the maximum number of threads; fewer are used when the {@link ConcurrencyBudget} is shared with other jobs.
+	 */
+	public void setThreads (final int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Compute the principal components of all rows of the source.
+	 *
+	 * @param progress Receives the fraction of chunks done, from any thread; may be null.
+	 * @param cancelled Checked before every chunk; may be null.
+	 * @throws CancellationException if the run was cancelled.
+	 */
+	public void fit (final RowSource source, final DoubleConsumer progress, final BooleanSupplier cancelled) throws IOException {
+
+		long start = System.currentTimeMillis();
+		final int d = source.getColumnCount();
+		final int rows = source.getRowCount();
+		if (rows < 2) {
+			throw new IllegalArgumentException("At least 2 rows are needed for a PCA, got " + rows);
+		}
+		if (componentCount > d) {
+			throw new IllegalArgumentException("Cannot compute " + componentCount + " components of " + d + " features");
+		}
+
+		// Shift by an estimate of the mean, so the sums of products do not grow far beyond the variance
+		final double [] shift = columnMeans(source.getRows(0, Math.min(rows, chunkSize)));
+		final INDArray shiftRow = Nd4j.create(shift, new int[] {1, d});
+
+		final int workers = Math.min(threads, (rows + chunkSize - 1) / chunkSize);
+		final double [][] products = new double[workers][d * d];
+		// Sum of feature i over the rows where feature j is present, and the number of rows where both are
+		final double [][] pairSums = new double[workers][d * d];
+		final double [][] pairCounts = new double[workers][d * d];
+
+		forEachChunk(source, "PCA covariance", workers, (worker, first, chunk) -> {
+			INDArray present = presentMask(chunk);
+			INDArray centered = chunk.subiRowVector(shiftRow);
+			BooleanIndexing.replaceWhere(centered, 0.0, Conditions.isNan());
+
+			// The products are summed as they are, so their ordering does not matter as long as it is the same
+			accumulate(products[worker], centered.transpose().mmul(centered));
+			accumulate(pairSums[worker], centered.transpose().mmul(present));
+			accumulate(pairCounts[worker], present.transpose().mmul(present));
+		}, progress, cancelled);
+
+		// Merge the workers
+		double [] gram = new double[d * d];
+		double [] pairSum = new double[d * d];
+		double [] pairCount = new double[d * d];
+		for (int w = 0; w < workers; w++) {
+			for (int i = 0; i < d * d; i++) {
+				gram[i] += products[w][i];
+				pairSum[i] += pairSums[w][i];
+				pairCount[i] += pairCounts[w][i];
+			}
+		}
+
+		// The diagonal holds the sum and the number of the present values of every feature
+		count = rows;
+		mean = new double[d];
+		double [] shiftedMean = new double[d];
+		for (int i = 0; i < d; i++) {
+			double n = pairCount[i * d + i];
+			shiftedMean[i] = n > 0 ? pairSum[i * d + i] / n : 0;
+			mean[i] = shift[i] + shiftedMean[i];
+		}
+
+		// A value imputed with the mean does not deviate from it, so only rows where both features are
+		// present contribute: sum((x_i - m_i) * (x_j - m_j)) over those rows, expanded in the shifted sums
+		double [] covariance = new double[d * d];
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < d; j++) {
+				double deviations = gram[i * d + j]
+						- shiftedMean[j] * pairSum[i * d + j]
+						- shiftedMean[i] * pairSum[j * d + i]
+						+ pairCount[i * d + j] * shiftedMean[i] * shiftedMean[j];
+				covariance[i * d + j] = deviations / (rows - 1);
+			}
+		}
+
+		scale = new double[d];
+		for (int i = 0; i < d; i++) {
+			double std = Math.sqrt(Math.max(0, covariance[i * d + i]));
+			scale[i] = standardize && std > 0 ? std : 1;
+		}
+		totalVariance = 0;
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < d; j++) {
+				covariance[i * d + j] /= scale[i] * scale[j];
+			}
+			totalVariance += covariance[i * d + i];
+		}
+
+		// The eigenvectors replace the matrix, as columns, with the eigenvalues in ascending order
+		INDArray matrix = Nd4j.create(covariance, new int[] {d, d}, 'c');
+		INDArray values = Eigen.symmetricGeneralizedEigenvalues(matrix);
+		components = Nd4j.create(d, componentCount);
+		eigenvalues = new double[componentCount];
+		for (int c = 0; c < componentCount; c++) {
+			int column = d - 1 - c;
+			eigenvalues[c] = values.getDouble(column);
+			components.getColumn(c).assign(matrix.getColumn(column));
+		}
+
+		logger.info("PCA of {} rows x {} features in {} ms, {} components explain {}% of the variance", rows, d,
+				System.currentTimeMillis() - start, componentCount, String.format("%.1f", getExplainedVariance() * 100));
+	}
+
+	/**
+	 * Project all rows of the source on the components.
+	 *
+	 * @param progress Receives the fraction of chunks done, from any thread; may be null.
+	 * @param cancelled Checked before every chunk; may be null.
+	 * @return Row-major array with the components of every row.
+	 * @throws CancellationException if the run was cancelled.
+	 */
+	public float [] transform (final RowSource source, final DoubleConsumer progress, final BooleanSupplier cancelled) throws IOException {
+
+		if (components == null) {
+			throw new IllegalStateException("The PCA was not fitted");
+		}
+		if (source.getColumnCount() != mean.length) {
+			throw new IllegalArgumentException("Expected " + mean.length + " features, got " + source.getColumnCount());
+		}
+
+		final int rows = source.getRowCount();
+		final int k = componentCount;
+		final float [] results = new float[rows * k];
+		final INDArray meanRow = Nd4j.create(mean, new int[] {1, mean.length});
+		final INDArray scaleRow = Nd4j.create(scale, new int[] {1, scale.length});
+		final int workers = Math.max(1, Math.min(threads, (rows + chunkSize - 1) / chunkSize));
+
+		forEachChunk(source, "PCA projection", workers, (worker, first, chunk) -> {
+			INDArray centered = chunk.subiRowVector(meanRow);
+			BooleanIndexing.replaceWhere(centered, 0.0, Conditions.isNan());
+			INDArray projected = centered.diviRowVector(scaleRow).mmul(components);
+			for (int r = 0; r < projected.rows(); r++) {
+				for (int c = 0; c < k; c++) {
+					results[(first + r) * k + c] = projected.getFloat(r, c);
+				}
+			}
+		}, progress, cancelled);
+
+		return results;
+	}
+
+	/**
+	 * Read the source in chunks and hand every chunk to the task, on threads leased from the budget.
+	 */
+	private void forEachChunk (final RowSource source, final String owner, final int maxWorkers, final ChunkTask task,
+							   final DoubleConsumer progress, final BooleanSupplier cancelled) throws IOException {
+
+		final int rows = source.getRowCount();
+		final int chunks = (rows + chunkSize - 1) / chunkSize;
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final AtomicInteger doneChunks = new AtomicInteger();
+
+		ConcurrencyBudget.Lease lease = ConcurrencyBudget.getInstance().acquire(owner, maxWorkers);
+		final int workers = Math.min(maxWorkers, lease.getThreads());
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List <Future<?>> futures = new ArrayList<>(workers);
+		for (int w = 0; w < workers; w++) {
+			final int worker = w;
+			futures.add(executor.submit(() -> {
+				int chunk;
+				while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+					if (cancelled != null && cancelled.getAsBoolean()) {
+						return null;
+					}
+					int first = chunk * chunkSize;
+					task.accept(worker, first, source.getRows(first, Math.min(chunkSize, rows - first)));
+					if (progress != null) {
+						progress.accept(doneChunks.incrementAndGet() / (double) chunks);
+					}
+				}
+				return null;
+			}));
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("PCA was interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("PCA failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			lease.close();
+		}
+
+		if (cancelled != null && cancelled.getAsBoolean()) {
+			throw new CancellationException("PCA was cancelled");
+		}
+	}
+
+	private static double [] columnMeans (final INDArray chunk) {
+		double [] means = new double[chunk.columns()];
+		for (int c = 0; c < chunk.columns(); c++) {
+			double sum = 0;
+			int n = 0;
+			for (int r = 0; r < chunk.rows(); r++) {
+				double v = chunk.getDouble(r, c);
+				if (!Double.isNaN(v)) {
+					sum += v;
+					n++;
+				}
+			}
+			means[c] = n > 0 ? sum / n : 0;
+		}
+		return means;
+	}
+
+	/**
+	 * Get a matrix of the shape of the chunk with 1 where a value is present and 0 where it is NaN.
+	 */
+	private static INDArray presentMask (final INDArray chunk) {
+		double [] values = chunk.dup('c').data().asDouble();
+		double [] mask = new double[values.length];
+		for (int i = 0; i < values.length; i++) {
+			mask[i] = Double.isNaN(values[i]) ? 0 : 1;
+		}
+		return Nd4j.create(mask, new int[] {chunk.rows(), chunk.columns()}, 'c');
+	}
+
+	private static void accumulate (final double [] dest, final INDArray values) {
+		double [] data = values.dup('c').data().asDouble();
+		for (int i = 0; i < dest.length; i++) {
+			dest[i] += data[i];
+		}
+	}
+
+	/**
+	 * Get the number of rows the PCA was fitted on.
+	 */
+	public long getCount () {
+		return count;
+	}
+
+	public int getComponentCount () {
+		return componentCount;
+	}
+
+	/**
+	 * Get the components as the columns of a [features, components] matrix.
+	 */
+	public INDArray getComponents () {
+		return components;
+	}
+
+	/**
+	 * Get the variance along every component, in descending order.
+	 */
+	public double [] getEigenvalues () {
+		return eigenvalues;
+	}
+
+	/**
+	 * Get the fraction of the total variance explained by every component.
+	 */
+	public double [] getExplainedVarianceRatios () {
+		double [] ratios = new double[eigenvalues.length];
+		for (int c = 0; c < ratios.length; c++) {
+			ratios[c] = totalVariance > 0 ? eigenvalues[c] / totalVariance : 0;
+		}
+		return ratios;
+	}
+
+	/**
+	 * Get the fraction of the total variance explained by all kept components together.
+	 */
+	public double getExplainedVariance () {
+		double sum = 0;
+		for (double ratio : getExplainedVarianceRatios()) {
+			sum += ratio;
+		}
+		return sum;
+	}
+
+	public double [] getMean () {
+		return mean;
+	}
+
+	private interface ChunkTask {
+		void accept (int worker, int firstRow, INDArray chunk) throws IOException;
+	}
+
+	/**
+	 * Rows of a feature matrix, read in chunks.
+	 */
+	public interface RowSource {
+
+		int getRowCount ();
+
+		int getColumnCount ();
+
+		/**
+		 * Get a copy of consecutive rows, as a [count, columns] matrix that may be changed.
+		 */
+		INDArray getRows (int firstRow, int count) throws IOException;
+
+		/**
+		 * Rows of a matrix in memory, e.g. a {@link MeasurementMatrix} or a {@link FeatureStore}.
+		 */
+		static RowSource of (final INDArray matrix) {
+			return new RowSource() {
+				@Override
+				public int getRowCount () {
+					return matrix.rows();
+				}
+
+				@Override
+				public int getColumnCount () {
+					return matrix.columns();
+				}
+
+				@Override
+				public INDArray getRows (final int firstRow, final int count) {
+					return matrix.get(NDArrayIndex.interval(firstRow, firstRow + count), NDArrayIndex.all()).dup('c');
+				}
+			};
+		}
+
+		/**
+		 * Rows of a matrix in the {@link FeatureCache}, read from the mapped file, so the matrix does not
+		 * have to fit in memory.
+		 */
+		static RowSource of (final FeatureCache.CachedFeatures features) {
+			return new RowSource() {
+				@Override
+				public int getRowCount () {
+					return features.getRowCount();
+				}
+
+				@Override
+				public int getColumnCount () {
+					return features.getColumnCount();
+				}
+
+				@Override
+				public INDArray getRows (final int firstRow, final int count) throws IOException {
+					float [] data = new float[count * features.getColumnCount()];
+					features.readRows(firstRow, count, data);
+					return Nd4j.create(data, new int[] {count, features.getColumnCount()}, 'c');
+				}
+			};
+		}
+
+		/**
+		 * Rows of the features of a list of objects, in the order of the list.
+		 */
+		static RowSource of (final List <? extends AbstractFeatureObject> objects) {
+			final int columns = objects.isEmpty() ? 0 : objects.get(0).getFeatureCount();
+			return new RowSource() {
+				@Override
+				public int getRowCount () {
+					return objects.size();
+				}
+
+				@Override
+				public int getColumnCount () {
+					return columns;
+				}
+
+				@Override
+				public INDArray getRows (final int firstRow, final int count) {
+					INDArray rows = Nd4j.create(new int[] {count, columns}, 'c');
+					for (int i = 0; i < count; i++) {
+						rows.putRow(i, objects.get(firstRow + i).getFeatures());
+					}
+					return rows;
+				}
+			};
+		}
+	}
+
+}
@@ -1,57 +1,35 @@
 
 package qupath.lib.deep_learning;
 
-import java.util.Arrays;
-
-import org.apache.commons.lang3.ArrayUtils;
-import org.bytedeco.javacpp.opencv_core;
-import org.bytedeco.javacpp.opencv_ml;
-import org.deeplearning4j.plot.BarnesHutTsne;
-import org.deeplearning4j.plot.Tsne;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class TSNEExample  {
+
+    private static final Logger logger = LoggerFactory.getLogger(TSNEExample.class);
+
     public static void main(String [] args) throws Exception {
-        int initial_dims = -1;
         double perplexity = 20.0;
-        int iterations = 10;
         double theta = 0.500000;
 
         // Some random data
-        String [] labels = new String[5000];
         double [] [] X = new double[5000][100];
         for (int i = 0; i < 5000; i++) {
             for (int j = 0; j < 100; j++) {
-                //X[i][j] = Math.random();
                 X[i][j] = Math.random();
             }
-            labels[i] = new String ("" + i);
         }
 
-        /*
-        BarnesHutTsne tsne = new BarnesHutTsne.Builder()
-                .setMaxIter(iterations)
-                .perplexity(perplexity)
-                .theta(theta)
-                .normalize(true)
-                .build();
-        */
-        Tsne tsne = new Tsne.Builder()
-                .setMaxIter(iterations)
-                .perplexity(perplexity)
-                .normalize(false)
-                .build();
-
-        //tsne.plot(Nd4j.create(X), 2, Arrays.asList(labels), "C:\\Users\\SamVa\\Desktop\\tsne.csv");
-        //tsne.fit(Nd4j.create(X));
-        //INDArray result = tsne.getData();
-        INDArray result = tsne.calculate(Nd4j.create(X), 2, 20);
-
-        //System.out.println(result.shape()[0] + ", " + result.shape()[1]);
-        System.out.println(result.toString());
-
-        //tsne.fit(Nd4j.create(X));
-        //tsne.saveAsFile(Arrays.asList(labels), "C:\\Users\\SamVa\\Desktop\\tsne.csv");
+        // The exact Tsne is O(n^2), use the Barnes-Hut implementation of the extension instead
+        BarnesHutTSNE tsne = new BarnesHutTSNE();
+        tsne.setPerplexity(perplexity);
+        tsne.setTheta(theta);
+        float [] embedding = tsne.fit(StreamingPCA.RowSource.of(Nd4j.create(X)),
+                (message, fraction) -> logger.info("{} ({}%)", message, Math.round(fraction * 100)), null);
+        INDArray result = Nd4j.create(embedding, new int[] {X.length, 2}, 'c');
+
+        logger.info("Embedding: {}", result);
     }
-}
\ No newline at end of file
+}
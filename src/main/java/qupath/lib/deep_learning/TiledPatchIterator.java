@@ -0,0 +1,350 @@
+package qupath.lib.deep_learning;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Streams fixed-size image patches centered on PathObjects as NCHW minibatches.
+ *
+ * The objects are grouped by the server tile their centroid falls in and visited tile by tile, so
+ * every tile (plus a margin of half a patch) is read from the server only once. Patches are cropped
+ * straight from the tile raster into a single reusable minibatch buffer. At any time only one tile
+ * and one minibatch are held in memory, regardless of the amount of objects.
+ *
+ * All coordinates are in full resolution pixels; the downsample determines how many full resolution
+ * pixels a single patch pixel covers.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TiledPatchIterator implements DataSetIterator {
+
+	private static final Logger logger = LoggerFactory.getLogger(TiledPatchIterator.class);
+
+	private static final long serialVersionUID = 4217360127851029385L;
+
+	/**
+	 * Reads a region of the image in full resolution coordinates, returning it at the iterator's downsample.
+	 */
+	public interface RegionReader {
+		BufferedImage read (int x, int y, int width, int height);
+	}
+
+	private final RegionReader reader;
+	private final int imageWidth, imageHeight;
+	private final int tileWidth, tileHeight;
+	private final double downsample;
+	private final int patchSize, channels, batchSize;
+	private final List <String> labels;
+
+	private final List <PathObject> pathObjects; // Sorted by tile
+	private final long [] tileKeys;
+
+	// Reused for every minibatch: batchSize * channels * patchSize * patchSize
+	private final float [] buffer;
+	private final float [] rowBuffer;
+
+	private int cursor = 0;
+	private long currentTileKey = -1;
+	private BufferedImage currentTile;
+	private int currentTileX, currentTileY;
+	private int tileReads = 0;
+
+	private DataSetPreProcessor preProcessor;
+
+	/**
+	 * @param reader Reader for image regions.
+	 * @param imageWidth Full resolution width of the image.
+	 * @param imageHeight Full resolution height of the image.
+	 * @param tileWidth Full resolution width of a tile.
+	 * @param tileHeight Full resolution height of a tile.
+	 * @param downsample Downsample at which the patches are extracted.
+	 * @param pathObjects Objects to extract a patch for; the patch is centered on the ROI centroid.
+	 * @param patchSize Width and height of a patch, in downsampled pixels.
+	 * @param channels Number of channels in the image.
+	 * @param batchSize Number of patches in a minibatch.
+	 * @param labels Names of the classes used to create one-hot labels, or null if no labels are required.
+	 */
+	public TiledPatchIterator (final RegionReader reader, final int imageWidth, final int imageHeight,
+							   final int tileWidth, final int tileHeight, final double downsample,
+							   final Collection <? extends PathObject> pathObjects, final int patchSize,
+							   final int channels, final int batchSize, final List <String> labels) {
+
+		this.reader = reader;
+		this.imageWidth = imageWidth;
+		this.imageHeight = imageHeight;
+		this.tileWidth = Math.max(1, tileWidth);
+		this.tileHeight = Math.max(1, tileHeight);
+		this.downsample = downsample;
+		this.patchSize = patchSize;
+		this.channels = channels;
+		this.batchSize = Math.max(1, batchSize);
+		this.labels = labels;
+
+		// Sort the objects by tile so each tile only has to be visited once
+		List <PathObject> sorted = new ArrayList<>();
+		for (PathObject pathObject : pathObjects) {
+			if (pathObject.hasROI()) {
+				sorted.add(pathObject);
+			}
+		}
+		sorted.sort(Comparator.comparingLong(this::getTileKey));
+		this.pathObjects = sorted;
+
+		this.tileKeys = new long[sorted.size()];
+		for (int i = 0; i < tileKeys.length; i++) {
+			tileKeys[i] = getTileKey(sorted.get(i));
+		}
+
+		this.buffer = new float[this.batchSize * getPatchLength()];
+		this.rowBuffer = new float[patchSize];
+	}
+
+	/**
+	 * Create an iterator reading directly from an image server, using the server's preferred tile size.
+	 */
+	public static TiledPatchIterator createInstance (final ImageServer <BufferedImage> server, final double downsample,
+													 final Collection <? extends PathObject> pathObjects, final int patchSize,
+													 final int batchSize, final List <String> labels) {
+
+		RegionReader reader = (x, y, width, height) ->
+				server.readBufferedImage(RegionRequest.createInstance(server.getPath(), downsample, x, y, width, height));
+
+		// Make sure a tile is at least as big as a patch, otherwise nearly every patch needs its own read
+		int span = (int) Math.ceil(patchSize * downsample);
+		int tileWidth = Math.max(span, (int) Math.round(server.getPreferredTileWidth() * downsample));
+		int tileHeight = Math.max(span, (int) Math.round(server.getPreferredTileHeight() * downsample));
+
+		return new TiledPatchIterator(reader, server.getWidth(), server.getHeight(), tileWidth, tileHeight,
+				downsample, pathObjects, patchSize, server.nChannels(), batchSize, labels);
+	}
+
+	private long getTileKey (final PathObject pathObject) {
+		ROI roi = pathObject.getROI();
+		long tx = (long) Math.floor(roi.getCentroidX() / tileWidth);
+		long ty = (long) Math.floor(roi.getCentroidY() / tileHeight);
+		return (ty << 32) | (tx & 0xffffffffL);
+	}
+
+	private int getPatchLength () {
+		return channels * patchSize * patchSize;
+	}
+
+	/**
+	 * Make sure the tile containing the given object is loaded. The tile is read with a margin of half a patch,
+	 * so that all patches centered inside the tile can be cropped from it.
+	 */
+	private void loadTile (final long key) {
+
+		if (key == currentTileKey && currentTile != null) {
+			return;
+		}
+
+		int tx = (int) key;
+		int ty = (int) (key >> 32);
+		int margin = (int) Math.ceil(patchSize * downsample / 2.0) + 1;
+
+		int x = Math.max(0, tx * tileWidth - margin);
+		int y = Math.max(0, ty * tileHeight - margin);
+		int x2 = Math.min(imageWidth, (tx + 1) * tileWidth + margin);
+		int y2 = Math.min(imageHeight, (ty + 1) * tileHeight + margin);
+
+		currentTile = reader.read(x, y, x2 - x, y2 - y);
+		currentTileX = x;
+		currentTileY = y;
+		currentTileKey = key;
+		tileReads++;
+	}
+
+	/**
+	 * Crop a patch centered on the given full resolution coordinates into the destination array in CHW order.
+	 * Pixels falling outside the image are set to zero.
+	 *
+	 * @param img Image to crop from.
+	 * @param imgX Full resolution x coordinate of the image origin.
+	 * @param imgY Full resolution y coordinate of the image origin.
+	 * @param downsample Downsample of the image.
+	 * @param cx Full resolution x coordinate of the patch center.
+	 * @param cy Full resolution y coordinate of the patch center.
+	 * @param patchSize Width and height of the patch.
+	 * @param channels Number of channels to copy.
+	 * @param dest Destination array.
+	 * @param offset Position of the patch in the destination array.
+	 * @param rowBuffer Scratch array of at least patchSize elements.
+	 */
+	static void cropPatch (final BufferedImage img, final int imgX, final int imgY, final double downsample,
+						   final double cx, final double cy, final int patchSize, final int channels,
+						   final float [] dest, final int offset, final float [] rowBuffer) {
+
+		int length = channels * patchSize * patchSize;
+		Arrays.fill(dest, offset, offset + length, 0f);
+		if (img == null) {
+			return;
+		}
+
+		Raster raster = img.getRaster();
+		int x0 = (int) Math.round((cx - imgX) / downsample - patchSize / 2.0);
+		int y0 = (int) Math.round((cy - imgY) / downsample - patchSize / 2.0);
+
+		// Clip the patch to the raster
+		int left = Math.max(0, -x0);
+		int right = Math.min(patchSize, raster.getWidth() - x0);
+		int top = Math.max(0, -y0);
+		int bottom = Math.min(patchSize, raster.getHeight() - y0);
+		if (left >= right || top >= bottom) {
+			return;
+		}
+
+		int bands = Math.min(channels, raster.getNumBands());
+		int width = right - left;
+		for (int c = 0; c < bands; c++) {
+			int channelOffset = offset + c * patchSize * patchSize;
+			for (int r = top; r < bottom; r++) {
+				raster.getSamples(x0 + left, y0 + r, width, 1, c, rowBuffer);
+				System.arraycopy(rowBuffer, 0, dest, channelOffset + r * patchSize + left, width);
+			}
+		}
+	}
+
+	@Override
+	public DataSet next (final int num) {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		int n = Math.min(Math.min(num, batchSize), pathObjects.size() - cursor);
+		int patchLength = getPatchLength();
+		INDArray labelMatrix = labels == null ? null : Nd4j.zeros(n, labels.size());
+
+		for (int i = 0; i < n; i++, cursor++) {
+			PathObject pathObject = pathObjects.get(cursor);
+			loadTile(tileKeys[cursor]);
+
+			ROI roi = pathObject.getROI();
+			cropPatch(currentTile, currentTileX, currentTileY, downsample, roi.getCentroidX(), roi.getCentroidY(),
+					patchSize, channels, buffer, i * patchLength, rowBuffer);
+
+			if (labelMatrix != null && pathObject.getPathClass() != null) {
+				int label = labels.indexOf(pathObject.getPathClass().getName());
+				if (label >= 0) {
+					labelMatrix.putScalar(i, label, 1.0);
+				}
+			}
+		}
+
+		// One copy of the whole minibatch into native memory
+		float [] data = n == batchSize ? buffer : Arrays.copyOf(buffer, n * patchLength);
+		INDArray features = Nd4j.create(data, new int[] {n, channels, patchSize, patchSize}, 'c');
+
+		DataSet dataSet = new DataSet(features, labelMatrix);
+		if (preProcessor != null) {
+			preProcessor.preProcess(dataSet);
+		}
+
+		if (!hasNext()) {
+			logger.debug("Extracted {} patches from {} tile reads.", pathObjects.size(), tileReads);
+		}
+		return dataSet;
+	}
+
+	@Override
+	public DataSet next () {
+		return next(batchSize);
+	}
+
+	@Override
+	public boolean hasNext () {
+		return cursor < pathObjects.size();
+	}
+
+	@Override
+	public void reset () {
+		cursor = 0;
+		currentTile = null;
+		currentTileKey = -1;
+		tileReads = 0;
+	}
+
+	/**
+	 * Return the objects in the order in which their patches are produced.
+	 */
+	public List <PathObject> getPathObjects () {
+		return pathObjects;
+	}
+
+	@Override
+	public int totalExamples () {
+		return pathObjects.size();
+	}
+
+	@Override
+	public int inputColumns () {
+		return getPatchLength();
+	}
+
+	@Override
+	public int totalOutcomes () {
+		return labels == null ? 0 : labels.size();
+	}
+
+	@Override
+	public boolean resetSupported () {
+		return true;
+	}
+
+	@Override
+	public boolean asyncSupported () {
+		return true;
+	}
+
+	@Override
+	public int batch () {
+		return batchSize;
+	}
+
+	@Override
+	public int cursor () {
+		return cursor;
+	}
+
+	@Override
+	public int numExamples () {
+		return pathObjects.size();
+	}
+
+	@Override
+	public void setPreProcessor (final DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor () {
+		return preProcessor;
+	}
+
+	@Override
+	public List <String> getLabels () {
+		return labels;
+	}
+
+}
@@ -0,0 +1,115 @@
+package qupath.lib.deep_learning;
+
+import java.util.List;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+/**
+ * Iterator wrapper which reports the time spent fetching each minibatch to {@link TrainingMetrics}.
+ * The wrapped iterator keeps its preprocessor, so the time of a preprocessor applied in its next() is
+ * part of the data loading time. Iterators which normalize elsewhere report that time themselves, like
+ * the workers of a {@link PrefetchingDataSetIterator}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+class TimedDataSetIterator implements DataSetIterator {
+
+	private static final long serialVersionUID = 2419046528830561247L;
+
+	private final DataSetIterator source;
+	private final TrainingMetrics metrics;
+
+	TimedDataSetIterator (final DataSetIterator source, final TrainingMetrics metrics) {
+		this.source = source;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public DataSet next (final int num) {
+		long start = System.nanoTime();
+		DataSet dataSet = source.next(num);
+		return timed(dataSet, start);
+	}
+
+	@Override
+	public DataSet next () {
+		long start = System.nanoTime();
+		DataSet dataSet = source.next();
+		return timed(dataSet, start);
+	}
+
+	private DataSet timed (final DataSet dataSet, final long start) {
+		metrics.recordMinibatch(System.nanoTime() - start, dataSet.numExamples());
+		return dataSet;
+	}
+
+	@Override
+	public boolean hasNext () {
+		return source.hasNext();
+	}
+
+	@Override
+	public void reset () {
+		source.reset();
+	}
+
+	@Override
+	public int totalExamples () {
+		return source.totalExamples();
+	}
+
+	@Override
+	public int inputColumns () {
+		return source.inputColumns();
+	}
+
+	@Override
+	public int totalOutcomes () {
+		return source.totalOutcomes();
+	}
+
+	@Override
+	public boolean resetSupported () {
+		return source.resetSupported();
+	}
+
+	@Override
+	public boolean asyncSupported () {
+		// Asynchronous fetching would hide the data loading time
+		return false;
+	}
+
+	@Override
+	public int batch () {
+		return source.batch();
+	}
+
+	@Override
+	public int cursor () {
+		return source.cursor();
+	}
+
+	@Override
+	public int numExamples () {
+		return source.numExamples();
+	}
+
+	@Override
+	public void setPreProcessor (final DataSetPreProcessor preProcessor) {
+		source.setPreProcessor(preProcessor);
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor () {
+		return source.getPreProcessor();
+	}
+
+	@Override
+	public List <String> getLabels () {
+		return source.getLabels();
+	}
+
+}
@@ -0,0 +1,304 @@
+package qupath.lib.deep_learning;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Random;
+
+import qupath.lib.objects.classes.PathClass;
+
+/**
+ * Reproducible split of a list of samples into training and testing data, stratified by the
+ * PathClass of the samples. The split is computed on indices only: the samples are grouped by class
+ * with a counting sort and each group is shuffled with a seeded Fisher-Yates shuffle, which takes a few
+ * int arrays of the size of the list. The samples themselves are never copied or reordered.
+ *
+ * The same permutation is used for a simple train/test split and for the folds of k-fold
+ * cross-validation, so all folds are stratified and disjoint.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TrainTestSplit {
+
+	private final long seed;
+	private final int size;
+	// Indices of the samples, grouped by class and shuffled within each class
+	private final int [] order;
+	// Start of each class in the order; the last element is the number of samples
+	private final int [] classStart;
+	// Class id of every sample
+	private final int [] classOf;
+	private final List <PathClass> classes;
+
+	/**
+	 * @param samples The samples to split; their PathObject's class is used for stratification.
+	 * @param seed Seed of the shuffle, the same seed always gives the same split.
+	 */
+	public TrainTestSplit (final List <? extends PathDataSet> samples, final long seed) {
+
+		this.seed = seed;
+		this.size = samples.size();
+
+		// Assign an id to every class, in order of appearance
+		Map <PathClass, Integer> classIds = new HashMap<>();
+		List <PathClass> classList = new ArrayList<>();
+		classOf = new int[size];
+		int [] counts = new int[4];
+		for (int i = 0; i < size; i++) {
+			PathDataSet sample = samples.get(i);
+			PathClass pathClass = sample.getPathObject() == null ? null : sample.getPathObject().getPathClass();
+			Integer id = classIds.get(pathClass);
+			if (id == null) {
+				id = classList.size();
+				classIds.put(pathClass, id);
+				classList.add(pathClass);
+				if (id == counts.length) {
+					int [] grown = new int[counts.length * 2];
+					System.arraycopy(counts, 0, grown, 0, counts.length);
+					counts = grown;
+				}
+			}
+			classOf[i] = id;
+			counts[id]++;
+		}
+		this.classes = Collections.unmodifiableList(classList);
+
+		// Counting sort of the indices by class
+		classStart = new int[classList.size() + 1];
+		for (int c = 0; c < classList.size(); c++) {
+			classStart[c + 1] = classStart[c] + counts[c];
+		}
+		int [] next = new int[classList.size()];
+		System.arraycopy(classStart, 0, next, 0, next.length);
+		order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[next[classOf[i]]++] = i;
+		}
+
+		Random random = new Random(seed);
+		for (int c = 0; c < classList.size(); c++) {
+			shuffle(order, classStart[c], classStart[c + 1], random);
+		}
+	}
+
+	/**
+	 * Shuffle part of an array in place (Fisher-Yates).
+	 */
+	private static void shuffle (final int [] array, final int from, final int to, final Random random) {
+		for (int i = to - 1; i > from; i--) {
+			int j = from + random.nextInt(i - from + 1);
+			int tmp = array[i];
+			array[i] = array[j];
+			array[j] = tmp;
+		}
+	}
+
+	/**
+	 * Split the samples in a training and a testing part. Every class is split in the same proportion.
+	 *
+	 * @param trainFraction Fraction of the samples of each class used for training, between 0 and 1.
+	 */
+	public Fold split (final double trainFraction) {
+
+		if (trainFraction < 0 || trainFraction > 1) {
+			throw new IllegalArgumentException("Training fraction must be between 0 and 1, not " + trainFraction);
+		}
+
+		int trainCount = 0;
+		int [] classTrain = new int[classes.size()];
+		for (int c = 0; c < classes.size(); c++) {
+			classTrain[c] = (int) Math.round(trainFraction * (classStart[c + 1] - classStart[c]));
+			trainCount += classTrain[c];
+		}
+
+		int [] train = new int[trainCount];
+		int [] test = new int[size - trainCount];
+		int t = 0, s = 0;
+		for (int c = 0; c < classes.size(); c++) {
+			int split = classStart[c] + classTrain[c];
+			System.arraycopy(order, classStart[c], train, t, classTrain[c]);
+			System.arraycopy(order, split, test, s, classStart[c + 1] - split);
+			t += classTrain[c];
+			s += classStart[c + 1] - split;
+		}
+		return new Fold(mix(train, 0), test);
+	}
+
+	/**
+	 * Split the samples in a training and a testing part, see {@link #split(double)}. Fractions and
+	 * percentages have their own method, as a value of 1 could mean either.
+	 *
+	 * @param trainPercentage Percentage of the samples of each class used for training, between 0 and 100.
+	 */
+	public Fold splitPercent (final double trainPercentage) {
+		if (trainPercentage < 0 || trainPercentage > 100) {
+			throw new IllegalArgumentException("Training percentage must be between 0 and 100, not " + trainPercentage);
+		}
+		return split(trainPercentage / 100.0);
+	}
+
+	/**
+	 * Get one fold of k-fold cross-validation: the samples of the fold are used for testing, all others
+	 * for training. Within each class, the samples are dealt round-robin over the folds.
+	 *
+	 * @param fold Index of the fold, from 0 to foldCount - 1.
+	 * @param foldCount Number of folds (k).
+	 */
+	public Fold fold (final int fold, final int foldCount) {
+
+		if (foldCount < 2 || fold < 0 || fold >= foldCount) {
+			throw new IllegalArgumentException("Invalid fold " + fold + " of " + foldCount);
+		}
+
+		int testCount = 0;
+		for (int c = 0; c < classes.size(); c++) {
+			int n = classStart[c + 1] - classStart[c];
+			testCount += n / foldCount + (fold < n % foldCount ? 1 : 0);
+		}
+
+		int [] train = new int[size - testCount];
+		int [] test = new int[testCount];
+		int t = 0, s = 0;
+		for (int c = 0; c < classes.size(); c++) {
+			for (int i = classStart[c]; i < classStart[c + 1]; i++) {
+				if ((i - classStart[c]) % foldCount == fold) {
+					test[s++] = order[i];
+				}
+				else {
+					train[t++] = order[i];
+				}
+			}
+		}
+		return new Fold(mix(train, fold + 1), test);
+	}
+
+	/**
+	 * Get all folds of k-fold cross-validation.
+	 */
+	public List <Fold> folds (final int foldCount) {
+		List <Fold> folds = new ArrayList<>(foldCount);
+		for (int i = 0; i < foldCount; i++) {
+			folds.add(fold(i, foldCount));
+		}
+		return folds;
+	}
+
+	/**
+	 * Hold out part of the given samples, e.g. the training samples of a split, as validation data.
+	 * Every class is held out in the same proportion; the order of the indices is kept, so with the
+	 * (shuffled) training indices of a split or fold the held out samples are random too.
+	 *
+	 * @param indices Indices of the samples to divide.
+	 * @param validationFraction Fraction of the samples of each class held out, between 0 and 1.
+	 * @return The remaining indices as training indices and the held out ones as test indices.
+	 */
+	public Fold holdOut (final int [] indices, final double validationFraction) {
+
+		if (validationFraction < 0 || validationFraction > 1) {
+			throw new IllegalArgumentException("Validation fraction must be between 0 and 1, not " + validationFraction);
+		}
+
+		int [] remaining = new int[classes.size()];
+		for (int index : indices) {
+			remaining[classOf[index]]++;
+		}
+		int validationCount = 0;
+		for (int c = 0; c < classes.size(); c++) {
+			remaining[c] = (int) Math.round(validationFraction * remaining[c]);
+			validationCount += remaining[c];
+		}
+
+		int [] train = new int[indices.length - validationCount];
+		int [] validation = new int[validationCount];
+		int t = 0, v = 0;
+		for (int index : indices) {
+			if (remaining[classOf[index]] > 0) {
+				remaining[classOf[index]]--;
+				validation[v++] = index;
+			}
+			else {
+				train[t++] = index;
+			}
+		}
+		return new Fold(train, validation);
+	}
+
+	/**
+	 * Shuffle the training indices so the classes are mixed within each minibatch.
+	 */
+	private int [] mix (final int [] indices, final int salt) {
+		shuffle(indices, 0, indices.length, new Random(seed * 31 + salt));
+		return indices;
+	}
+
+	/**
+	 * Get a read-only view on the samples at the given indices, without copying them.
+	 */
+	public static <T> List <T> select (final List <T> samples, final int [] indices) {
+		return new IndexedList<>(samples, indices);
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * Get the classes of the samples, in order of appearance. A null class is included for samples without one.
+	 */
+	public List <PathClass> getClasses () {
+		return classes;
+	}
+
+	public long getSeed () {
+		return seed;
+	}
+
+	/**
+	 * Indices of the training and testing samples of a split or a fold.
+	 */
+	public static class Fold {
+
+		private final int [] train;
+		private final int [] test;
+
+		Fold (final int [] train, final int [] test) {
+			this.train = train;
+			this.test = test;
+		}
+
+		public int [] getTrainIndices () {
+			return train;
+		}
+
+		public int [] getTestIndices () {
+			return test;
+		}
+	}
+
+	private static class IndexedList <T> extends AbstractList <T> implements RandomAccess {
+
+		private final List <T> samples;
+		private final int [] indices;
+
+		IndexedList (final List <T> samples, final int [] indices) {
+			this.samples = samples;
+			this.indices = indices;
+		}
+
+		@Override
+		public T get (final int index) {
+			return samples.get(indices[index]);
+		}
+
+		@Override
+		public int size () {
+			return indices.length;
+		}
+	}
+
+}
@@ -0,0 +1,475 @@
+package qupath.lib.deep_learning;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects per-epoch and per-minibatch timings of the training of a network, split into data loading,
+ * normalization, forward pass, backward pass and parameter update, together with throughput and
+ * memory usage.
+ *
+ * Data loading is timed by the iterator returned from {@link #wrap(DataSetIterator)}; normalization is
+ * reported by iterators which normalize on their own threads (see {@link #recordNormalization(long)}).
+ * The other stages are timed through the DL4J training listener callbacks. Layerwise pretraining does
+ * not report forward and backward passes, so for pretrained networks the whole iteration is counted
+ * as the update.
+ *
+ * The last {@link #MAX_MINIBATCHES} minibatches are kept as well, with their data loading, normalization
+ * and compute (forward, backward and update) time. Besides training minibatches, these include the
+ * batches of a {@link SlideInferenceEngine} using these metrics (see {@link #recordInference}).
+ * Minibatches of parallel training replicas are not recorded.
+ *
+ * The metrics are available through JMX between {@link #register()} and {@link #unregister()}, and listeners added with
+ * {@link #addGlobalListener(Consumer)} are informed after every epoch and every inference run (e.g. to update a chart).
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TrainingMetrics implements TrainingListener, TrainingMetricsMXBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(TrainingMetrics.class);
+
+	private static final long serialVersionUID = -1250893372119460914L;
+
+	private static final int MAX_HISTORY = 1000;
+	public static final int MAX_MINIBATCHES = 1000;
+	private static final AtomicInteger counter = new AtomicInteger();
+	private static final List <Consumer<TrainingMetrics>> globalListeners = new CopyOnWriteArrayList<>();
+
+	private final String networkName;
+	private ObjectName objectName;
+	private int registrations;
+
+	// Running totals of the current epoch, in nanoseconds
+	private long dataNanos, normalizationNanos, forwardNanos, backwardNanos, updateNanos;
+	private long epochStart, samples, minibatches;
+	private long stageStart;
+
+	// The training minibatch the model is working on, recorded when its iteration is done
+	private boolean minibatchPending;
+	private long minibatchDataNanos, minibatchNormalizationNanos, minibatchStart;
+	private int minibatchExamples;
+
+	// Ring buffer of the last minibatches; minibatchCount is the number recorded so far
+	private final MinibatchRecord [] minibatchRing = new MinibatchRecord[MAX_MINIBATCHES];
+	private long minibatchCount;
+
+	private volatile EpochRecord lastEpoch;
+	private final List <EpochRecord> history = new ArrayList<>();
+	private volatile long peakOffHeap;
+	private int epoch = 0;
+
+	public TrainingMetrics (final String networkName) {
+		this.networkName = networkName;
+	}
+
+	/**
+	 * Register these metrics with the platform MBean server, unless they are registered already.
+	 * Every registration must be followed by {@link #unregister()}; the metrics stay registered until
+	 * the last user unregisters them, e.g. when several slides run inference with the same network.
+	 */
+	public synchronized void register () {
+		if (registrations++ > 0) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("qupath.lib.deep_learning:type=TrainingMetrics,name="
+					+ ObjectName.quote(networkName + " " + counter.incrementAndGet()));
+			server.registerMBean(this, objectName);
+		} catch (Exception e) {
+			logger.warn("Could not register training metrics with JMX", e);
+			objectName = null;
+		}
+	}
+
+	public synchronized void unregister () {
+		if (registrations == 0 || --registrations > 0 || objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			logger.debug("Could not unregister training metrics", e);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Add a listener informed after every epoch of any network.
+	 */
+	public static void addGlobalListener (final Consumer <TrainingMetrics> listener) {
+		globalListeners.add(listener);
+	}
+
+	public static void removeGlobalListener (final Consumer <TrainingMetrics> listener) {
+		globalListeners.remove(listener);
+	}
+
+	/**
+	 * Wrap an iterator so the time spent fetching and normalizing minibatches is recorded.
+	 */
+	public DataSetIterator wrap (final DataSetIterator iterator) {
+		return new TimedDataSetIterator(iterator, this);
+	}
+
+	public synchronized void epochStarted () {
+		dataNanos = normalizationNanos = forwardNanos = backwardNanos = updateNanos = 0;
+		samples = minibatches = 0;
+		epochStart = System.nanoTime();
+		stageStart = epochStart;
+	}
+
+	public synchronized void epochFinished () {
+
+		long now = System.nanoTime();
+		double epochMillis = (now - epochStart) / 1e6;
+		Runtime runtime = Runtime.getRuntime();
+		long offHeap = sampleOffHeap();
+
+		epoch++;
+		EpochRecord record = new EpochRecord(epoch, minibatches, dataNanos / 1e6, normalizationNanos / 1e6,
+				forwardNanos / 1e6, backwardNanos / 1e6, updateNanos / 1e6, epochMillis,
+				epochMillis > 0 ? samples / (epochMillis / 1000.0) : 0,
+				runtime.totalMemory() - runtime.freeMemory(), offHeap);
+
+		lastEpoch = record;
+		history.add(record);
+		if (history.size() > MAX_HISTORY) {
+			history.remove(0);
+		}
+
+		logger.info("Epoch {}: {} ms (data {} ms, normalization {} ms, forward {} ms, backward {} ms, update {} ms), {} samples/s",
+				epoch, Math.round(epochMillis), Math.round(record.dataMillis), Math.round(record.normalizationMillis),
+				Math.round(record.forwardMillis), Math.round(record.backwardMillis), Math.round(record.updateMillis),
+				Math.round(record.samplesPerSecond));
+
+		for (Consumer <TrainingMetrics> listener : globalListeners) {
+			listener.accept(this);
+		}
+	}
+
+	synchronized void recordMinibatch (final long dataNanos, final int examples) {
+		this.dataNanos += dataNanos;
+		this.samples += examples;
+		this.minibatches++;
+		// The model starts working on the minibatch now
+		this.stageStart = System.nanoTime();
+		this.minibatchPending = true;
+		this.minibatchDataNanos = dataNanos;
+		this.minibatchExamples = examples;
+		this.minibatchStart = stageStart;
+	}
+
+	/**
+	 * Record time spent normalizing a minibatch. Normalization on background threads overlaps with
+	 * training, so this is thread time rather than a share of the epoch time. It is attributed to the
+	 * next minibatch the model works on.
+	 */
+	public synchronized void recordNormalization (final long nanos) {
+		this.normalizationNanos += nanos;
+		this.minibatchNormalizationNanos += nanos;
+	}
+
+	/**
+	 * Record a minibatch passed through the network for inference. May be called from several threads.
+	 *
+	 * @param dataNanos Time spent gathering the input.
+	 * @param normalizationNanos Time spent normalizing the input.
+	 * @param computeNanos Time spent in the forward pass.
+	 * @param examples Number of examples in the minibatch.
+	 */
+	public synchronized void recordInference (final long dataNanos, final long normalizationNanos, final long computeNanos, final int examples) {
+		addMinibatch(new MinibatchRecord(minibatchCount, true, dataNanos / 1e6, normalizationNanos / 1e6, computeNanos / 1e6, examples));
+	}
+
+	/**
+	 * Inform the listeners after an inference run, so the minibatches it recorded are shown.
+	 */
+	public void inferenceFinished () {
+		sampleOffHeap();
+		for (Consumer <TrainingMetrics> listener : globalListeners) {
+			listener.accept(this);
+		}
+	}
+
+	private void addMinibatch (final MinibatchRecord record) {
+		minibatchRing[(int) (minibatchCount % MAX_MINIBATCHES)] = record;
+		minibatchCount++;
+	}
+
+	/**
+	 * Record samples processed outside of a wrapped iterator, e.g. by parallel training replicas.
+	 */
+	public synchronized void recordSamples (final long examples, final long minibatches) {
+		this.samples += examples;
+		this.minibatches += minibatches;
+	}
+
+	private long sampleOffHeap () {
+		long bytes = Pointer.totalBytes();
+		if (bytes > peakOffHeap) {
+			peakOffHeap = bytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Return the completed epochs, oldest first.
+	 */
+	public synchronized List <EpochRecord> getHistory () {
+		return Collections.unmodifiableList(new ArrayList<>(history));
+	}
+
+	public EpochRecord getLastEpoch () {
+		return lastEpoch;
+	}
+
+	/**
+	 * Return the last {@link #MAX_MINIBATCHES} minibatches of training and inference, oldest first.
+	 */
+	public synchronized List <MinibatchRecord> getMinibatches () {
+		int size = (int) Math.min(minibatchCount, MAX_MINIBATCHES);
+		List <MinibatchRecord> records = new ArrayList<>(size);
+		for (long i = minibatchCount - size; i < minibatchCount; i++) {
+			records.add(minibatchRing[(int) (i % MAX_MINIBATCHES)]);
+		}
+		return Collections.unmodifiableList(records);
+	}
+
+	@Override
+	public synchronized void onForwardPass (final Model model, final List <INDArray> activations) {
+		long now = System.nanoTime();
+		forwardNanos += now - stageStart;
+		stageStart = now;
+	}
+
+	@Override
+	public synchronized void onForwardPass (final Model model, final Map <String, INDArray> activations) {
+		long now = System.nanoTime();
+		forwardNanos += now - stageStart;
+		stageStart = now;
+	}
+
+	@Override
+	public void onGradientCalculation (final Model model) {
+		// Counted as part of the backward pass
+	}
+
+	@Override
+	public synchronized void onBackwardPass (final Model model) {
+		long now = System.nanoTime();
+		backwardNanos += now - stageStart;
+		stageStart = now;
+	}
+
+	@Override
+	public synchronized void iterationDone (final Model model, final int iteration) {
+		long now = System.nanoTime();
+		updateNanos += now - stageStart;
+		stageStart = now;
+		sampleOffHeap();
+
+		if (minibatchPending) {
+			addMinibatch(new MinibatchRecord(minibatchCount, false, minibatchDataNanos / 1e6,
+					minibatchNormalizationNanos / 1e6, (now - minibatchStart) / 1e6, minibatchExamples));
+			minibatchPending = false;
+			minibatchNormalizationNanos = 0;
+		}
+	}
+
+	@Override
+	public void onEpochStart (final Model model) {
+		// Epochs are delimited by epochStarted and epochFinished
+	}
+
+	@Override
+	public void onEpochEnd (final Model model) {
+		// Epochs are delimited by epochStarted and epochFinished
+	}
+
+	@Override
+	public boolean invoked () {
+		return false;
+	}
+
+	@Override
+	public void invoke () {}
+
+	@Override
+	public String getNetworkName () {
+		return networkName;
+	}
+
+	@Override
+	public int getEpoch () {
+		return epoch;
+	}
+
+	@Override
+	public long getMinibatchCount () {
+		EpochRecord record = lastEpoch;
+		return record == null ? 0 : record.minibatches;
+	}
+
+	@Override
+	public double getDataLoadingMillis () {
+		EpochRecord record = lastEpoch;
+		return record == null ? 0 : record.dataMillis;
+	}
+
+	@Override
+	public double getNormalizationMillis () {
+		EpochRecord record = lastEpoch;
+		return record == null ? 0 : record.normalizationMillis;
+	}
+
+	@Override
+	public double getForwardMillis () {
+		EpochRecord record = lastEpoch;
+		return record == null ? 0 : record.forwardMillis;
+	}
+
+	@Override
+	public double getBackwardMillis () {
+		EpochRecord record = lastEpoch;
+		return record == null ? 0 : record.backwardMillis;
+	}
+
+	@Override
+	public double getUpdateMillis () {
+		EpochRecord record = lastEpoch;
+		return record == null ? 0 : record.updateMillis;
+	}
+
+	@Override
+	public double getEpochMillis () {
+		EpochRecord record = lastEpoch;
+		return record == null ? 0 : record.epochMillis;
+	}
+
+	@Override
+	public double getSamplesPerSecond () {
+		EpochRecord record = lastEpoch;
+		return record == null ? 0 : record.samplesPerSecond;
+	}
+
+	@Override
+	public long getHeapUsedBytes () {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	@Override
+	public long getOffHeapBytes () {
+		return sampleOffHeap();
+	}
+
+	@Override
+	public long getPeakOffHeapBytes () {
+		return peakOffHeap;
+	}
+
+	@Override
+	public List <MinibatchRecord> getRecentMinibatches () {
+		return getMinibatches();
+	}
+
+	/**
+	 * Metrics of a single completed epoch. Times are in milliseconds.
+	 */
+	public static class EpochRecord {
+
+		public final int epoch;
+		public final long minibatches;
+		public final double dataMillis, normalizationMillis, forwardMillis, backwardMillis, updateMillis, epochMillis;
+		public final double samplesPerSecond;
+		public final long heapBytes, offHeapBytes;
+
+		EpochRecord (final int epoch, final long minibatches, final double dataMillis, final double normalizationMillis,
+					 final double forwardMillis, final double backwardMillis, final double updateMillis,
+					 final double epochMillis, final double samplesPerSecond, final long heapBytes, final long offHeapBytes) {
+			this.epoch = epoch;
+			this.minibatches = minibatches;
+			this.dataMillis = dataMillis;
+			this.normalizationMillis = normalizationMillis;
+			this.forwardMillis = forwardMillis;
+			this.backwardMillis = backwardMillis;
+			this.updateMillis = updateMillis;
+			this.epochMillis = epochMillis;
+			this.samplesPerSecond = samplesPerSecond;
+			this.heapBytes = heapBytes;
+			this.offHeapBytes = offHeapBytes;
+		}
+	}
+
+	/**
+	 * Metrics of a single minibatch of training or inference. Times are in milliseconds; the getters
+	 * let JMX show the records as composite data.
+	 */
+	public static class MinibatchRecord {
+
+		private final long index;
+		private final boolean inference;
+		private final double dataMillis, normalizationMillis, computeMillis;
+		private final int examples;
+
+		MinibatchRecord (final long index, final boolean inference, final double dataMillis,
+						 final double normalizationMillis, final double computeMillis, final int examples) {
+			this.index = index;
+			this.inference = inference;
+			this.dataMillis = dataMillis;
+			this.normalizationMillis = normalizationMillis;
+			this.computeMillis = computeMillis;
+			this.examples = examples;
+		}
+
+		/**
+		 * Number of minibatches recorded before this one.
+		 */
+		public long getIndex () {
+			return index;
+		}
+
+		public boolean isInference () {
+			return inference;
+		}
+
+		public double getDataMillis () {
+			return dataMillis;
+		}
+
+		public double getNormalizationMillis () {
+			return normalizationMillis;
+		}
+
+		/**
+		 * Forward pass, and for training the backward pass and update.
+		 */
+		public double getComputeMillis () {
+			return computeMillis;
+		}
+
+		public int getExamples () {
+			return examples;
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+package qupath.lib.deep_learning;
+
+import java.util.List;
+
+/**
+ * JMX view of the {@link TrainingMetrics} of a network. All times are in milliseconds and refer to the
+ * last completed epoch, unless stated otherwise.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public interface TrainingMetricsMXBean {
+
+	String getNetworkName ();
+
+	int getEpoch ();
+
+	long getMinibatchCount ();
+
+	double getDataLoadingMillis ();
+
+	double getNormalizationMillis ();
+
+	double getForwardMillis ();
+
+	double getBackwardMillis ();
+
+	double getUpdateMillis ();
+
+	double getEpochMillis ();
+
+	double getSamplesPerSecond ();
+
+	long getHeapUsedBytes ();
+
+	long getOffHeapBytes ();
+
+	long getPeakOffHeapBytes ();
+
+	/**
+	 * The last minibatches of training and inference, oldest first.
+	 */
+	List <TrainingMetrics.MinibatchRecord> getRecentMinibatches ();
+
+}
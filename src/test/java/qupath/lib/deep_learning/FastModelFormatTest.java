@@ -0,0 +1,101 @@
+package qupath.lib.deep_learning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
+
+public class FastModelFormatTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static MultiLayerNetwork createModel () {
+		MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+				.seed(42)
+				.learningRate(0.1)
+				.updater(Updater.NESTEROVS)
+				.list()
+				.layer(0, new DenseLayer.Builder().nIn(4).nOut(3).activation(Activation.TANH).build())
+				.layer(1, new OutputLayer.Builder(LossFunction.MCXENT).nIn(3).nOut(2).activation(Activation.SOFTMAX).build())
+				.build();
+		MultiLayerNetwork model = new MultiLayerNetwork(conf);
+		model.init();
+		return model;
+	}
+
+	private static DataSet createData () {
+		Nd4j.getRandom().setSeed(7);
+		INDArray features = Nd4j.rand(8, 4);
+		INDArray labels = Nd4j.zeros(8, 2);
+		for (int i = 0; i < 8; i++) {
+			labels.putScalar(i, i % 2, 1.0);
+		}
+		return new DataSet(features, labels);
+	}
+
+	@Test
+	public void testSaveLoadFitSave () throws Exception {
+		File directory = new File(folder.getRoot(), "model" + FastModelFormat.EXTENSION);
+		List <String> names = Arrays.asList("Area", "Perimeter", "Circularity", "Solidity");
+		MultiLayerNetwork original = createModel();
+		DataSet data = createData();
+		original.fit(data);
+
+		FastModelFormat.write(directory, original, null, names, true);
+		FastModelFormat.LoadedModel loaded = FastModelFormat.read(directory, true);
+		MultiLayerNetwork model = loaded.getModel();
+		assertEquals(original.params(), model.params());
+		assertEquals(original.getUpdater().getStateViewArray(), model.getUpdater().getStateViewArray());
+		assertEquals(names, loaded.getMeasurementNames());
+
+		// Training writes into the loaded parameters and updater state
+		INDArray before = model.params().dup();
+		model.fit(data);
+		assertNotEquals(before, model.params());
+
+		// Writing back to the directory the model was loaded from
+		FastModelFormat.write(directory, model, null, names, true);
+		assertTrue(FastModelFormat.isFastModel(directory));
+		FastModelFormat.LoadedModel reloaded = FastModelFormat.read(directory, true);
+		assertEquals(model.params(), reloaded.getModel().params());
+		assertEquals(model.getUpdater().getStateViewArray(), reloaded.getModel().getUpdater().getStateViewArray());
+	}
+
+	@Test
+	public void testMappedLoadIsCopyOnWrite () throws Exception {
+		File directory = new File(folder.getRoot(), "inference" + FastModelFormat.EXTENSION);
+		MultiLayerNetwork original = createModel();
+		DataSet data = createData();
+		original.fit(data);
+		FastModelFormat.write(directory, original, null, null, false);
+
+		MultiLayerNetwork mapped = FastModelFormat.read(directory, false).getModel();
+		assertEquals(original.params(), mapped.params());
+		assertEquals(original.output(data.getFeatures()), mapped.output(data.getFeatures()));
+
+		// Changes to the mapped parameters stay in memory
+		mapped.fit(data);
+		assertNotEquals(original.params(), mapped.params());
+		assertEquals(original.params(), FastModelFormat.read(directory, false).getModel().params());
+	}
+
+}
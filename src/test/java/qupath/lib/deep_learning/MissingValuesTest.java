@@ -0,0 +1,50 @@
+package qupath.lib.deep_learning;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class MissingValuesTest {
+
+	private static final double EPSILON = 1e-5;
+
+	private static INDArray createData () {
+		return Nd4j.create(new double[][] {{1, 10}, {Double.NaN, 20}, {3, Double.NaN}, {Double.NaN, 30}});
+	}
+
+	@Test
+	public void standardizedMissingValuesBecomeTheMean () {
+		INDArray data = createData();
+		StreamingNormalizer statistics = new StreamingNormalizer();
+		statistics.update(data);
+		DataNormalization normalization = statistics.toDataNormalization(AbstractNeuralNetwork.NormalizationMethod.Standardize);
+
+		assertEquals(3, MissingValues.prepare(data, normalization));
+		normalization.revert(data);
+		assertArrayEquals(new double[] {1, 10, 2, 20, 3, 20, 2, 30}, data.dup('c').data().asDouble(), EPSILON);
+	}
+
+	@Test
+	public void withoutNormalizationMissingValuesBecomeZero () {
+		INDArray data = createData();
+
+		assertEquals(3, MissingValues.prepare(data, null));
+		assertArrayEquals(new double[] {1, 10, 0, 20, 3, 0, 0, 30}, data.dup('c').data().asDouble(), EPSILON);
+		assertEquals(0, MissingValues.replace(data));
+	}
+
+	@Test
+	public void imputerCountsReplacedValues () {
+		MissingValues.Imputer imputer = MissingValues.preProcessor(null);
+		imputer.preProcess(new DataSet(createData(), null));
+		imputer.preProcess(new DataSet(createData(), null));
+
+		assertEquals(6, imputer.getReplacedCount());
+	}
+
+}
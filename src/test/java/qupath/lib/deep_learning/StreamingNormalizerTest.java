@@ -0,0 +1,138 @@
+package qupath.lib.deep_learning;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class StreamingNormalizerTest {
+
+	// ND4J stores single precision by default, the statistics themselves are double precision
+	private static final double EPSILON = 1e-3;
+
+	private static double [][] createData (final int rows, final int cols) {
+		Random random = new Random(42);
+		double [][] data = new double[rows][cols];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				// Features with different scales and offsets, and some missing values
+				data[r][c] = random.nextInt(10) == 0 ? Double.NaN : (c + 1) * 10 * random.nextGaussian() + c * 100;
+			}
+		}
+		return data;
+	}
+
+	private static INDArray rows (final double [][] data, final int from, final int to) {
+		double [][] part = new double[to - from][];
+		System.arraycopy(data, from, part, 0, to - from);
+		return Nd4j.create(part);
+	}
+
+	private static double [] toArray (final INDArray array) {
+		return array.dup().data().asDouble();
+	}
+
+	private static void assertStatisticsEqual (final StreamingNormalizer expected, final StreamingNormalizer actual) {
+		assertEquals(expected.getCount(), actual.getCount());
+		assertArrayEquals(toArray(expected.getMean()), toArray(actual.getMean()), EPSILON);
+		assertArrayEquals(toArray(expected.getStd()), toArray(actual.getStd()), EPSILON);
+		assertArrayEquals(toArray(expected.getMin()), toArray(actual.getMin()), EPSILON);
+		assertArrayEquals(toArray(expected.getMax()), toArray(actual.getMax()), EPSILON);
+	}
+
+	@Test
+	public void mergeMatchesSinglePass () {
+		double [][] data = createData(1000, 5);
+		StreamingNormalizer single = new StreamingNormalizer();
+		single.update(rows(data, 0, data.length));
+
+		// Parts of unequal size, merged in a tree as they would be per slide and per thread
+		int [] bounds = {0, 1, 137, 500, 501, 1000};
+		StreamingNormalizer [] parts = new StreamingNormalizer[bounds.length - 1];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = new StreamingNormalizer();
+			parts[i].update(rows(data, bounds[i], bounds[i + 1]));
+		}
+		StreamingNormalizer left = new StreamingNormalizer();
+		left.merge(parts[0]);
+		left.merge(parts[1]);
+		StreamingNormalizer right = new StreamingNormalizer();
+		right.merge(parts[2]);
+		right.merge(parts[3]);
+		right.merge(parts[4]);
+		left.merge(right);
+
+		assertStatisticsEqual(single, left);
+	}
+
+	@Test
+	public void mergeWithEmptyChangesNothing () {
+		double [][] data = createData(100, 3);
+		StreamingNormalizer expected = new StreamingNormalizer();
+		expected.update(rows(data, 0, data.length));
+		StreamingNormalizer merged = new StreamingNormalizer();
+		merged.update(rows(data, 0, data.length));
+		merged.merge(new StreamingNormalizer());
+
+		assertStatisticsEqual(expected, merged);
+	}
+
+	@Test
+	public void matchesTwoPassStatistics () {
+		double [][] data = createData(500, 4);
+		StreamingNormalizer normalizer = new StreamingNormalizer();
+		normalizer.update(rows(data, 0, data.length));
+
+		double [] mean = toArray(normalizer.getMean());
+		double [] std = toArray(normalizer.getStd());
+		for (int c = 0; c < 4; c++) {
+			double sum = 0;
+			int n = 0;
+			for (double [] row : data) {
+				if (!Double.isNaN(row[c])) {
+					sum += row[c];
+					n++;
+				}
+			}
+			double m = sum / n;
+			double squares = 0;
+			for (double [] row : data) {
+				if (!Double.isNaN(row[c])) {
+					squares += (row[c] - m) * (row[c] - m);
+				}
+			}
+			assertEquals(m, mean[c], EPSILON);
+			assertEquals(Math.sqrt(squares / n), std[c], EPSILON);
+		}
+	}
+
+	@Test
+	public void missingFeaturesPassThrough () {
+		StreamingNormalizer normalizer = new StreamingNormalizer();
+		normalizer.update(Nd4j.create(new double[][] {{1, Double.NaN}, {3, Double.NaN}}));
+
+		assertArrayEquals(new double[] {2, 0}, toArray(normalizer.getMean()), EPSILON);
+		assertArrayEquals(new double[] {1, 1}, toArray(normalizer.getStd()), EPSILON);
+		assertArrayEquals(new double[] {1, 0}, toArray(normalizer.getMin()), EPSILON);
+		assertArrayEquals(new double[] {3, 1}, toArray(normalizer.getMax()), EPSILON);
+		for (double value : toArray(normalizer.getMax())) {
+			assertTrue(Double.isFinite(value));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void emptyHasNoStd () {
+		new StreamingNormalizer().getStd();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void emptyCannotNormalize () {
+		new StreamingNormalizer().toDataNormalization(AbstractNeuralNetwork.NormalizationMethod.Standardize);
+	}
+
+}
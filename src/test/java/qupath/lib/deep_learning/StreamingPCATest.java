@@ -0,0 +1,125 @@
+package qupath.lib.deep_learning;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.eigen.Eigen;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class StreamingPCATest {
+
+	// ND4J stores single precision by default, the sums themselves are double precision
+	private static final double EPSILON = 1e-3;
+
+	private static final int COMPONENTS = 2;
+
+	private static double [][] createData (final int rows, final double missing) {
+		Random random = new Random(42);
+		double [][] data = new double[rows][4];
+		for (int r = 0; r < rows; r++) {
+			double a = random.nextGaussian();
+			double b = random.nextGaussian();
+			// Correlated features with different scales and offsets, so the components are well separated
+			double [] row = {100 + 10 * a, 5 * a + 2 * b + 0.5 * random.nextGaussian(), -3 * b + random.nextGaussian(), 1000 + 50 * random.nextGaussian()};
+			for (int c = 0; c < row.length; c++) {
+				data[r][c] = random.nextDouble() < missing ? Double.NaN : row[c];
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Impute the missing values with the mean of the present values, then compute the correlation
+	 * matrix in a second pass, and return its eigenvalues followed by the leading eigenvectors.
+	 */
+	private static double [][] twoPass (final double [][] data) {
+		int rows = data.length;
+		int d = data[0].length;
+		double [] mean = new double[d];
+		for (int c = 0; c < d; c++) {
+			int n = 0;
+			for (double [] row : data) {
+				if (!Double.isNaN(row[c])) {
+					mean[c] += row[c];
+					n++;
+				}
+			}
+			mean[c] /= n;
+		}
+		double [][] centered = new double[rows][d];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < d; c++) {
+				centered[r][c] = Double.isNaN(data[r][c]) ? 0 : data[r][c] - mean[c];
+			}
+		}
+		double [] covariance = new double[d * d];
+		for (double [] row : centered) {
+			for (int i = 0; i < d; i++) {
+				for (int j = 0; j < d; j++) {
+					covariance[i * d + j] += row[i] * row[j] / (rows - 1);
+				}
+			}
+		}
+		double [] correlation = new double[d * d];
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < d; j++) {
+				correlation[i * d + j] = covariance[i * d + j] / Math.sqrt(covariance[i * d + i] * covariance[j * d + j]);
+			}
+		}
+
+		INDArray matrix = Nd4j.create(correlation, new int[] {d, d}, 'c');
+		INDArray values = Eigen.symmetricGeneralizedEigenvalues(matrix);
+		double [][] result = new double[1 + COMPONENTS][];
+		result[0] = new double[COMPONENTS];
+		for (int c = 0; c < COMPONENTS; c++) {
+			result[0][c] = values.getDouble(d - 1 - c);
+			result[1 + c] = matrix.getColumn(d - 1 - c).dup().data().asDouble();
+		}
+		return result;
+	}
+
+	private static void assertMatchesTwoPass (final double [][] data, final int chunkSize) throws Exception {
+		StreamingPCA pca = new StreamingPCA(COMPONENTS);
+		pca.setChunkSize(chunkSize);
+		pca.setThreads(3);
+		pca.fit(StreamingPCA.RowSource.of(Nd4j.create(data)), null, null);
+
+		double [][] expected = twoPass(data);
+		assertArrayEquals(expected[0], pca.getEigenvalues(), EPSILON);
+		for (int c = 0; c < COMPONENTS; c++) {
+			// Eigenvectors are only defined up to their sign
+			double [] component = pca.getComponents().getColumn(c).dup().data().asDouble();
+			double dot = 0;
+			for (int i = 0; i < component.length; i++) {
+				dot += component[i] * expected[1 + c][i];
+			}
+			assertEquals(1, Math.abs(dot), EPSILON);
+		}
+	}
+
+	@Test
+	public void matchesTwoPassWithoutMissingValues () throws Exception {
+		assertMatchesTwoPass(createData(1000, 0), 64);
+	}
+
+	@Test
+	public void matchesTwoPassWithMissingValues () throws Exception {
+		// The first chunk gives a poor estimate of the mean, so imputing with it would be visible
+		assertMatchesTwoPass(createData(1000, 0.2), 16);
+	}
+
+	@Test
+	public void meanIgnoresMissingValues () throws Exception {
+		double [][] data = {{1, Double.NaN}, {3, 4}, {Double.NaN, 8}, {8, 0}};
+		StreamingPCA pca = new StreamingPCA(1);
+		pca.setChunkSize(1);
+		pca.fit(StreamingPCA.RowSource.of(Nd4j.create(data)), null, null);
+
+		assertArrayEquals(new double[] {4, 4}, pca.getMean(), EPSILON);
+	}
+
+}
@@ -0,0 +1,162 @@
+package qupath.lib.deep_learning;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+
+public class TrainTestSplitTest {
+
+	// Sample counts of the classes "A", "B" and "C"
+	private static final int [] COUNTS = {60, 30, 10};
+
+	private static List <PathDataSet> createSamples () {
+		List <PathDataSet> samples = new ArrayList<>();
+		for (int c = 0; c < COUNTS.length; c++) {
+			PathClass pathClass = PathClassFactory.getPathClass(String.valueOf((char) ('A' + c)));
+			for (int i = 0; i < COUNTS[c]; i++) {
+				samples.add(new PathDataSet(new PathDetectionObject(null, pathClass), null, null));
+			}
+		}
+		// Interleave the classes, so the split cannot rely on the order of the list
+		Collections.shuffle(samples, new Random(7));
+		return samples;
+	}
+
+	private static int [] countClasses (final List <PathDataSet> samples, final int [] indices) {
+		int [] counts = new int[COUNTS.length];
+		for (int index : indices) {
+			counts[samples.get(index).getPathObject().getPathClass().getName().charAt(0) - 'A']++;
+		}
+		return counts;
+	}
+
+	private static void assertDisjointCover (final int size, final int [] first, final int [] second) {
+		boolean [] seen = new boolean[size];
+		for (int [] indices : Arrays.asList(first, second)) {
+			for (int index : indices) {
+				assertFalse("Index " + index + " used twice", seen[index]);
+				seen[index] = true;
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			assertTrue("Index " + i + " not used", seen[i]);
+		}
+	}
+
+	@Test
+	public void splitKeepsClassProportions () {
+		List <PathDataSet> samples = createSamples();
+		TrainTestSplit.Fold fold = new TrainTestSplit(samples, 123).split(0.7);
+
+		assertArrayEquals(new int[] {42, 21, 7}, countClasses(samples, fold.getTrainIndices()));
+		assertArrayEquals(new int[] {18, 9, 3}, countClasses(samples, fold.getTestIndices()));
+		assertDisjointCover(samples.size(), fold.getTrainIndices(), fold.getTestIndices());
+	}
+
+	@Test
+	public void splitIsReproducible () {
+		List <PathDataSet> samples = createSamples();
+		TrainTestSplit.Fold first = new TrainTestSplit(samples, 123).split(0.5);
+		TrainTestSplit.Fold second = new TrainTestSplit(samples, 123).split(0.5);
+
+		assertArrayEquals(first.getTrainIndices(), second.getTrainIndices());
+		assertArrayEquals(first.getTestIndices(), second.getTestIndices());
+	}
+
+	@Test
+	public void fractionAndPercentageAreSeparate () {
+		TrainTestSplit split = new TrainTestSplit(createSamples(), 123);
+
+		// 1 is the whole data set as a fraction, but 1% as a percentage
+		assertEquals(100, split.split(1).getTrainIndices().length);
+		assertEquals(1, split.splitPercent(1).getTrainIndices().length);
+		assertEquals(70, split.splitPercent(70).getTrainIndices().length);
+		assertArrayEquals(split.split(0.7).getTrainIndices(), split.splitPercent(70).getTrainIndices());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void percentageIsNotAFraction () {
+		new TrainTestSplit(createSamples(), 123).split(70);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void percentageAboveHundred () {
+		new TrainTestSplit(createSamples(), 123).splitPercent(101);
+	}
+
+	@Test
+	public void foldsAreStratifiedDisjointAndCovering () {
+		List <PathDataSet> samples = createSamples();
+		TrainTestSplit split = new TrainTestSplit(samples, 123);
+		List <TrainTestSplit.Fold> folds = split.folds(5);
+
+		boolean [] tested = new boolean[samples.size()];
+		for (TrainTestSplit.Fold fold : folds) {
+			assertDisjointCover(samples.size(), fold.getTrainIndices(), fold.getTestIndices());
+			assertArrayEquals(new int[] {12, 6, 2}, countClasses(samples, fold.getTestIndices()));
+			for (int index : fold.getTestIndices()) {
+				assertFalse("Index " + index + " tested in two folds", tested[index]);
+				tested[index] = true;
+			}
+		}
+		for (int i = 0; i < tested.length; i++) {
+			assertTrue("Index " + i + " not tested", tested[i]);
+		}
+	}
+
+	@Test
+	public void holdOutComesFromTheGivenIndices () {
+		List <PathDataSet> samples = createSamples();
+		TrainTestSplit split = new TrainTestSplit(samples, 123);
+		TrainTestSplit.Fold fold = split.split(0.5);
+		TrainTestSplit.Fold validation = split.holdOut(fold.getTrainIndices(), 0.2);
+
+		assertArrayEquals(new int[] {6, 3, 1}, countClasses(samples, validation.getTestIndices()));
+
+		int [] train = fold.getTrainIndices().clone();
+		int [] parts = new int[train.length];
+		System.arraycopy(validation.getTrainIndices(), 0, parts, 0, validation.getTrainIndices().length);
+		System.arraycopy(validation.getTestIndices(), 0, parts, validation.getTrainIndices().length, validation.getTestIndices().length);
+		Arrays.sort(train);
+		Arrays.sort(parts);
+		assertArrayEquals(train, parts);
+	}
+
+	@Test
+	public void featureRowsOfAMeasurementMatrix () {
+		List <PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			pathObjects.add(new PathDetectionObject());
+		}
+		INDArray values = Nd4j.linspace(1, 15, 15).reshape('c', 5, 3);
+		List <PathDataSet> samples = MeasurementMatrix.createInstance(pathObjects, Arrays.asList("a", "b", "c"), values).toDataSets();
+		List <PathDataSet> reordered = Arrays.asList(samples.get(3), samples.get(0), samples.get(4));
+
+		IndexedDataSetIterator.SharedRows shared = IndexedDataSetIterator.findFeatureRows(reordered);
+		assertNotNull(shared);
+		assertArrayEquals(new int[] {3, 0, 4}, shared.getRows());
+
+		IndexedDataSetIterator iterator = new IndexedDataSetIterator(shared.getMatrix(), null, shared.getRows(), new int[] {2, 0}, 2);
+		INDArray batch = iterator.next().getFeatures();
+		assertEquals(values.getRow(4), batch.getRow(0));
+		assertEquals(values.getRow(3), batch.getRow(1));
+	}
+
+}
@@ -0,0 +1,58 @@
+package qupath.lib.deep_learning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TrainingMetricsTest {
+
+	private static final double EPSILON = 1e-9;
+
+	@Test
+	public void minibatchesAreBounded () {
+		TrainingMetrics metrics = new TrainingMetrics("test");
+		int total = TrainingMetrics.MAX_MINIBATCHES + 250;
+		for (int i = 0; i < total; i++) {
+			metrics.recordInference(1_000_000, 2_000_000, 3_000_000, i);
+		}
+
+		List <TrainingMetrics.MinibatchRecord> records = metrics.getMinibatches();
+		assertEquals(TrainingMetrics.MAX_MINIBATCHES, records.size());
+		for (int i = 0; i < records.size(); i++) {
+			// Oldest first, the first 250 were dropped
+			assertEquals(250 + i, records.get(i).getIndex());
+			assertEquals(250 + i, records.get(i).getExamples());
+		}
+		TrainingMetrics.MinibatchRecord last = records.get(records.size() - 1);
+		assertTrue(last.isInference());
+		assertEquals(1, last.getDataMillis(), EPSILON);
+		assertEquals(2, last.getNormalizationMillis(), EPSILON);
+		assertEquals(3, last.getComputeMillis(), EPSILON);
+	}
+
+	@Test
+	public void trainingMinibatchIsRecordedWhenItsIterationIsDone () {
+		TrainingMetrics metrics = new TrainingMetrics("test");
+		metrics.epochStarted();
+		metrics.recordNormalization(4_000_000);
+		metrics.recordMinibatch(5_000_000, 32);
+		assertTrue(metrics.getMinibatches().isEmpty());
+
+		metrics.iterationDone(null, 0);
+		List <TrainingMetrics.MinibatchRecord> records = metrics.getMinibatches();
+		assertEquals(1, records.size());
+		assertFalse(records.get(0).isInference());
+		assertEquals(32, records.get(0).getExamples());
+		assertEquals(5, records.get(0).getDataMillis(), EPSILON);
+		assertEquals(4, records.get(0).getNormalizationMillis(), EPSILON);
+
+		// Iterations without a new minibatch, e.g. of layerwise pretraining, are not recorded again
+		metrics.iterationDone(null, 1);
+		assertEquals(1, metrics.getMinibatches().size());
+	}
+
+}